@@ -19,7 +19,8 @@ public class CLIParser {
     private final IOConnection connection;
     private final Scanner keyboard = new Scanner(System.in);
 
-    private boolean inShell = false;
+    // read by the shell's reader thread
+    private volatile boolean inShell = false;
     private boolean inScript = false;
 
     public CLIParser(CLIMain main) {
@@ -60,6 +61,7 @@ public class CLIParser {
                     main.sendLine("  Debugging commands:");
                     main.sendLine("    fwline - get firmware version line");
                     main.sendLine("    debug - print debug info");
+                    main.sendLine("    stats - print connection statistics");
                     main.sendLine("    gcode <line> - send raw gcode");
                     main.sendLine("    shell - enter gcode shell");
                     main.sendLine("  Scripting commands:");
@@ -213,6 +215,12 @@ public class CLIParser {
                     }
                     break;
                 }
+                case "stats": {
+                    for (String statLine : connection.getMetrics().report()) {
+                        main.sendLine(statLine);
+                    }
+                    break;
+                }
                 case "fwline": {
                     main.sendLine(laser.getFwLine());
                     break;
@@ -229,7 +237,7 @@ public class CLIParser {
         inShell = true;
 
         Thread shellThread = new Thread(() -> {
-            while (inShell) {
+            while (inShell && !Thread.currentThread().isInterrupted()) {
                 try {
                     String line = connection.waitForLine();
                     if (line != null && !line.isEmpty()) {
@@ -263,7 +271,13 @@ public class CLIParser {
             }
         } finally {
             inShell = false;
+            // the input queue allows only one reader, so this one must be gone before the shell can be opened again
             shellThread.interrupt();
+            try {
+                shellThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -292,11 +306,16 @@ public class CLIParser {
         try {
             BufferedReader reader = new BufferedReader(new FileReader(path));
             main.sendLine("GCode script running.");
-            while (reader.ready()) {
-                String line = reader.readLine();
-                while (!laser.sendLine(line)) {
-                    // loop until it there is space in machine buffer.
+            connection.getMetrics().startJob();
+            try {
+                while (reader.ready()) {
+                    String line = reader.readLine();
+                    while (!laser.sendLine(line)) {
+                        // loop until it there is space in machine buffer.
+                    }
                 }
+            } finally {
+                connection.getMetrics().endJob();
             }
             main.sendLine("GCode script done.");
         } catch (FileNotFoundException e) {
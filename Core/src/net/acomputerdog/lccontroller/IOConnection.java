@@ -2,40 +2,116 @@ package net.acomputerdog.lccontroller;
 
 import com.fazecast.jSerialComm.SerialPort;
 import net.acomputerdog.lccontroller.ex.InternalIOException;
-import net.acomputerdog.lccontroller.util.LockedNotifier;
+import net.acomputerdog.lccontroller.ex.LaserException;
+import net.acomputerdog.lccontroller.io.SerialTransport;
+import net.acomputerdog.lccontroller.io.Transport;
+import net.acomputerdog.lccontroller.metrics.LatencyHistogram;
+import net.acomputerdog.lccontroller.metrics.Metrics;
+import net.acomputerdog.lccontroller.util.RingBuffer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 public class IOConnection {
-    private static final int INPUT_BUFFER_SIZE = 2048;
+    public static final String ACK_LINE = "OK";
 
-    private final SerialPort serialPort;
+    private static final int INPUT_BUFFER_SIZE = 2048;
+    // unclaimed lines kept for readers.  Lines are dropped if nobody reads them, so the serial thread never blocks.
+    private static final int INPUT_QUEUE_SIZE = 1024;
+    // max bytes written to the port at once
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+    // lines waiting for the writer thread.  Senders wait if it fills up.
+    private static final int OUTPUT_QUEUE_SIZE = 1024;
+
+    private final Transport transport;
     private final InputStream serialIn;
-    private final Writer serialOut;
+    private final OutputStream serialOut;
 
-    private final Semaphore inputQueueLock = new Semaphore(1);
-    private final Queue<String> inputQueue = new LinkedList<>();
+    private final RingBuffer<String> inputQueue = new RingBuffer<>(INPUT_QUEUE_SIZE, RingBuffer.FullPolicy.DROP);
 
-    private final Thread serialReader;
+    // lines that have been sent but not acknowledged, oldest first
+    private final Semaphore inFlightLock = new Semaphore(1);
+    private final Queue<PendingCommand> inFlightLines = new LinkedList<>();
+    private volatile int bytesInFlight = 0;
 
-    private boolean isOpen = true;
+    private final ResponseRouter router = new ResponseRouter();
 
-    private final LockedNotifier ackLock = new LockedNotifier();
-    private final LockedNotifier lineLock = new LockedNotifier();
+    // lines waiting to be written.  Only one sender adds at a time, under writeLock.
+    private final RingBuffer<PendingCommand> outputQueue = new RingBuffer<>(OUTPUT_QUEUE_SIZE, RingBuffer.FullPolicy.BLOCK);
+    // keeps lines in the same order on the wire as in inFlightLines
+    private final Semaphore writeLock = new Semaphore(1);
 
-    private final List<Consumer<String>> lineReceivedMonitors = new LinkedList<>();
-    private final List<Consumer<String>> lineSentMonitors = new LinkedList<>();
+    private final Thread serialReader;
+    private final SerialWriter serialWriter = new SerialWriter();
+    // runs serialWriter whenever there are lines to write
+    private final Executor writeExecutor;
+    // set if writeExecutor was made by this connection, and so should be shut down with it
+    private final ExecutorService ownWriteExecutor;
+    // true while serialWriter is queued or running, so that it never runs twice at once
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    private volatile boolean isOpen = true;
+
+    // monitors can be added while the serial threads are using them
+    private final List<Consumer<String>> lineReceivedMonitors = new CopyOnWriteArrayList<>();
+    private final List<Consumer<String>> lineSentMonitors = new CopyOnWriteArrayList<>();
+
+    private final Metrics metrics = new Metrics();
+    // kept so that the serial threads never look them up
+    private final LongAdder linesSent = metrics.counter(Metrics.LINES_SENT);
+    private final LongAdder bytesSent = metrics.counter(Metrics.BYTES_SENT);
+    private final LongAdder linesReceived = metrics.counter(Metrics.LINES_RECEIVED);
+    private final LongAdder bytesReceived = metrics.counter(Metrics.BYTES_RECEIVED);
+    private final LongAdder acks = metrics.counter(Metrics.ACKS);
+    private final LongAdder timeouts = metrics.counter(Metrics.TIMEOUTS);
+    private final LatencyHistogram ackLatency = metrics.histogram(Metrics.ACK_LATENCY);
 
     public IOConnection(SerialPort serialPort) {
-        this.serialPort = serialPort;
+        this(new SerialTransport(serialPort));
+    }
+
+    /*
+      Uses a thread of its own for reading and another for writing.
+     */
+    public IOConnection(Transport transport) {
+        this(transport, IOConnection::newReaderThread, null);
+    }
+
+    /*
+      Reads on a thread from readerThreads, which blocks on the transport for as long as the connection is open.
+      Writes are run on writeExecutor only while there are lines waiting, so one executor can be shared by many
+      connections.  If writeExecutor is null, then the connection makes a thread of its own.
+     */
+    public IOConnection(Transport transport, ThreadFactory readerThreads, Executor writeExecutor) {
+        this.transport = transport;
+        if (writeExecutor != null) {
+            this.writeExecutor = writeExecutor;
+            this.ownWriteExecutor = null;
+        } else {
+            this.ownWriteExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("Serial_Write_Thread");
+                return thread;
+            });
+            this.writeExecutor = ownWriteExecutor;
+        }
 
-        this.serialIn = serialPort.getInputStream();
-        this.serialOut = new OutputStreamWriter(serialPort.getOutputStream());
+        this.serialIn = transport.getInputStream();
+        this.serialOut = transport.getOutputStream();
+
+        metrics.gauge(Metrics.LINES_IN_FLIGHT, this::getLinesInFlight);
+        metrics.gauge(Metrics.BYTES_IN_FLIGHT, this::getBytesInFlight);
+        metrics.gauge(Metrics.OUTPUT_QUEUE, outputQueue::size);
 
         // flush buffer in case there is already data
         try {
@@ -46,115 +122,385 @@ public class IOConnection {
             throw new RuntimeException("Exception flushing read buffer.", e);
         }
 
-        this.serialReader = new Thread(new Runnable() {
-            private char[] buffer = new char[INPUT_BUFFER_SIZE];
-            private int bufferPos = 0;
+        this.serialReader = readerThreads.newThread(new Runnable() {
+            // reused for every read.  Between reads it holds at most one partial line.
+            private final ByteBuffer buffer = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+            // start of the line currently being framed
+            private int lineStart = 0;
+            // first byte that has not been checked for a newline
+            private int scanPos = 0;
+            // true if the current line was too long and the rest of it should be dropped
+            private boolean discarding = false;
 
             @Override
             public void run() {
                 try {
+                    byte[] bytes = buffer.array();
                     while (isOpen) {
-                        // read a char.  it will either be added, ignored as /n, or ignored because line is too long
-                        char chr = (char) serialIn.read();
+                        // read as much as is available, blocking until there is at least one byte
+                        int count = serialIn.read(bytes, buffer.position(), buffer.remaining());
+                        if (count < 0) {
+                            break;
+                        }
+                        buffer.position(buffer.position() + count);
 
-                        // if we get a newline, then store line
-                        if (chr == '\n') {
-                            String line = String.valueOf(buffer, 0, bufferPos);
+                        frameLines(bytes);
+                    }
+                } catch (Exception ignored) {
+                }
+                close();
+            }
 
-                            for (Consumer<String> receiver : lineReceivedMonitors) {
-                                receiver.accept(line);
+            private void frameLines(byte[] bytes) {
+                int end = buffer.position();
+                for (; scanPos < end; scanPos++) {
+                    if (bytes[scanPos] == '\n') {
+                        if (discarding) {
+                            discarding = false;
+                        } else {
+                            int length = scanPos - lineStart;
+                            // accept \r\n line endings
+                            if (length > 0 && bytes[scanPos - 1] == '\r') {
+                                length--;
                             }
+                            onLineReceived(bytes, lineStart, length);
+                        }
+                        lineStart = scanPos + 1;
+                    }
+                }
 
-                            if ("OK".equals(line)) {
-                                ackLock.release();
-                            } else {
-                                inputQueueLock.acquireUninterruptibly();
-                                try {
-                                    inputQueue.add(line);
-                                } finally {
-                                    inputQueueLock.release();
-                                }
-
-                                lineLock.release();
-                            }
-                            buffer = new char[INPUT_BUFFER_SIZE];
-                            bufferPos = 0;
-                            // if buffer has room, then add character
-                        } else if (bufferPos < INPUT_BUFFER_SIZE) {
-                            buffer[bufferPos] = chr;
-                            bufferPos++;
+                if (lineStart == end) {
+                    // only complete lines, so start over at the front
+                    buffer.clear();
+                    lineStart = 0;
+                    scanPos = 0;
+                } else if (!buffer.hasRemaining()) {
+                    if (lineStart > 0) {
+                        // move partial line to the front to make room
+                        buffer.flip();
+                        buffer.position(lineStart);
+                        buffer.compact();
+                        scanPos -= lineStart;
+                        lineStart = 0;
+                    } else {
+                        // line is too long, so keep what fits the first time and drop the rest
+                        if (!discarding) {
+                            onLineReceived(bytes, 0, end);
                         }
+                        buffer.clear();
+                        scanPos = 0;
+                        discarding = true;
                     }
-                } catch (Exception e) {
-                    close();
                 }
             }
         });
-        serialReader.setDaemon(true);
-        serialReader.setName("Serial_Read_Thread");
         serialReader.start();
     }
 
-    public boolean linesAvailable() {
-        inputQueueLock.acquireUninterruptibly();
-        try {
-            return !inputQueue.isEmpty();
-        } finally {
-            inputQueueLock.release();
+    private static Thread newReaderThread(Runnable reader) {
+        Thread thread = new Thread(reader);
+        thread.setDaemon(true);
+        thread.setName("Serial_Read_Thread");
+        return thread;
+    }
+
+    /*
+      Writes everything in outputQueue, then returns.  Scheduled by scheduleWrite() whenever a line is added.
+     */
+    private final class SerialWriter implements Runnable {
+        // reused for every write.  Heap backed because the serial stream only accepts arrays.
+        private final ByteBuffer buffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        // lines in the current write, for the sent monitors
+        private final List<String> batch = new ArrayList<>();
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    PendingCommand command;
+                    while (isOpen && (command = outputQueue.poll()) != null) {
+                        // write everything that is waiting in one go
+                        do {
+                            encode(command.line);
+                            batch.add(command.line);
+                            linesSent.increment();
+                            bytesSent.add(command.length);
+                        } while ((command = outputQueue.poll()) != null);
+                        flushBuffer();
+
+                        for (String line : batch) {
+                            for (Consumer<String> receiver : lineSentMonitors) {
+                                receiver.accept(line);
+                            }
+                        }
+                        batch.clear();
+                    }
+                    writeScheduled.set(false);
+                    // a line may have been added after the last poll, but before the flag was cleared
+                } while (isOpen && !outputQueue.isEmpty() && writeScheduled.compareAndSet(false, true));
+            } catch (IOException e) {
+                batch.clear();
+                failPending(new InternalIOException("Exception writing line.", e));
+                close();
+            } catch (Exception e) {
+                batch.clear();
+                close();
+            }
+        }
+
+        private void encode(String line) throws IOException {
+            int length = line.length();
+            for (int i = 0; i < length; i++) {
+                if (!buffer.hasRemaining()) {
+                    flushBuffer();
+                }
+                char chr = line.charAt(i);
+                buffer.put(chr < 0x100 ? (byte) chr : (byte) '?');
+            }
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            buffer.put((byte) '\n');
+        }
+
+        private void flushBuffer() throws IOException {
+            if (buffer.position() > 0) {
+                serialOut.write(buffer.array(), 0, buffer.position());
+                serialOut.flush();
+                buffer.clear();
+            }
         }
     }
 
-    public String nextLine() {
-        inputQueueLock.acquireUninterruptibly();
-        try {
-            return inputQueue.poll();
-        } finally {
-            inputQueueLock.release();
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            try {
+                writeExecutor.execute(serialWriter);
+            } catch (RejectedExecutionException e) {
+                writeScheduled.set(false);
+                failPending(new LaserException("Connection closed."));
+            }
         }
     }
 
+    private void onLineReceived(byte[] bytes, int start, int length) {
+        linesReceived.increment();
+        bytesReceived.add(length + 1);
+
+        if (length == 2 && bytes[start] == 'O' && bytes[start + 1] == 'K') {
+            // acks are by far the most common line, so share one string instead of creating a new one each time
+            for (Consumer<String> receiver : lineReceivedMonitors) {
+                receiver.accept(ACK_LINE);
+            }
+
+            onAck();
+        } else {
+            String line = new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+
+            for (Consumer<String> receiver : lineReceivedMonitors) {
+                receiver.accept(line);
+            }
+
+            // responses to queries go only to the request that made them
+            if (router.route(line)) {
+                return;
+            }
+
+            inputQueue.put(line);
+        }
+    }
+
+    public boolean linesAvailable() {
+        return !inputQueue.isEmpty();
+    }
+
+    public String nextLine() {
+        return inputQueue.poll();
+    }
+
+    /*
+      Waits for the next line that is not a response to a query.  Only one thread may read lines at a time.
+     */
     public String waitForLine() {
         return waitForLine(-1);
     }
 
     public String waitForLine(long timeout) {
-        if (lineLock.waitForNotify(timeout)) {
-            if (linesAvailable()) {
-                return nextLine();
+        return inputQueue.poll(timeout);
+    }
+
+    /*
+      Number of received lines that were discarded because nobody read them.
+     */
+    public long getDroppedLines() {
+        return inputQueue.getDroppedItems();
+    }
+
+    public void sendAsync(String line) {
+        sendCommand(line);
+    }
+
+    /*
+      Sends a line without waiting.  The returned future completes when the laser acknowledges the line.
+      Any number of lines can be outstanding at once; acks are matched to lines in the order they were sent.
+
+      Lines are written by the serial writer thread, which combines all waiting lines into a single write.
+     */
+    public CompletableFuture<Void> sendCommand(String line) {
+        PendingCommand command = new PendingCommand(line);
+
+        if (!isOpen) {
+            command.ack.completeExceptionally(new LaserException("Connection closed."));
+            return command.ack;
+        }
+
+        writeLock.acquireUninterruptibly();
+        try {
+            // added before queueing, because the writer can send the line and the ack can arrive before put() returns
+            addInFlight(command);
+            if (outputQueue.put(command)) {
+                scheduleWrite();
             } else {
-                return null;
+                // never sent, so the next ack is not for this line
+                removeInFlight(command);
+                command.ack.completeExceptionally(new LaserException("Interrupted while sending."));
             }
-        } else {
-            return null;
+        } finally {
+            writeLock.release();
         }
+
+        return command.ack;
     }
 
-    public void sendAsync(String line) {
+    /*
+      Sends a line that produces a response.  The returned future completes with the next received line
+      starting with responseGCode, once the command has also been acknowledged.
+     */
+    public CompletableFuture<String> sendQuery(String line, String responseGCode) {
+        return sendWithResponse(line, router.expect(responseGCode));
+    }
+
+    /*
+      Sends a line that produces a multi-line response.  The returned future completes with the lines between
+      the header (starting with responseGCode) and the terminator, once the command has also been acknowledged.
+     */
+    public CompletableFuture<String[]> sendBlockQuery(String line, String responseGCode, String terminator) {
+        return sendWithResponse(line, router.expectBlock(responseGCode, terminator));
+    }
+
+    private <T> CompletableFuture<T> sendWithResponse(String line, CompletableFuture<T> response) {
+        // response must be registered before sending, or it might arrive first
+        CompletableFuture<T> result = sendCommand(line).thenCombine(response, (ack, value) -> value);
+        // if the caller gives up, then stop waiting for the response too
+        result.whenComplete((value, ex) -> response.cancel(false));
+        return result;
+    }
+
+    public boolean send(String line, long timeout) {
+        CompletableFuture<Void> ack = sendCommand(line);
         try {
-            serialOut.write(line);
-            serialOut.write('\n');
-            serialOut.flush();
+            if (timeout > 0) {
+                ack.get(timeout, TimeUnit.MILLISECONDS);
+            } else {
+                ack.get();
+            }
+            return true;
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            return false;
+        } catch (InterruptedException e) {
+            // let the caller see it too
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
 
-            for (Consumer<String> receiver : lineSentMonitors) {
-                receiver.accept(line);
+    /*
+      Number of bytes that have been sent but not yet acknowledged, and so may still be sitting in the firmware's receive buffer.
+     */
+    public int getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    public int getLinesInFlight() {
+        inFlightLock.acquireUninterruptibly();
+        try {
+            return inFlightLines.size();
+        } finally {
+            inFlightLock.release();
+        }
+    }
+
+    private void addInFlight(PendingCommand command) {
+        inFlightLock.acquireUninterruptibly();
+        try {
+            inFlightLines.add(command);
+            bytesInFlight += command.length;
+        } finally {
+            inFlightLock.release();
+        }
+    }
+
+    private void removeInFlight(PendingCommand command) {
+        inFlightLock.acquireUninterruptibly();
+        try {
+            if (inFlightLines.remove(command)) {
+                bytesInFlight -= command.length;
             }
-        } catch (IOException e) {
-            throw new InternalIOException("Exception writing line.", e);
+        } finally {
+            inFlightLock.release();
         }
     }
 
-    public boolean send(String line, long timeout) {
-        sendAsync(line);
+    private void onAck() {
+        PendingCommand command;
+        inFlightLock.acquireUninterruptibly();
+        try {
+            // acks arrive in the same order as lines were sent
+            command = inFlightLines.poll();
+            if (command != null) {
+                bytesInFlight -= command.length;
+            }
+        } finally {
+            inFlightLock.release();
+        }
 
-        return ackLock.waitForNotify(timeout);
+        // complete outside of lock, because callbacks may send more lines
+        if (command != null) {
+            acks.increment();
+            ackLatency.record(System.nanoTime() - command.sendTime);
+            command.ack.complete(null);
+        }
     }
 
     public void close() {
         isOpen = false;
         serialReader.interrupt();
+        if (ownWriteExecutor != null) {
+            ownWriteExecutor.shutdownNow();
+        }
         closeSafe(serialIn);
         closeSafe(serialOut);
-        serialPort.closePort();
+        transport.close();
+
+        failPending(new LaserException("Connection closed."));
+    }
+
+    private void failPending(LaserException ex) {
+        inFlightLock.acquireUninterruptibly();
+        try {
+            for (PendingCommand command : inFlightLines) {
+                command.ack.completeExceptionally(ex);
+            }
+            inFlightLines.clear();
+            bytesInFlight = 0;
+        } finally {
+            inFlightLock.release();
+        }
+
+        router.close();
     }
 
     public void addLineSentMonitor(Consumer<String> monitor) {
@@ -181,6 +527,13 @@ public class IOConnection {
         }
     }
 
+    /*
+      Line counts, ack latency and queue sizes of this connection.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public boolean isConnected() {
         return isOpen;
     }
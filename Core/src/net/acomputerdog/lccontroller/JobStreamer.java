@@ -0,0 +1,180 @@
+package net.acomputerdog.lccontroller;
+
+import net.acomputerdog.lccontroller.ex.LaserException;
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/*
+  Streams a compiled job to a laser.
+
+  The laser is put in absolute mode first, because the job's positions are absolute and the file's own G90 / G91
+  commands were left out when it was compiled.
+  Lines are sent until the firmware's receive buffer (LaserProperties.getRxBufferSize()) is full, and more are sent
+  as lines are acknowledged, or one line at a time if the buffer size is not known.  Everything after start() runs
+  in the ack callbacks on the connection's reader thread, so a job needs no thread of its own.  As each command is
+  acknowledged, the laser's position is set to the end of it.
+ */
+public class JobStreamer {
+    private final LaserCutter laser;
+    private final IOConnection connection;
+    private final CompiledJob job;
+    // source lines, for commands that are sent as written
+    private final List<String> lines;
+    private final int bufferSize;
+
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private final BiConsumer<Void, Throwable> ackHandler = this::onAck;
+    private final StringBuilder formatBuffer = new StringBuilder();
+
+    // guarded by this
+    private boolean started = false;
+    private boolean filling = false;
+    private String nextText = null;
+
+    private volatile int commandsSent = 0;
+    private volatile int commandsDone = 0;
+    private volatile String lastLine = null;
+
+    public JobStreamer(LaserCutter laser, CompiledJob job, List<String> lines) {
+        this(laser, job, lines, laser.getProperties().getRxBufferSize());
+    }
+
+    /*
+      Streams with a receive buffer size (bytes) other than the laser's, or one line at a time if it is 0.
+     */
+    public JobStreamer(LaserCutter laser, CompiledJob job, List<String> lines, int bufferSize) {
+        this.laser = laser;
+        this.connection = laser.getConnection();
+        this.job = job;
+        this.lines = lines;
+        this.bufferSize = bufferSize;
+    }
+
+    /*
+      Starts sending.  The returned future completes when every command has been acknowledged, or fails if the job
+      is stopped or the connection fails.
+     */
+    public synchronized CompletableFuture<Void> start() {
+        if (started) {
+            throw new IllegalStateException("Job has already been started.");
+        }
+        started = true;
+        connection.getMetrics().startJob();
+        result.whenComplete((value, error) -> connection.getMetrics().endJob());
+        if (job.size() == 0) {
+            result.complete(null);
+        } else {
+            // the job is started once the mode is set, so that one-line streaming never has two lines in flight
+            connection.sendCommand(CompiledJob.ABSOLUTE_MODE).whenComplete((value, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    fill();
+                }
+            });
+        }
+        return result;
+    }
+
+    /*
+      Stops sending.  Lines that were already sent are still run by the laser.
+     */
+    public void stop() {
+        result.completeExceptionally(new LaserException("Stopped early by command."));
+    }
+
+    public CompletableFuture<Void> getResult() {
+        return result;
+    }
+
+    public boolean isFinished() {
+        return result.isDone();
+    }
+
+    public CompiledJob getJob() {
+        return job;
+    }
+
+    public int getCommandsSent() {
+        return commandsSent;
+    }
+
+    /*
+      The last line that was sent, or null if none has been.
+     */
+    public String getLastLine() {
+        return lastLine;
+    }
+
+    /*
+      Number of commands that the laser has acknowledged.
+     */
+    public int getCommandsDone() {
+        return commandsDone;
+    }
+
+    // sends lines until the buffer is full
+    private synchronized void fill() {
+        // an ack can arrive while sending; the loop below picks it up
+        if (filling) {
+            return;
+        }
+        filling = true;
+        try {
+            while (commandsSent < job.size() && !result.isDone()) {
+                String text = getNextText();
+                if (bufferSize > 0) {
+                    int inFlight = connection.getBytesInFlight();
+                    // always allow one line through, even if it is too long for the buffer
+                    if (inFlight > 0 && inFlight + text.length() + 1 > bufferSize) {
+                        break;
+                    }
+                } else if (commandsDone < commandsSent) {
+                    break;
+                }
+
+                nextText = null;
+                lastLine = text;
+                commandsSent++;
+                connection.sendCommand(text).whenComplete(ackHandler);
+            }
+        } finally {
+            filling = false;
+        }
+    }
+
+    private void onAck(Void value, Throwable error) {
+        if (error != null) {
+            result.completeExceptionally(error);
+            return;
+        }
+        int done;
+        synchronized (this) {
+            done = ++commandsDone;
+        }
+        laser.setLocationFromMove(job.getX(done - 1), job.getY(done - 1));
+        if (done == job.size()) {
+            result.complete(null);
+        } else {
+            fill();
+        }
+    }
+
+    // compiled commands are written from the job, others are copied from the file
+    private String getNextText() {
+        if (nextText == null) {
+            int cmd = commandsSent;
+            if (job.getOpcode(cmd) == CompiledJob.OP_OTHER) {
+                nextText = lines.get(job.getSourceLine(cmd));
+            } else {
+                formatBuffer.setLength(0);
+                job.format(cmd, formatBuffer);
+                nextText = formatBuffer.toString();
+            }
+        }
+        return nextText;
+    }
+}
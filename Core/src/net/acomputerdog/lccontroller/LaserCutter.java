@@ -1,11 +1,15 @@
 package net.acomputerdog.lccontroller;
 
 import net.acomputerdog.lccontroller.ex.IOTimeoutException;
-import net.acomputerdog.lccontroller.ex.ResponseFormatException;
-import net.acomputerdog.lccontroller.util.NumberUtils;
+import net.acomputerdog.lccontroller.ex.LaserException;
+import net.acomputerdog.lccontroller.metrics.Metrics;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 public class LaserCutter {
     public static final long DEFAULT_TIMEOUT = 4000L;
@@ -13,13 +17,11 @@ public class LaserCutter {
     private final IOConnection connection;
     private final LaserProperties properties;
     private final String fwLine;
+    // only used by the serial reader thread
+    private final StatusParser statusParser = new StatusParser();
 
-    private Location currLocation = new Location(0, 0);
-    private long speed = 60;
-    private boolean motorsOn = false;
-    private boolean laserOn = false;
-    private int laserPower = 0;
-    private boolean laserSafetyEngaged = false;
+    // replaced as a whole on every change, so readers never see half of an update
+    private final AtomicReference<MachineState> state = new AtomicReference<>(MachineState.INITIAL);
 
     public LaserCutter(IOConnection connection, LaserProperties properties) {
         this.connection = connection;
@@ -27,180 +29,96 @@ public class LaserCutter {
 
         this.fwLine = connection.waitForLine(DEFAULT_TIMEOUT);
         if (fwLine == null) {
+            connection.getMetrics().counter(Metrics.TIMEOUTS).increment();
             throw new IOTimeoutException("Did not receive firmware ID line.");
         }
 
-        updateLocation();
-        enableMotors(motorsOn);
-        setLaserState(laserOn);
-        setLaserPower(laserPower);
-
         // listen in on gcode responses to keep state
         connection.addLineReceivedMonitor(line -> {
-            try {
-                // position update
-                if (line.startsWith("M114")) {
-                    readLocation(line);
-                    // laser power update
-                } else if (line.startsWith("M105")) {
-                    readLaser(line);
-                    // full update
-                } else if (line.startsWith("I1")) {
-                    readFullUpdate(line);
-                }
-
-            } catch (Exception ignore) {
+            if (statusParser.parse(line)) {
+                updateState(current -> current.withStatus(statusParser));
             }
         });
+
+        // pipeline initial state, then wait for all of it
+        CompletableFuture<Location> location = updateLocationAsync();
+        CompletableFuture<Void> motors = enableMotorsAsync(getMotorState());
+        CompletableFuture<Void> laser = setLaserStateAsync(isLaserOn());
+        await(CompletableFuture.allOf(location, motors, laser), "Laser did not respond to initial commands in time.");
     }
 
     public boolean sendLine(String line) {
         return connection.send(line, DEFAULT_TIMEOUT);
     }
 
+    public CompletableFuture<Void> sendLineAsync(String line) {
+        return connection.sendCommand(line);
+    }
+
     public void move(Location loc) {
-        if (!sendLine(String.format("G0 X%d Y%d F%d\n", loc.getXUM(), loc.getYUM(), speed))) {
-            throw new IOTimeoutException("Laser did not respond to G0 in time.");
-        }
+        await(moveAsync(loc), "Laser did not respond to G0 in time.");
+    }
+
+    public CompletableFuture<Void> moveAsync(Location loc) {
+        return connection.sendCommand(String.format("G0 X%d Y%d F%d", loc.getXUM(), loc.getYUM(), getSpeed()));
     }
 
     public long getSpeed() {
-        return speed;
+        return state.get().getSpeed();
     }
 
     public void setSpeed(long speed) {
-        this.speed = speed;
+        updateState(current -> current.withSpeed(speed));
     }
 
     public String[] getDebugInfo() {
-        if (!sendLine("M145\n")) {
-            throw new IOTimeoutException("Laser did not respond to M145 in time.");
-        }
+        return await(getDebugInfoAsync(), "Laser did not send debug info in time.");
+    }
 
-        String line = connection.waitForLine(DEFAULT_TIMEOUT);
-        if (line != null) {
-            if ("M145".equals(line.trim())) {
-                List<String> lines = new ArrayList<>();
-                while (true) {
-                    String l = connection.waitForLine(DEFAULT_TIMEOUT);
-                    if (l != null) {
-                        if ("EOL".equals(l.trim())) {
-                            break;
-                        } else {
-                            lines.add(l);
-                        }
-                    } else {
-                        throw new ResponseFormatException("Debug info did not end.");
-                    }
-                }
-                return lines.toArray(new String[lines.size()]);
-            } else {
-                throw new ResponseFormatException("Received reply from wrong command: '" + line + "'");
-            }
-        } else {
-            throw new IOTimeoutException("Laser did not respond in time.");
-        }
+    public CompletableFuture<String[]> getDebugInfoAsync() {
+        return connection.sendBlockQuery("M145", "M145", "EOL");
     }
 
-    public Location getLocation() {
-        return new Location(currLocation);
+    /*
+      Everything known about the machine, from a single update.  Cheap enough to call as often as needed.
+     */
+    public MachineState getState() {
+        return state.get();
     }
 
-    public void updateLocation() {
-        if (!sendLine("M114")) {
-            throw new IOTimeoutException("Laser did not respond to M114 in time.");
-        }
+    public Location getLocation() {
+        return state.get().getLocation();
+    }
 
-        String line = connection.waitForLine(DEFAULT_TIMEOUT);
-        if (line != null) {
-            String response = line.trim();
+    /*
+      Records the end of a move that the laser has acknowledged, as the current position.  Used while streaming a job,
+      instead of asking the laser where it is.  The laser may still be working through earlier moves, so the real
+      position can lag behind.
+     */
+    public void setLocationFromMove(long xUM, long yUM) {
+        updateState(current -> current.withLocation(xUM, yUM));
+    }
 
-            if (response.startsWith("M114")) {
-                readLocation(response);
-            } else {
-                throw new ResponseFormatException("Response with incorrect gcode: '" + response + "'");
-            }
-        } else {
-            throw new IOTimeoutException("Laser did not respond in time.");
-        }
+    public void updateLocation() {
+        await(updateLocationAsync(), "Laser did not respond to M114 in time.");
     }
 
-    private void readLocation(String response) {
-        String[] parts = response.split(" ");
-        for (String part : parts) {
-            // needs at least 3 chars: 'X:N...'
-            if (part.length() > 2) {
-                int split = part.indexOf(':');
-                if (split == 1) {
-                    // part with numbers
-                    String numPart = part.substring(2);
-                    long num = NumberUtils.parseAxisLoc(numPart);
-
-                    if (part.charAt(0) == 'X') {
-                        currLocation.setXUM(num);
-                    } else if (part.charAt(0) == 'Y') {
-                        currLocation.setYUM(num);
-                    }
-                }
-            }
-        }
+    /*
+      Requests the current position.  The state monitor records the response before the future completes.
+     */
+    public CompletableFuture<Location> updateLocationAsync() {
+        return connection.sendQuery("M114", "M114").thenApply(response -> getLocation());
     }
 
-    private void readFullUpdate(String line) {
-        int spaceIdx = line.indexOf(' ');
-        while (spaceIdx > -1) {
-            // need at least two characters after space
-            if (line.length() - spaceIdx < 3) {
-                break;
-            } else {
-                int nextIdx = line.indexOf(' ', spaceIdx + 1);
-                try {
-                    char ch = line.charAt(spaceIdx + 1);
-                    long num;
-                    if (nextIdx > -1) {
-                        num = Long.parseLong(line.substring(spaceIdx + 2, nextIdx));
-                    } else {
-                        num = Long.parseLong(line.substring(spaceIdx + 2));
-                    }
-
-                    switch (ch) {
-                        case 'X':
-                            currLocation.setXUM(num);
-                            break;
-                        case 'Y':
-                            currLocation.setYUM(num);
-                            break;
-                        case 'F':
-                            speed = num;
-                            break;
-                        case 'P':
-                            laserOn = (num == 1);
-                            break;
-                        case 'S':
-                            laserPower = (int) num;
-                            break;
-                        case 'T':
-                            laserSafetyEngaged = (num == 1);
-                            break;
-                        default:
-                            //invalid letter, ignore
-                            break;
-                    }
-                } catch (NumberFormatException e) {
-                    // bad number, ignore
-                }
-
-                spaceIdx = nextIdx;
-            }
-        }
+    public void updateLaser() {
+        await(updateLaserAsync(), "Laser did not respond to M105 in time.");
     }
 
-    private void readLaser(String line) {
-        int space = line.indexOf(' ');
-        if (space > -1 && line.length() - space > 2) {
-            this.laserPower = Integer.parseInt(line.substring(space + 1));
-            this.laserOn = this.laserPower >= 0;
-        }
+    /*
+      Requests the current laser power.  The state monitor records the response before the future completes.
+     */
+    public CompletableFuture<Void> updateLaserAsync() {
+        return connection.sendQuery("M105", "M105").thenRun(() -> {});
     }
 
     public void disconnect() {
@@ -208,30 +126,38 @@ public class LaserCutter {
     }
 
     public void enableMotors(boolean enable) {
-        if (!sendLine(enable ? "M17" : "M18")) {
-            throw new IOTimeoutException("Laser did not acknowledge in time.");
-        }
-        this.motorsOn = enable;
+        await(enableMotorsAsync(enable), "Laser did not acknowledge in time.");
+    }
+
+    public CompletableFuture<Void> enableMotorsAsync(boolean enable) {
+        return connection.sendCommand(enable ? "M17" : "M18").thenRun(() -> updateState(current -> current.withMotorsOn(enable)));
     }
 
     public void setLaserState(boolean enable) {
+        await(setLaserStateAsync(enable), "Laser did not acknowledge in time.");
+    }
+
+    public CompletableFuture<Void> setLaserStateAsync(boolean enable) {
         String line;
         if (enable) {
-            line = "M4 S" + String.valueOf(laserPower);
+            line = "M4 S" + String.valueOf(getLaserPower());
         } else {
             line = "M5";
         }
-        if (!sendLine(line)) {
-            throw new IOTimeoutException("Laser did not acknowledge in time.");
-        }
-        this.laserOn = enable;
+        return connection.sendCommand(line).thenRun(() -> updateState(current -> current.withLaserOn(enable)));
     }
 
     public void setLaserPower(int power) {
-        this.laserPower = power;
-        if (laserOn) {
+        await(setLaserPowerAsync(power), "Laser did not acknowledge in time.");
+    }
+
+    public CompletableFuture<Void> setLaserPowerAsync(int power) {
+        MachineState current = updateState(state -> state.withLaserPower(power));
+        if (current.isLaserOn()) {
             // send to laser
-            setLaserState(true);
+            return setLaserStateAsync(true);
+        } else {
+            return CompletableFuture.completedFuture(null);
         }
     }
 
@@ -240,15 +166,15 @@ public class LaserCutter {
     }
 
     public boolean getMotorState() {
-        return motorsOn;
+        return state.get().isMotorsOn();
     }
 
     public boolean isLaserOn() {
-        return laserOn;
+        return state.get().isLaserOn();
     }
 
     public int getLaserPower() {
-        return laserPower;
+        return state.get().getLaserPower();
     }
 
     public IOConnection getConnection() {
@@ -260,11 +186,22 @@ public class LaserCutter {
     }
 
     public void moveBy(long xUm, long yUm) {
-        move(new Location(currLocation.getXUM() + xUm, currLocation.getYUM() + yUm));
+        // one snapshot, so that X and Y are from the same update
+        MachineState current = state.get();
+        move(new Location(current.getXUM() + xUm, current.getYUM() + yUm));
     }
 
-    public void requestImmediateUpdate() {
-        connection.sendAsync("I1");
+    public CompletableFuture<Void> moveByAsync(long xUm, long yUm) {
+        // one snapshot, so that X and Y are from the same update
+        MachineState current = state.get();
+        return moveAsync(new Location(current.getXUM() + xUm, current.getYUM() + yUm));
+    }
+
+    /*
+      Requests a full state update without waiting for it.  The response is recorded by the state monitor.
+     */
+    public CompletableFuture<Void> requestImmediateUpdate() {
+        return connection.sendQuery("I1", "I1").thenRun(() -> {});
     }
 
     public LaserProperties getProperties() {
@@ -272,6 +209,37 @@ public class LaserCutter {
     }
 
     public boolean isLaserSafetyEngaged() {
-        return laserSafetyEngaged;
+        return state.get().isSafetyEngaged();
+    }
+
+    /*
+      Applies a change to the state.  Lock free; the change may run more than once if another thread updates the state
+      at the same time, so it must have no side effects.
+     */
+    private MachineState updateState(UnaryOperator<MachineState> change) {
+        return state.updateAndGet(change);
+    }
+
+    /*
+      Waits for an async command, converting failures into laser exceptions.
+     */
+    private <T> T await(CompletableFuture<T> future, String timeoutMessage) {
+        try {
+            return future.get(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            connection.getMetrics().counter(Metrics.TIMEOUTS).increment();
+            throw new IOTimeoutException(timeoutMessage);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOTimeoutException("Interrupted while waiting for laser.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LaserException) {
+                throw (LaserException) e.getCause();
+            } else {
+                throw new LaserException("Command failed.", e.getCause());
+            }
+        }
     }
 }
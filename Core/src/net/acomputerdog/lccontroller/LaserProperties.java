@@ -1,12 +1,45 @@
 package net.acomputerdog.lccontroller;
 
 public class LaserProperties {
+    // size of the firmware serial receive buffer (bytes).  Arduino-based boards use 64.
+    public static final int DEFAULT_RX_BUFFER_SIZE = 64;
+    // how far cut paths may be moved when simplifying them (µm).  Well under the width of a laser cut.
+    public static final int DEFAULT_PATH_TOLERANCE = 10;
+    // motion limits used to estimate run time (mm/s^2 and mm/min)
+    public static final int DEFAULT_ACCELERATION = 500;
+    public static final int DEFAULT_MAX_FEED = 6000;
+
     private final int bedWidth;
     private final int bedHeight;
+    private final int rxBufferSize;
+    private final int pathTolerance;
+    private final boolean arcsSupported;
+    private final int acceleration;
+    private final int maxFeed;
 
     public LaserProperties(int bedWidth, int bedHeight) {
+        this(bedWidth, bedHeight, DEFAULT_RX_BUFFER_SIZE);
+    }
+
+    public LaserProperties(int bedWidth, int bedHeight, int rxBufferSize) {
+        this(bedWidth, bedHeight, rxBufferSize, DEFAULT_PATH_TOLERANCE, false, DEFAULT_ACCELERATION, DEFAULT_MAX_FEED);
+    }
+
+    /*
+      rxBufferSize is the number of bytes that can be sent to the firmware without waiting for an ack.
+      A size of 0 disables streaming and sends one line per ack.
+      pathTolerance is how far (µm) cut paths may move when they are simplified.  0 only merges segments that are in line.
+      arcsSupported is true if the firmware understands G2 / G3, so that chords can be sent as arcs.
+      acceleration (mm/s^2) and maxFeed (mm/min) should match the firmware's motion settings.
+     */
+    public LaserProperties(int bedWidth, int bedHeight, int rxBufferSize, int pathTolerance, boolean arcsSupported, int acceleration, int maxFeed) {
         this.bedWidth = bedWidth;
         this.bedHeight = bedHeight;
+        this.rxBufferSize = rxBufferSize;
+        this.pathTolerance = pathTolerance;
+        this.arcsSupported = arcsSupported;
+        this.acceleration = acceleration;
+        this.maxFeed = maxFeed;
     }
 
     public int getBedWidth() {
@@ -16,4 +49,28 @@ public class LaserProperties {
     public int getBedHeight() {
         return bedHeight;
     }
+
+    public int getRxBufferSize() {
+        return rxBufferSize;
+    }
+
+    public int getPathTolerance() {
+        return pathTolerance;
+    }
+
+    public boolean supportsArcs() {
+        return arcsSupported;
+    }
+
+    public int getAcceleration() {
+        return acceleration;
+    }
+
+    public int getMaxFeed() {
+        return maxFeed;
+    }
+
+    public boolean isStreamingEnabled() {
+        return rxBufferSize > 0;
+    }
 }
@@ -70,9 +70,9 @@ public class Location {
     private void setFromSingleString(String pos) {
         if (!pos.isEmpty()) {
             if (pos.charAt(0) == 'X') {
-                xUM = NumberUtils.parseAxisLoc(pos.substring(1));
+                xUM = NumberUtils.parseAxisLoc(pos, 1, pos.length());
             } else if (pos.charAt(0) == 'Y') {
-                yUM = NumberUtils.parseAxisLoc(pos.substring(1));
+                yUM = NumberUtils.parseAxisLoc(pos, 1, pos.length());
             }
         }
     }
@@ -96,6 +96,6 @@ public class Location {
 
     @Override
     public String toString() {
-        return String.format("%d.%d, %d.%d (X%d Y%d)", (xUM / 1000L), (xUM % 1000L), (yUM / 1000L), (yUM % 1000L), xUM, yUM);
+        return String.format("%s, %s (X%d Y%d)", NumberUtils.formatAxisLoc(xUM), NumberUtils.formatAxisLoc(yUM), xUM, yUM);
     }
 }
@@ -0,0 +1,95 @@
+package net.acomputerdog.lccontroller;
+
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+  One laser in a MachineRegistry: its connection, status poller and the job it is running, if any.
+ */
+public class Machine {
+    private final String name;
+    private final LaserCutter laser;
+    private final StatusPoller poller;
+    private final AtomicReference<JobStreamer> currentJob = new AtomicReference<>();
+
+    Machine(String name, LaserCutter laser, StatusPoller poller) {
+        this.name = name;
+        this.laser = laser;
+        this.poller = poller;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LaserCutter getLaser() {
+        return laser;
+    }
+
+    public IOConnection getConnection() {
+        return laser.getConnection();
+    }
+
+    public MachineState getState() {
+        return laser.getState();
+    }
+
+    public StatusPoller getPoller() {
+        return poller;
+    }
+
+    public boolean isConnected() {
+        return laser.isConnected();
+    }
+
+    /*
+      Starts streaming a job.  Throws an IllegalStateException if the machine is already running one.  A job that
+      has finished no longer counts, even before its completion callbacks have run.
+     */
+    public JobStreamer startJob(CompiledJob job, List<String> lines) {
+        JobStreamer streamer = new JobStreamer(laser, job, lines);
+        JobStreamer previous;
+        do {
+            previous = currentJob.get();
+            if (previous != null && !previous.isFinished()) {
+                throw new IllegalStateException("Machine " + name + " is already running a job.");
+            }
+        } while (!currentJob.compareAndSet(previous, streamer));
+        poller.setStreaming(true);
+        streamer.start().whenComplete((value, error) -> {
+            // a job that was started in the meantime keeps streaming
+            if (currentJob.compareAndSet(streamer, null)) {
+                poller.setStreaming(false);
+            }
+        });
+        return streamer;
+    }
+
+    /*
+      The job that is running, or null if the machine is idle.
+     */
+    public JobStreamer getCurrentJob() {
+        JobStreamer job = currentJob.get();
+        return job != null && !job.isFinished() ? job : null;
+    }
+
+    public boolean isBusy() {
+        return getCurrentJob() != null;
+    }
+
+    void disconnect() {
+        JobStreamer job = currentJob.get();
+        if (job != null) {
+            job.stop();
+        }
+        poller.stop();
+        laser.disconnect();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,174 @@
+package net.acomputerdog.lccontroller;
+
+import net.acomputerdog.lccontroller.io.Transport;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+  Drives any number of lasers from one process, each with its own connection, state and job.
+
+  The machines share their threads as far as the serial ports allow.  Reads from a port block, so each machine has
+  one reader thread, started with a small stack.  Writes only need a thread while there are lines waiting, so all
+  machines share a small pool of writer threads.  Status polls for every machine run on one shared scheduler, and
+  jobs run in ack callbacks (see JobStreamer), so a machine has no other threads.
+ */
+public class MachineRegistry implements Closeable {
+    public static final int DEFAULT_WRITE_THREADS = 2;
+    // reader threads only frame lines, so they need far less than the default stack
+    private static final long READER_STACK_SIZE = 256 * 1024;
+
+    private final ExecutorService writePool;
+    private final ScheduledExecutorService scheduler;
+
+    // sorted by name, so that listings are stable
+    private final Map<String, Machine> machines = new ConcurrentSkipListMap<>();
+    // names that are being connected, guarded by itself
+    private final Set<String> connecting = new HashSet<>();
+    private final List<Consumer<Machine>> connectMonitors = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    public MachineRegistry() {
+        this(DEFAULT_WRITE_THREADS);
+    }
+
+    public MachineRegistry(int writeThreads) {
+        if (writeThreads < 1) {
+            throw new IllegalArgumentException("Need at least one write thread: " + writeThreads);
+        }
+        AtomicInteger writerCount = new AtomicInteger();
+        this.writePool = Executors.newFixedThreadPool(writeThreads, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Serial_Write_Pool-" + writerCount.incrementAndGet());
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Machine_Scheduler");
+            return thread;
+        });
+    }
+
+    /*
+      Connects to a laser and adds it under a unique name.  Waits for the laser to start up, like LaserCutter does.
+      If the laser does not answer, the transport is closed and the exception is thrown.
+     */
+    public Machine connect(String name, Transport transport, LaserProperties properties) {
+        synchronized (connecting) {
+            if (closed) {
+                throw new IllegalStateException("Machine registry is closed.");
+            }
+            if (machines.containsKey(name) || !connecting.add(name)) {
+                throw new IllegalArgumentException("There is already a machine named " + name + ".");
+            }
+        }
+
+        try {
+            IOConnection connection = new IOConnection(transport, readerThreads(name), writePool);
+            LaserCutter laser;
+            try {
+                laser = new LaserCutter(connection, properties);
+            } catch (RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+
+            StatusPoller poller = new StatusPoller(laser, scheduler);
+            Machine machine = new Machine(name, laser, poller);
+            poller.start();
+            machines.put(name, machine);
+            if (closed) {
+                // closed while connecting, so close() may have missed it
+                disconnect(name);
+                throw new IllegalStateException("Machine registry is closed.");
+            }
+            for (Consumer<Machine> monitor : connectMonitors) {
+                monitor.accept(machine);
+            }
+            return machine;
+        } finally {
+            synchronized (connecting) {
+                connecting.remove(name);
+            }
+        }
+    }
+
+    /*
+      The machine with a name, or null if there is none.
+     */
+    public Machine get(String name) {
+        return machines.get(name);
+    }
+
+    public List<Machine> getMachines() {
+        return new ArrayList<>(machines.values());
+    }
+
+    public int size() {
+        return machines.size();
+    }
+
+    /*
+      Adds a callback that is run with each machine after it connects, on the thread that connected it.
+     */
+    public void addConnectMonitor(Consumer<Machine> monitor) {
+        if (monitor != null) {
+            connectMonitors.add(monitor);
+        }
+    }
+
+    public void removeConnectMonitor(Consumer<Machine> monitor) {
+        if (monitor != null) {
+            connectMonitors.remove(monitor);
+        }
+    }
+
+    /*
+      Stops any job and closes the connection of a machine, and removes it.  Returns false if there was none.
+     */
+    public boolean disconnect(String name) {
+        Machine machine = machines.remove(name);
+        if (machine == null) {
+            return false;
+        }
+        machine.disconnect();
+        return true;
+    }
+
+    /*
+      Disconnects every machine and stops the shared threads.
+     */
+    @Override
+    public void close() {
+        synchronized (connecting) {
+            closed = true;
+        }
+        for (String name : new ArrayList<>(machines.keySet())) {
+            disconnect(name);
+        }
+        scheduler.shutdownNow();
+        writePool.shutdownNow();
+    }
+
+    private static ThreadFactory readerThreads(String name) {
+        return r -> {
+            Thread thread = new Thread(null, r, "Serial_Read_Thread-" + name, READER_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package net.acomputerdog.lccontroller;
+
+/*
+  Everything that is known about the machine at one point in time.
+
+  States are immutable.  LaserCutter publishes a new one through a single atomic reference whenever something
+  changes, so a reader always sees all fields from the same update.  The version goes up by one with every change,
+  so callers can skip work when the state has not changed since they last looked.
+ */
+public final class MachineState {
+    public static final MachineState INITIAL = new MachineState(0, 0, 0, 60, false, false, 0, false);
+
+    private final long version;
+    private final long xUM;
+    private final long yUM;
+    private final long speed;
+    private final boolean motorsOn;
+    private final boolean laserOn;
+    private final int laserPower;
+    private final boolean safetyEngaged;
+
+    private MachineState(long version, long xUM, long yUM, long speed, boolean motorsOn, boolean laserOn, int laserPower, boolean safetyEngaged) {
+        this.version = version;
+        this.xUM = xUM;
+        this.yUM = yUM;
+        this.speed = speed;
+        this.motorsOn = motorsOn;
+        this.laserOn = laserOn;
+        this.laserPower = laserPower;
+        this.safetyEngaged = safetyEngaged;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getXUM() {
+        return xUM;
+    }
+
+    public long getYUM() {
+        return yUM;
+    }
+
+    /*
+      A copy of the position.  Use getXUM() and getYUM() to read it without creating a Location.
+     */
+    public Location getLocation() {
+        return new Location(xUM, yUM);
+    }
+
+    public long getSpeed() {
+        return speed;
+    }
+
+    public boolean isMotorsOn() {
+        return motorsOn;
+    }
+
+    public boolean isLaserOn() {
+        return laserOn;
+    }
+
+    public int getLaserPower() {
+        return laserPower;
+    }
+
+    public boolean isSafetyEngaged() {
+        return safetyEngaged;
+    }
+
+    MachineState withLocation(long xUM, long yUM) {
+        return with(xUM, yUM, speed, motorsOn, laserOn, laserPower, safetyEngaged);
+    }
+
+    MachineState withSpeed(long speed) {
+        return with(xUM, yUM, speed, motorsOn, laserOn, laserPower, safetyEngaged);
+    }
+
+    MachineState withMotorsOn(boolean motorsOn) {
+        return with(xUM, yUM, speed, motorsOn, laserOn, laserPower, safetyEngaged);
+    }
+
+    MachineState withLaserOn(boolean laserOn) {
+        return with(xUM, yUM, speed, motorsOn, laserOn, laserPower, safetyEngaged);
+    }
+
+    MachineState withLaserPower(int laserPower) {
+        return with(xUM, yUM, speed, motorsOn, laserOn, laserPower, safetyEngaged);
+    }
+
+    /*
+      Applies the fields of the last line read by a StatusParser.
+     */
+    MachineState withStatus(StatusParser status) {
+        return with(status.has(StatusParser.FIELD_X) ? status.getXUM() : xUM,
+                status.has(StatusParser.FIELD_Y) ? status.getYUM() : yUM,
+                status.has(StatusParser.FIELD_SPEED) ? status.getSpeed() : speed,
+                motorsOn,
+                status.has(StatusParser.FIELD_LASER_ON) ? status.isLaserOn() : laserOn,
+                status.has(StatusParser.FIELD_LASER_POWER) ? status.getLaserPower() : laserPower,
+                status.has(StatusParser.FIELD_SAFETY) ? status.isSafetyEngaged() : safetyEngaged);
+    }
+
+    // this state if nothing changed, so that the version only goes up on real changes
+    private MachineState with(long xUM, long yUM, long speed, boolean motorsOn, boolean laserOn, int laserPower, boolean safetyEngaged) {
+        if (xUM == this.xUM && yUM == this.yUM && speed == this.speed && motorsOn == this.motorsOn
+                && laserOn == this.laserOn && laserPower == this.laserPower && safetyEngaged == this.safetyEngaged) {
+            return this;
+        }
+        return new MachineState(version + 1, xUM, yUM, speed, motorsOn, laserOn, laserPower, safetyEngaged);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MachineState{version=%d, location=%s, speed=%d, motorsOn=%b, laserOn=%b, laserPower=%d, safetyEngaged=%b}",
+                version, getLocation(), speed, motorsOn, laserOn, laserPower, safetyEngaged);
+    }
+}
@@ -0,0 +1,23 @@
+package net.acomputerdog.lccontroller;
+
+import java.util.concurrent.CompletableFuture;
+
+/*
+  A line that has been sent to the laser and is waiting for its ack.
+ */
+class PendingCommand {
+    final String line;
+
+    // bytes on the wire, including newline
+    final int length;
+
+    final CompletableFuture<Void> ack = new CompletableFuture<>();
+
+    // when the line was sent (ns), for the ack latency
+    final long sendTime = System.nanoTime();
+
+    PendingCommand(String line) {
+        this.line = line;
+        this.length = line.length() + 1;
+    }
+}
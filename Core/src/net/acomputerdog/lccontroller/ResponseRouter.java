@@ -0,0 +1,172 @@
+package net.acomputerdog.lccontroller;
+
+import net.acomputerdog.lccontroller.ex.LaserException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/*
+  Matches response lines from the laser to the requests that are waiting for them.
+
+  Lines are routed by their first word (the gcode that produced them), so queries for different gcodes never
+  receive each other's responses.  Requests for the same gcode are answered in the order they were made.
+  Block responses (such as M145) start with a header line and include every line up to a terminator line.
+ */
+public class ResponseRouter {
+    private final Semaphore lock = new Semaphore(1);
+    private final Map<String, Route> routes = new HashMap<>();
+
+    // block response currently being read, or null
+    private Waiter activeBlock;
+    private List<String> activeBlockLines;
+
+    /*
+      Waits for the next line starting with the specified gcode.
+     */
+    public CompletableFuture<String> expect(String gcode) {
+        Waiter waiter = addWaiter(gcode, null);
+
+        CompletableFuture<String> response = waiter.response.thenApply(lines -> lines[0]);
+        // if the caller gives up, then stop waiting so that a late response is not taken by this request
+        response.whenComplete((line, ex) -> waiter.response.cancel(false));
+        return response;
+    }
+
+    /*
+      Waits for a block response starting with the specified gcode.  The response contains all lines between
+      the header and the terminator, but not the header or terminator themselves.
+     */
+    public CompletableFuture<String[]> expectBlock(String gcode, String terminator) {
+        return addWaiter(gcode, terminator).response;
+    }
+
+    /*
+      Gives a received line to whichever request is waiting for it.  Returns false if no request wanted the line.
+     */
+    public boolean route(String line) {
+        Waiter completed = null;
+        String[] completedLines = null;
+
+        lock.acquireUninterruptibly();
+        try {
+            if (activeBlock != null) {
+                if (activeBlock.terminator.equals(line.trim())) {
+                    completed = activeBlock;
+                    completedLines = activeBlockLines.toArray(new String[activeBlockLines.size()]);
+                    activeBlock = null;
+                    activeBlockLines = null;
+                } else {
+                    activeBlockLines.add(line);
+                }
+            } else {
+                Route route = routes.get(getGCode(line));
+                if (route == null) {
+                    return false;
+                }
+
+                Waiter waiter = route.nextWaiter();
+                if (waiter == null) {
+                    return false;
+                }
+
+                if (waiter.terminator != null) {
+                    activeBlock = waiter;
+                    activeBlockLines = new ArrayList<>();
+                } else {
+                    completed = waiter;
+                    completedLines = new String[]{line};
+                }
+            }
+        } finally {
+            lock.release();
+        }
+
+        // complete outside of lock, because callbacks may send more queries
+        if (completed != null) {
+            completed.response.complete(completedLines);
+        }
+        return true;
+    }
+
+    /*
+      Fails all waiting requests.
+     */
+    public void close() {
+        List<Waiter> waiters = new ArrayList<>();
+
+        lock.acquireUninterruptibly();
+        try {
+            for (Route route : routes.values()) {
+                waiters.addAll(route.waiters);
+                route.waiters.clear();
+            }
+            if (activeBlock != null) {
+                waiters.add(activeBlock);
+                activeBlock = null;
+                activeBlockLines = null;
+            }
+        } finally {
+            lock.release();
+        }
+
+        LaserException ex = new LaserException("Connection closed.");
+        for (Waiter waiter : waiters) {
+            waiter.response.completeExceptionally(ex);
+        }
+    }
+
+    private Waiter addWaiter(String gcode, String terminator) {
+        Waiter waiter = new Waiter(terminator);
+
+        lock.acquireUninterruptibly();
+        try {
+            Route route = routes.get(gcode);
+            if (route == null) {
+                route = new Route();
+                routes.put(gcode, route);
+            }
+            route.waiters.add(waiter);
+        } finally {
+            lock.release();
+        }
+
+        return waiter;
+    }
+
+    private static String getGCode(String line) {
+        int start = 0;
+        while (start < line.length() && line.charAt(start) == ' ') {
+            start++;
+        }
+
+        int end = line.indexOf(' ', start);
+        if (end < 0) {
+            end = line.length();
+        }
+
+        return line.substring(start, end);
+    }
+
+    private static class Route {
+        private final Queue<Waiter> waiters = new LinkedList<>();
+
+        private Waiter nextWaiter() {
+            Waiter waiter = waiters.poll();
+            // skip requests that have timed out
+            while (waiter != null && waiter.response.isDone()) {
+                waiter = waiters.poll();
+            }
+            return waiter;
+        }
+    }
+
+    private static class Waiter {
+        private final String terminator;
+        private final CompletableFuture<String[]> response = new CompletableFuture<>();
+
+        private Waiter(String terminator) {
+            this.terminator = terminator;
+        }
+    }
+}
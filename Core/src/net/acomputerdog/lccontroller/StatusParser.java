@@ -0,0 +1,194 @@
+package net.acomputerdog.lccontroller;
+
+import net.acomputerdog.lccontroller.ex.ResponseFormatException;
+import net.acomputerdog.lccontroller.util.NumberUtils;
+
+/*
+  Reads the status responses that the laser sends: M114 (position), I1 (full update) and M105 (laser power).
+
+  Lines are read in place, without splitting or creating substrings, and the values are kept in this object until
+  the next line is parsed.  Nothing is allocated unless a field is malformed.  Malformed fields are skipped, and the
+  rest of the line is still read.  An instance is not thread safe; LaserCutter keeps one for the serial reader.
+
+    M114 X:<mm> Y:<mm>                          position in mm, such as "X:12.5"
+    I1 X<um> Y<um> F<speed> P<0|1> S<power> T<0|1> position in µm, laser on, power and safety
+    M105 <power>                                laser power, negative if the laser is off
+ */
+public class StatusParser {
+    public static final int FIELD_X = 1;
+    public static final int FIELD_Y = 1 << 1;
+    public static final int FIELD_SPEED = 1 << 2;
+    public static final int FIELD_LASER_ON = 1 << 3;
+    public static final int FIELD_LASER_POWER = 1 << 4;
+    public static final int FIELD_SAFETY = 1 << 5;
+
+    private static final String LOCATION_RESPONSE = "M114";
+    private static final String FULL_UPDATE_RESPONSE = "I1";
+    private static final String LASER_RESPONSE = "M105";
+
+    // fields read from the last line
+    private int fields;
+    private long xUM;
+    private long yUM;
+    private long speed;
+    private boolean laserOn;
+    private int laserPower;
+    private boolean safetyEngaged;
+
+    /*
+      Reads a line.  Returns false if it is not a status response, in which case no fields are set.
+     */
+    public boolean parse(CharSequence line) {
+        fields = 0;
+        if (isResponse(line, LOCATION_RESPONSE)) {
+            parseLocation(line);
+        } else if (isResponse(line, FULL_UPDATE_RESPONSE)) {
+            parseFullUpdate(line);
+        } else if (isResponse(line, LASER_RESPONSE)) {
+            parseLaser(line);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /*
+      True if the last line had the field (one of the FIELD_ constants).
+     */
+    public boolean has(int field) {
+        return (fields & field) != 0;
+    }
+
+    public long getXUM() {
+        return xUM;
+    }
+
+    public long getYUM() {
+        return yUM;
+    }
+
+    public long getSpeed() {
+        return speed;
+    }
+
+    public boolean isLaserOn() {
+        return laserOn;
+    }
+
+    public int getLaserPower() {
+        return laserPower;
+    }
+
+    public boolean isSafetyEngaged() {
+        return safetyEngaged;
+    }
+
+    private void parseLocation(CharSequence line) {
+        int end = line.length();
+        int start = LOCATION_RESPONSE.length();
+        while (start < end) {
+            int next = indexOfSpace(line, start + 1, end);
+            // "X:N..." after the space
+            int field = start + 1;
+            if (next - field > 2 && line.charAt(field + 1) == ':') {
+                try {
+                    char axis = line.charAt(field);
+                    if (axis == 'X') {
+                        xUM = NumberUtils.parseAxisLoc(line, field + 2, next);
+                        fields |= FIELD_X;
+                    } else if (axis == 'Y') {
+                        yUM = NumberUtils.parseAxisLoc(line, field + 2, next);
+                        fields |= FIELD_Y;
+                    }
+                } catch (ResponseFormatException e) {
+                    // bad number, skip it
+                }
+            }
+            start = next;
+        }
+    }
+
+    private void parseFullUpdate(CharSequence line) {
+        int end = line.length();
+        int start = FULL_UPDATE_RESPONSE.length();
+        while (start < end) {
+            int next = indexOfSpace(line, start + 1, end);
+            // a letter and at least one digit after the space
+            int field = start + 1;
+            if (next - field >= 2) {
+                try {
+                    long num = NumberUtils.parseLong(line, field + 1, next);
+                    switch (line.charAt(field)) {
+                        case 'X':
+                            xUM = num;
+                            fields |= FIELD_X;
+                            break;
+                        case 'Y':
+                            yUM = num;
+                            fields |= FIELD_Y;
+                            break;
+                        case 'F':
+                            speed = num;
+                            fields |= FIELD_SPEED;
+                            break;
+                        case 'P':
+                            laserOn = (num == 1);
+                            fields |= FIELD_LASER_ON;
+                            break;
+                        case 'S':
+                            laserPower = (int) num;
+                            fields |= FIELD_LASER_POWER;
+                            break;
+                        case 'T':
+                            safetyEngaged = (num == 1);
+                            fields |= FIELD_SAFETY;
+                            break;
+                        default:
+                            //invalid letter, ignore
+                            break;
+                    }
+                } catch (ResponseFormatException e) {
+                    // bad number, ignore
+                }
+            }
+            start = next;
+        }
+    }
+
+    private void parseLaser(CharSequence line) {
+        int start = LASER_RESPONSE.length() + 1;
+        int end = indexOfSpace(line, start, line.length());
+        if (end > start) {
+            try {
+                laserPower = (int) NumberUtils.parseLong(line, start, end);
+                laserOn = laserPower >= 0;
+                fields |= FIELD_LASER_POWER | FIELD_LASER_ON;
+            } catch (ResponseFormatException e) {
+                // bad number, ignore
+            }
+        }
+    }
+
+    // the response code, followed by a space or the end of the line
+    private static boolean isResponse(CharSequence line, String code) {
+        int length = code.length();
+        if (line.length() < length || (line.length() > length && line.charAt(length) != ' ')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (line.charAt(i) != code.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfSpace(CharSequence line, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (line.charAt(i) == ' ') {
+                return i;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,173 @@
+package net.acomputerdog.lccontroller;
+
+import net.acomputerdog.lccontroller.metrics.Metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+  Asks the laser for its status (I1) as often as the position is likely to be changing.
+
+  While idle, the laser is polled slowly.  When a move is sent outside of a job, such as a jog, polling speeds up
+  until ACTIVE_TIME after the last move, so the position follows the head.  While a job is streaming, the position
+  comes from the moves that the laser has acknowledged (see LaserCutter.setLocationFromMove()), so polling slows
+  down to only catch up on the laser and safety state and stays out of the way of the job's lines.
+
+  Only one poll is outstanding at a time; if the laser has not answered the last one, the next is skipped.
+ */
+public class StatusPoller {
+    public static final long IDLE_INTERVAL = 2000;
+    public static final long ACTIVE_INTERVAL = 100;
+    public static final long STREAMING_INTERVAL = 5000;
+    // how long to keep polling quickly after the last move (ms)
+    public static final long ACTIVE_TIME = 1500;
+
+    private final LaserCutter laser;
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder polls;
+    private final Consumer<String> moveMonitor = this::onLineSent;
+
+    // when the last move outside of a job was sent (ns)
+    private volatile long lastMoveTime;
+    private volatile boolean streaming = false;
+    private volatile boolean running = false;
+
+    // next poll, or null while a poll is running (it schedules the next one when done)
+    private ScheduledFuture<?> nextPoll;
+    // how long after it was scheduled the next poll runs (ms)
+    private volatile long nextInterval;
+    // only used by the poll that is running
+    private CompletableFuture<Void> lastPoll;
+
+    public StatusPoller(LaserCutter laser, ScheduledExecutorService scheduler) {
+        this.laser = laser;
+        this.scheduler = scheduler;
+        this.polls = laser.getConnection().getMetrics().counter(Metrics.STATUS_POLLS);
+        this.lastMoveTime = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ACTIVE_TIME);
+    }
+
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            laser.getConnection().addLineSentMonitor(moveMonitor);
+            schedule(getInterval());
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        laser.getConnection().removeLineSentMonitor(moveMonitor);
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+            nextPoll = null;
+        }
+    }
+
+    /*
+      Set while a job is streaming to the laser.  Moves of the job do not speed up polling.
+     */
+    public void setStreaming(boolean streaming) {
+        if (this.streaming == streaming) {
+            return;
+        }
+        this.streaming = streaming;
+        if (!streaming) {
+            // catch up on where the job left the head
+            pollSoon(ACTIVE_INTERVAL);
+        }
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /*
+      How long until the next poll should run (ms), for the current activity.
+     */
+    public long getInterval() {
+        if (streaming) {
+            return STREAMING_INTERVAL;
+        }
+        if (System.nanoTime() - lastMoveTime < TimeUnit.MILLISECONDS.toNanos(ACTIVE_TIME)) {
+            return ACTIVE_INTERVAL;
+        }
+        return IDLE_INTERVAL;
+    }
+
+    // called from the serial writer thread for every line, so it must be cheap
+    private void onLineSent(String line) {
+        if (!streaming && isMove(line)) {
+            lastMoveTime = System.nanoTime();
+            if (nextInterval > ACTIVE_INTERVAL) {
+                pollSoon(ACTIVE_INTERVAL);
+            }
+        }
+    }
+
+    // moves the next poll forward if it is further away than interval
+    private synchronized void pollSoon(long interval) {
+        // if the poll has already started, then it will pick the interval itself
+        if (running && nextPoll != null && nextInterval > interval && nextPoll.cancel(false)) {
+            schedule(interval);
+        }
+    }
+
+    private synchronized void schedule(long interval) {
+        nextInterval = interval;
+        nextPoll = scheduler.schedule(this::poll, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            nextPoll = null;
+        }
+        if (!laser.isConnected()) {
+            stop();
+            return;
+        }
+
+        // not under the lock, because sending can wait for the writer thread, which calls onLineSent()
+        try {
+            if (lastPoll == null || lastPoll.isDone()) {
+                lastPoll = laser.requestImmediateUpdate();
+                polls.increment();
+            }
+        } catch (Exception ignored) {
+            // keep polling, the next one may work
+        }
+
+        synchronized (this) {
+            if (running && nextPoll == null) {
+                schedule(getInterval());
+            }
+        }
+    }
+
+    // G0 to G3 (also written G00 to G03), which are the commands that move the head.  The code may be followed
+    // directly by the next word, as in "G1X10Y5".
+    private static boolean isMove(String line) {
+        if (line.isEmpty() || line.charAt(0) != 'G') {
+            return false;
+        }
+        int code = 0;
+        int i = 1;
+        for (; i < line.length(); i++) {
+            char chr = line.charAt(i);
+            if (chr < '0' || chr > '9') {
+                break;
+            }
+            code = code * 10 + (chr - '0');
+            if (code > 3) {
+                return false;
+            }
+        }
+        return i > 1;
+    }
+}
@@ -0,0 +1,15 @@
+package net.acomputerdog.lccontroller.ex;
+
+public class GCodeFormatException extends LaserException {
+    public GCodeFormatException() {
+        super();
+    }
+
+    public GCodeFormatException(String message) {
+        super(message);
+    }
+
+    public GCodeFormatException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
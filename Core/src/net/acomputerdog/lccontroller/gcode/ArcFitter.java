@@ -0,0 +1,234 @@
+package net.acomputerdog.lccontroller.gcode;
+
+/*
+  Replaces runs of short G1 chords with G2 / G3 arcs.
+
+  Runs of G1 moves with the laser on, at the same feed and power, are collected by RunCollector.  Starting from
+  each point the run is extended for as long as every point stays within the tolerance of a single circle, every
+  chord bulges from the circle by no more than the tolerance, and the points keep turning the same way.  Arcs must
+  replace at least MIN_CHORDS chords.  Only for firmware that supports G2 / G3; see LaserProperties.supportsArcs().
+ */
+public class ArcFitter extends RunCollector {
+    // longest run of chords that one arc can replace, which bounds the fitting time
+    private static final int MAX_CHORDS = 512;
+    // fewer chords than this are not worth an arc
+    private static final int MIN_CHORDS = 3;
+    // flatter arcs than this are left as lines (µm)
+    private static final double MAX_RADIUS = 1000000;
+
+    private final int tolerance;
+    private final StringBuilder lengthBuffer = new StringBuilder();
+
+    // position and flags carried over from commands that were replaced
+    private int lastX, lastY;
+    private byte carried;
+
+    // center and direction of the last successful fit
+    private double centerX, centerY;
+    private boolean clockwise;
+
+    private int linesBefore = 0;
+    private int linesAfter = 0;
+    private long bytesBefore = 0;
+    private long bytesAfter = 0;
+    private int arcs = 0;
+
+    /*
+      tolerance is the furthest that the path may move, in micrometers.
+     */
+    public ArcFitter(int tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("Tolerance cannot be negative: " + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    /*
+      Creates a job with arcs in place of chords.  The original job is not modified.
+     */
+    public CompiledJob fit(CompiledJob job) {
+        linesBefore = job.size();
+        bytesBefore = 0;
+        bytesAfter = 0;
+        arcs = 0;
+
+        CompiledJob fitted = collect(job);
+        linesAfter = fitted.size();
+        return fitted;
+    }
+
+    /*
+      Number of arcs created by the last call to fit().
+     */
+    public int getArcs() {
+        return arcs;
+    }
+
+    public int getLinesBefore() {
+        return linesBefore;
+    }
+
+    public int getLinesAfter() {
+        return linesAfter;
+    }
+
+    /*
+      Bytes sent for the commands that were replaced, including line endings.
+     */
+    public long getBytesBefore() {
+        return bytesBefore;
+    }
+
+    /*
+      Bytes sent for the arcs that replaced them.
+     */
+    public long getBytesAfter() {
+        return bytesAfter;
+    }
+
+    /*
+      Fits arcs to and writes out the current run.  Point -1 is the start of the run.
+     */
+    @Override
+    void writeRun(CompiledJob job, JobBuilder out) {
+        lastX = runStartX;
+        lastY = runStartY;
+        carried = 0;
+
+        int start = -1;
+        while (start < runLength - 1) {
+            // longest arc from start
+            int end = -1;
+            double fitX = 0, fitY = 0;
+            boolean fitClockwise = false;
+            int limit = Math.min(runLength - 1, start + MAX_CHORDS);
+            for (int e = start + MIN_CHORDS; e <= limit; e++) {
+                if (!fits(job, start, e)) {
+                    break;
+                }
+                end = e;
+                fitX = centerX;
+                fitY = centerY;
+                fitClockwise = clockwise;
+            }
+
+            if (end >= 0) {
+                writeArc(job, out, start, end, fitX, fitY, fitClockwise);
+                start = end;
+            } else {
+                writeLine(job, out, start + 1);
+                start++;
+            }
+        }
+    }
+
+    private void writeLine(CompiledJob job, JobBuilder out, int p) {
+        int cmd = run[p];
+        byte flag = (byte) (job.getFlags(cmd) | carried);
+        if (job.getX(cmd) != lastX) {
+            flag |= CompiledJob.FLAG_X;
+        }
+        if (job.getY(cmd) != lastY) {
+            flag |= CompiledJob.FLAG_Y;
+        }
+        out.copy(job, cmd, flag);
+        lastX = job.getX(cmd);
+        lastY = job.getY(cmd);
+        carried = 0;
+    }
+
+    private void writeArc(CompiledJob job, JobBuilder out, int start, int end, double cx, double cy, boolean cw) {
+        // flags of the chords, and the length of the lines that are replaced
+        byte flag = carried;
+        for (int p = start + 1; p <= end; p++) {
+            flag |= job.getFlags(run[p]);
+            lengthBuffer.setLength(0);
+            job.format(run[p], lengthBuffer);
+            bytesBefore += lengthBuffer.length() + 1;
+        }
+        flag = (byte) ((flag & (CompiledJob.FLAG_F | CompiledJob.FLAG_S | CompiledJob.FLAG_LASER_ON)) |
+                CompiledJob.FLAG_X | CompiledJob.FLAG_Y | CompiledJob.FLAG_IJ);
+
+        int first = run[start + 1];
+        int last = run[end];
+        int arcI = (int) Math.round(cx - pointX(job, start));
+        int arcJ = (int) Math.round(cy - pointY(job, start));
+        byte opcode = cw ? CompiledJob.OP_ARC_CW : CompiledJob.OP_ARC_CCW;
+        out.add(opcode, flag, job.getX(last), job.getY(last), arcI, arcJ, job.getFeed(last), job.getPower(last), job.getSourceLine(first));
+
+        lengthBuffer.setLength(0);
+        CompiledJob.format(opcode, flag, job.getX(last), job.getY(last), arcI, arcJ, job.getFeed(last), job.getPower(last), lengthBuffer);
+        bytesAfter += lengthBuffer.length() + 1;
+
+        lastX = job.getX(last);
+        lastY = job.getY(last);
+        carried = 0;
+        arcs++;
+    }
+
+    /*
+      Checks if points start to end lie on one arc.  If they do, the arc is left in centerX, centerY and clockwise.
+     */
+    private boolean fits(CompiledJob job, int start, int end) {
+        int mid = (start + end) >>> 1;
+        double ax = pointX(job, start), ay = pointY(job, start);
+        double bx = pointX(job, mid), by = pointY(job, mid);
+        double ex = pointX(job, end), ey = pointY(job, end);
+
+        // circle through the three points
+        double d = 2 * (ax * (by - ey) + bx * (ey - ay) + ex * (ay - by));
+        if (Math.abs(d) < 1e-9) {
+            return false;
+        }
+        double aSq = ax * ax + ay * ay, bSq = bx * bx + by * by, eSq = ex * ex + ey * ey;
+        double cx = (aSq * (by - ey) + bSq * (ey - ay) + eSq * (ay - by)) / d;
+        double cy = (aSq * (ex - bx) + bSq * (ax - ex) + eSq * (bx - ax)) / d;
+        double radius = Math.hypot(ax - cx, ay - cy);
+        if (radius > MAX_RADIUS) {
+            return false;
+        }
+
+        double sweep = 0;
+        double lastAngle = Math.atan2(ay - cy, ax - cx);
+        double lastPx = ax, lastPy = ay;
+        for (int p = start + 1; p <= end; p++) {
+            double px = pointX(job, p), py = pointY(job, p);
+
+            // point must be on the circle
+            if (Math.abs(Math.hypot(px - cx, py - cy) - radius) > tolerance) {
+                return false;
+            }
+
+            // chord must not cut too far inside of the circle
+            double halfChord = Math.hypot(px - lastPx, py - lastPy) / 2;
+            if (halfChord >= radius || radius - Math.sqrt(radius * radius - halfChord * halfChord) > tolerance) {
+                return false;
+            }
+
+            // and must keep turning the same way
+            double angle = Math.atan2(py - cy, px - cx);
+            double delta = angle - lastAngle;
+            if (delta > Math.PI) {
+                delta -= 2 * Math.PI;
+            } else if (delta < -Math.PI) {
+                delta += 2 * Math.PI;
+            }
+            if (delta == 0 || (sweep != 0 && (delta > 0) != (sweep > 0))) {
+                return false;
+            }
+            sweep += delta;
+            if (Math.abs(sweep) >= 2 * Math.PI) {
+                return false;
+            }
+
+            lastAngle = angle;
+            lastPx = px;
+            lastPy = py;
+        }
+
+        centerX = cx;
+        centerY = cy;
+        clockwise = sweep < 0;
+        return true;
+    }
+}
@@ -0,0 +1,321 @@
+package net.acomputerdog.lccontroller.gcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+  A gcode job compiled into columns of primitives, one entry per command.
+
+  Positions are absolute and in micrometers.  Every column has a value for every command: fields that a
+  command does not set carry over from the previous command, so the position, feed and power in effect after
+  any command can be read directly.  Flags record which fields were actually present so that the command can
+  be written back out.
+ */
+public class CompiledJob {
+    // positions are absolute, so the laser must be in absolute mode before a job is run
+    public static final String ABSOLUTE_MODE = "G90";
+
+    // command that is sent exactly as it appears in the source file
+    public static final byte OP_OTHER = 0;
+    public static final byte OP_TRAVEL = 1;     // G0
+    public static final byte OP_LINEAR = 2;     // G1
+    public static final byte OP_ARC_CW = 3;     // G2
+    public static final byte OP_ARC_CCW = 4;    // G3
+    public static final byte OP_LASER_ON = 5;   // M3
+    public static final byte OP_LASER_DYNAMIC = 6; // M4
+    public static final byte OP_LASER_OFF = 7;  // M5
+
+    public static final byte FLAG_X = 1;
+    public static final byte FLAG_Y = 1 << 1;
+    public static final byte FLAG_F = 1 << 2;
+    public static final byte FLAG_S = 1 << 3;
+    public static final byte FLAG_IJ = 1 << 4;
+    // laser is firing during this command
+    public static final byte FLAG_LASER_ON = 1 << 5;
+
+    // cache file format
+    private static final int MAGIC = 0x4C434A42; // "LCJB"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 16;
+    // bytes per command across all columns
+    private static final int COMMAND_SIZE = 1 + 1 + 4 + 4 + 4 + 4 + 4 + 2 + 4;
+
+    private final int count;
+    private final byte[] opcodes;
+    private final byte[] flags;
+    private final int[] x;
+    private final int[] y;
+    private final int[] arcI;
+    private final int[] arcJ;
+    private final int[] feed;
+    private final short[] power;
+    private final int[] sourceLine;
+
+    private final int minX, minY, maxX, maxY;
+
+    CompiledJob(int count, byte[] opcodes, byte[] flags, int[] x, int[] y, int[] arcI, int[] arcJ, int[] feed, short[] power, int[] sourceLine) {
+        this.count = count;
+        this.opcodes = opcodes;
+        this.flags = flags;
+        this.x = x;
+        this.y = y;
+        this.arcI = arcI;
+        this.arcJ = arcJ;
+        this.feed = feed;
+        this.power = power;
+        this.sourceLine = sourceLine;
+
+        // bounds of all motion
+        int minX = 0, minY = 0, maxX = 0, maxY = 0;
+        boolean first = true;
+        for (int i = 0; i < count; i++) {
+            if (isMotion(opcodes[i])) {
+                if (first) {
+                    minX = maxX = x[i];
+                    minY = maxY = y[i];
+                    first = false;
+                } else {
+                    minX = Math.min(minX, x[i]);
+                    minY = Math.min(minY, y[i]);
+                    maxX = Math.max(maxX, x[i]);
+                    maxY = Math.max(maxY, y[i]);
+                }
+            }
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public byte getOpcode(int cmd) {
+        return opcodes[cmd];
+    }
+
+    public byte getFlags(int cmd) {
+        return flags[cmd];
+    }
+
+    public boolean hasFlag(int cmd, byte flag) {
+        return (flags[cmd] & flag) != 0;
+    }
+
+    public boolean isLaserOn(int cmd) {
+        return (flags[cmd] & FLAG_LASER_ON) != 0;
+    }
+
+    /*
+      X position after the command, in micrometers.
+     */
+    public int getX(int cmd) {
+        return x[cmd];
+    }
+
+    public int getY(int cmd) {
+        return y[cmd];
+    }
+
+    /*
+      Arc center offset from the start of the arc, in micrometers.  Only meaningful for arcs.
+     */
+    public int getArcI(int cmd) {
+        return arcI[cmd];
+    }
+
+    public int getArcJ(int cmd) {
+        return arcJ[cmd];
+    }
+
+    public int getFeed(int cmd) {
+        return feed[cmd];
+    }
+
+    public int getPower(int cmd) {
+        return power[cmd];
+    }
+
+    /*
+      Line of the source file that this command came from.
+     */
+    public int getSourceLine(int cmd) {
+        return sourceLine[cmd];
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+
+    /*
+      Writes a command as a line of gcode.  OP_OTHER commands must be copied from the source file instead.
+     */
+    public void format(int cmd, StringBuilder out) {
+        if (opcodes[cmd] == OP_OTHER) {
+            throw new IllegalArgumentException("Command " + cmd + " must be copied from source line " + sourceLine[cmd]);
+        }
+        format(opcodes[cmd], flags[cmd], x[cmd], y[cmd], arcI[cmd], arcJ[cmd], feed[cmd], power[cmd], out);
+    }
+
+    /*
+      Writes a command that is not part of a job as a line of gcode.
+     */
+    public static void format(byte opcode, byte flag, int x, int y, int arcI, int arcJ, int feed, int power, StringBuilder out) {
+        switch (opcode) {
+            case OP_TRAVEL:
+                out.append("G0");
+                break;
+            case OP_LINEAR:
+                out.append("G1");
+                break;
+            case OP_ARC_CW:
+                out.append("G2");
+                break;
+            case OP_ARC_CCW:
+                out.append("G3");
+                break;
+            case OP_LASER_ON:
+                out.append("M3");
+                break;
+            case OP_LASER_DYNAMIC:
+                out.append("M4");
+                break;
+            case OP_LASER_OFF:
+                out.append("M5");
+                break;
+            default:
+                throw new IllegalArgumentException("Opcode " + opcode + " cannot be formatted");
+        }
+
+        if ((flag & FLAG_X) != 0) {
+            out.append(" X").append(x);
+        }
+        if ((flag & FLAG_Y) != 0) {
+            out.append(" Y").append(y);
+        }
+        if ((flag & FLAG_IJ) != 0) {
+            out.append(" I").append(arcI).append(" J").append(arcJ);
+        }
+        if ((flag & FLAG_F) != 0) {
+            out.append(" F").append(feed);
+        }
+        if ((flag & FLAG_S) != 0) {
+            out.append(" S").append(power);
+        }
+    }
+
+    public static boolean isMotion(byte opcode) {
+        return opcode == OP_TRAVEL || opcode == OP_LINEAR || opcode == OP_ARC_CW || opcode == OP_ARC_CCW;
+    }
+
+    /*
+      Saves the job to a cache file, tagged with the size and modification time of its source.
+     */
+    public void write(File cacheFile, File source) throws IOException {
+        long size = HEADER_SIZE + (long) count * COMMAND_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(source.length());
+            out.putLong(source.lastModified());
+            out.putInt(count);
+            out.putInt(minX).putInt(minY).putInt(maxX).putInt(maxY);
+
+            out.put(opcodes, 0, count);
+            out.put(flags, 0, count);
+            putInts(out, x);
+            putInts(out, y);
+            putInts(out, arcI);
+            putInts(out, arcJ);
+            putInts(out, feed);
+            out.asShortBuffer().put(power, 0, count);
+            out.position(out.position() + count * 2);
+            putInts(out, sourceLine);
+
+            out.force();
+        }
+    }
+
+    /*
+      Loads a job from a cache file.  Returns null if the cache does not exist or does not match the source.
+     */
+    public static CompiledJob read(File cacheFile, File source) throws IOException {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            if (in.getLong() != source.length() || in.getLong() != source.lastModified()) {
+                return null;
+            }
+
+            int count = in.getInt();
+            if (count < 0 || channel.size() != HEADER_SIZE + (long) count * COMMAND_SIZE) {
+                return null;
+            }
+            // bounds are recalculated
+            in.position(in.position() + 16);
+
+            byte[] opcodes = new byte[count];
+            in.get(opcodes);
+            byte[] flags = new byte[count];
+            in.get(flags);
+            int[] x = getInts(in, count);
+            int[] y = getInts(in, count);
+            int[] arcI = getInts(in, count);
+            int[] arcJ = getInts(in, count);
+            int[] feed = getInts(in, count);
+            short[] power = new short[count];
+            in.asShortBuffer().get(power);
+            in.position(in.position() + count * 2);
+            int[] sourceLine = getInts(in, count);
+
+            return new CompiledJob(count, opcodes, flags, x, y, arcI, arcJ, feed, power, sourceLine);
+        }
+    }
+
+    private void putInts(ByteBuffer out, int[] column) {
+        out.asIntBuffer().put(column, 0, count);
+        out.position(out.position() + count * 4);
+    }
+
+    private static int[] getInts(ByteBuffer in, int count) {
+        int[] column = new int[count];
+        in.asIntBuffer().get(column);
+        in.position(in.position() + count * 4);
+        return column;
+    }
+}
@@ -0,0 +1,135 @@
+package net.acomputerdog.lccontroller.gcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/*
+  Read-only view of a gcode file.
+
+  The file is memory mapped instead of read into the heap, and only the offset of each line is stored, so
+  memory use does not depend on the size of the file.  Lines are created on demand when they are requested.
+  Line endings (\n or \r\n) are not included in lines.
+ */
+public class GCodeFile extends AbstractList<String> implements RandomAccess {
+    // guess at average line length, used to size the index
+    private static final int ESTIMATED_LINE_LENGTH = 24;
+
+    private final File file;
+    private final MappedByteBuffer data;
+
+    // start of each line, plus one extra entry for the end of the last line
+    private final int[] lineStarts;
+    private final int lineCount;
+
+    private GCodeFile(File file, MappedByteBuffer data, int[] lineStarts, int lineCount) {
+        this.file = file;
+        this.data = data;
+        this.lineStarts = lineStarts;
+        this.lineCount = lineCount;
+    }
+
+    @Override
+    public String get(int line) {
+        int start = getLineStart(line);
+        int length = getLineLength(line);
+
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = data.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public int size() {
+        return lineCount;
+    }
+
+    /*
+      Offset in the file of the first byte of a line.
+     */
+    public int getLineStart(int line) {
+        if (line < 0 || line >= lineCount) {
+            throw new IndexOutOfBoundsException("Line " + line + " is out of bounds, file has " + lineCount + " lines.");
+        }
+        return lineStarts[line];
+    }
+
+    /*
+      Length of a line in bytes, not including the line ending.
+     */
+    public int getLineLength(int line) {
+        int start = getLineStart(line);
+        // next line starts after this line's newline
+        int end = lineStarts[line + 1];
+        if (end > start && data.get(end - 1) == '\n') {
+            end--;
+        }
+        if (end > start && data.get(end - 1) == '\r') {
+            end--;
+        }
+        return end - start;
+    }
+
+    /*
+      Reads a single byte of the file.  Used by parsers that work without creating strings.
+     */
+    public byte getByte(int offset) {
+        return data.get(offset);
+    }
+
+    public long getSizeBytes() {
+        return data.capacity();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public static GCodeFile load(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("GCode file is too large (" + size + " bytes), maximum is " + Integer.MAX_VALUE + " bytes.");
+            }
+
+            // mapping stays valid after channel is closed
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int length = (int) size;
+            int[] lineStarts = new int[Math.max(16, length / ESTIMATED_LINE_LENGTH)];
+            int lineCount = 0;
+
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                if (data.get(i) == '\n') {
+                    if (lineCount + 1 >= lineStarts.length) {
+                        lineStarts = Arrays.copyOf(lineStarts, lineStarts.length + (lineStarts.length >> 1));
+                    }
+                    lineStarts[lineCount] = lineStart;
+                    lineCount++;
+                    lineStart = i + 1;
+                }
+            }
+
+            // last line may not end with a newline
+            if (lineStart < length) {
+                if (lineCount + 1 >= lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount + 2);
+                }
+                lineStarts[lineCount] = lineStart;
+                lineCount++;
+            }
+            lineStarts[lineCount] = length;
+
+            return new GCodeFile(file, data, Arrays.copyOf(lineStarts, lineCount + 1), lineCount);
+        }
+    }
+}
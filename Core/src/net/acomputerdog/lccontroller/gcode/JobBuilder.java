@@ -0,0 +1,85 @@
+package net.acomputerdog.lccontroller.gcode;
+
+import java.util.Arrays;
+
+/*
+  Growable columns for creating a CompiledJob from the output of a processing stage.
+ */
+class JobBuilder {
+    private int count = 0;
+    private byte[] opcodes;
+    private byte[] flags;
+    private int[] x;
+    private int[] y;
+    private int[] arcI;
+    private int[] arcJ;
+    private int[] feed;
+    private short[] power;
+    private int[] sourceLine;
+
+    JobBuilder(int capacity) {
+        capacity = Math.max(16, capacity);
+        opcodes = new byte[capacity];
+        flags = new byte[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+        arcI = new int[capacity];
+        arcJ = new int[capacity];
+        feed = new int[capacity];
+        power = new short[capacity];
+        sourceLine = new int[capacity];
+    }
+
+    void add(byte opcode, byte flag, int cmdX, int cmdY, int cmdI, int cmdJ, int cmdFeed, int cmdPower, int line) {
+        if (count == opcodes.length) {
+            int capacity = count + (count >> 1) + 1;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            arcI = Arrays.copyOf(arcI, capacity);
+            arcJ = Arrays.copyOf(arcJ, capacity);
+            feed = Arrays.copyOf(feed, capacity);
+            power = Arrays.copyOf(power, capacity);
+            sourceLine = Arrays.copyOf(sourceLine, capacity);
+        }
+        opcodes[count] = opcode;
+        flags[count] = flag;
+        x[count] = cmdX;
+        y[count] = cmdY;
+        arcI[count] = cmdI;
+        arcJ[count] = cmdJ;
+        feed[count] = cmdFeed;
+        power[count] = (short) cmdPower;
+        sourceLine[count] = line;
+        count++;
+    }
+
+    /*
+      Adds a command from another job, with different flags.
+     */
+    void copy(CompiledJob job, int cmd, byte flag) {
+        add(job.getOpcode(cmd), flag, job.getX(cmd), job.getY(cmd), job.getArcI(cmd), job.getArcJ(cmd), job.getFeed(cmd), job.getPower(cmd), job.getSourceLine(cmd));
+    }
+
+    void copy(CompiledJob job, int cmd) {
+        copy(job, cmd, job.getFlags(cmd));
+    }
+
+    int size() {
+        return count;
+    }
+
+    CompiledJob build() {
+        return new CompiledJob(count,
+                Arrays.copyOf(opcodes, count),
+                Arrays.copyOf(flags, count),
+                Arrays.copyOf(x, count),
+                Arrays.copyOf(y, count),
+                Arrays.copyOf(arcI, count),
+                Arrays.copyOf(arcJ, count),
+                Arrays.copyOf(feed, count),
+                Arrays.copyOf(power, count),
+                Arrays.copyOf(sourceLine, count));
+    }
+}
@@ -0,0 +1,371 @@
+package net.acomputerdog.lccontroller.gcode;
+
+import net.acomputerdog.lccontroller.ex.GCodeFormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+  Compiles gcode into a CompiledJob.
+
+  Parsing works directly on the bytes of the file, without creating strings.  Coordinates without a decimal
+  point are micrometers (the firmware's native unit); coordinates with a decimal point are millimeters.
+  G90 / G91 are applied while compiling, so all positions in the compiled job are absolute, and the laser must be
+  put in absolute mode (CompiledJob.ABSOLUTE_MODE) before running it.
+ */
+public class JobCompiler {
+    public static final String CACHE_EXTENSION = ".lcjob";
+
+    // state while compiling
+    private long posX = 0;
+    private long posY = 0;
+    private int feed = 0;
+    private int power = 0;
+    private boolean laserOn = false;
+    private boolean relative = false;
+
+    // output columns
+    private int count = 0;
+    private byte[] opcodes;
+    private byte[] flags;
+    private int[] x;
+    private int[] y;
+    private int[] arcI;
+    private int[] arcJ;
+    private int[] feeds;
+    private short[] powers;
+    private int[] sourceLines;
+
+    // last number read by readNumber()
+    private long numInt;
+    private int numFrac;
+    private boolean numDecimal;
+    private boolean numNegative;
+
+    private JobCompiler(int capacity) {
+        opcodes = new byte[capacity];
+        flags = new byte[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+        arcI = new int[capacity];
+        arcJ = new int[capacity];
+        feeds = new int[capacity];
+        powers = new short[capacity];
+        sourceLines = new int[capacity];
+    }
+
+    /*
+      Loads the compiled form of a file from its cache, or compiles and caches it if the cache is missing or out of date.
+     */
+    public static CompiledJob compileCached(GCodeFile file) throws IOException {
+        File source = file.getFile();
+        File cache = getCacheFile(source);
+
+        try {
+            CompiledJob job = CompiledJob.read(cache, source);
+            if (job != null) {
+                return job;
+            }
+        } catch (IOException ignored) {
+            // bad cache, just recompile
+        }
+
+        CompiledJob job = compile(file);
+        try {
+            job.write(cache, source);
+        } catch (IOException e) {
+            // cache is optional, the source may be on a read-only location
+            cache.delete();
+        }
+        return job;
+    }
+
+    public static File getCacheFile(File source) {
+        return new File(source.getPath() + CACHE_EXTENSION);
+    }
+
+    public static CompiledJob compile(GCodeFile file) {
+        JobCompiler compiler = new JobCompiler(Math.max(16, file.size()));
+        for (int line = 0; line < file.size(); line++) {
+            compiler.compileLine(file, line);
+        }
+        return compiler.finish();
+    }
+
+    private CompiledJob finish() {
+        return new CompiledJob(count,
+                Arrays.copyOf(opcodes, count),
+                Arrays.copyOf(flags, count),
+                Arrays.copyOf(x, count),
+                Arrays.copyOf(y, count),
+                Arrays.copyOf(arcI, count),
+                Arrays.copyOf(arcJ, count),
+                Arrays.copyOf(feeds, count),
+                Arrays.copyOf(powers, count),
+                Arrays.copyOf(sourceLines, count));
+    }
+
+    private void compileLine(GCodeFile file, int line) {
+        int pos = file.getLineStart(line);
+        int end = pos + file.getLineLength(line);
+
+        int gCode = -1;
+        int mCode = -1;
+        int codes = 0;
+        // these are tracked separately from gCode, because they matter even on lines with more than one code
+        int moveCode = -1;
+        boolean setPosition = false;
+        int distanceMode = -1;
+        boolean unknownWords = false;
+        byte present = 0;
+        long newX = 0, newY = 0, newI = 0, newJ = 0;
+        int newFeed = feed, newPower = power;
+
+        while (pos < end) {
+            byte chr = file.getByte(pos);
+
+            // comments
+            if (chr == ';') {
+                break;
+            } else if (chr == '(') {
+                while (pos < end && file.getByte(pos) != ')') {
+                    pos++;
+                }
+                pos++;
+                continue;
+            } else if (chr == ' ' || chr == '\t') {
+                pos++;
+                continue;
+            }
+
+            char letter = Character.toUpperCase((char) chr);
+            int numEnd = readNumber(file, pos + 1, end);
+            if (numEnd == pos + 1) {
+                // letter without a number
+                unknownWords = true;
+                pos++;
+                continue;
+            }
+            pos = numEnd;
+
+            switch (letter) {
+                case 'G':
+                    gCode = (int) numInt;
+                    if (gCode >= 0 && gCode <= 3) {
+                        moveCode = gCode;
+                    } else if (gCode == 92) {
+                        setPosition = true;
+                    } else if (gCode == 90 || gCode == 91) {
+                        distanceMode = gCode;
+                    }
+                    codes++;
+                    break;
+                case 'M':
+                    mCode = (int) numInt;
+                    codes++;
+                    break;
+                case 'X':
+                    newX = coordinate();
+                    present |= CompiledJob.FLAG_X;
+                    break;
+                case 'Y':
+                    newY = coordinate();
+                    present |= CompiledJob.FLAG_Y;
+                    break;
+                case 'I':
+                    newI = coordinate();
+                    present |= CompiledJob.FLAG_IJ;
+                    break;
+                case 'J':
+                    newJ = coordinate();
+                    present |= CompiledJob.FLAG_IJ;
+                    break;
+                case 'F':
+                    newFeed = (int) rounded();
+                    present |= CompiledJob.FLAG_F;
+                    break;
+                case 'S':
+                    newPower = (int) rounded();
+                    present |= CompiledJob.FLAG_S;
+                    break;
+                case 'N':
+                    // line number, not needed
+                    break;
+                default:
+                    unknownWords = true;
+                    break;
+            }
+        }
+
+        // blank or comment-only line
+        if (codes == 0 && present == 0 && !unknownWords) {
+            return;
+        }
+
+        // position after this line
+        long targetX = posX;
+        long targetY = posY;
+        if ((present & CompiledJob.FLAG_X) != 0) {
+            targetX = relative ? posX + newX : newX;
+        }
+        if ((present & CompiledJob.FLAG_Y) != 0) {
+            targetY = relative ? posY + newY : newY;
+        }
+
+        byte opcode = CompiledJob.OP_OTHER;
+        if (codes == 1 && !unknownWords) {
+            if (gCode >= 0 && gCode <= 3) {
+                opcode = (byte) (CompiledJob.OP_TRAVEL + gCode);
+            } else if (gCode == 90 || gCode == 91) {
+                // positions are made absolute, so the mode is not needed
+                relative = gCode == 91;
+                return;
+            } else if (mCode == 3 || mCode == 4) {
+                opcode = mCode == 3 ? CompiledJob.OP_LASER_ON : CompiledJob.OP_LASER_DYNAMIC;
+                laserOn = true;
+            } else if (mCode == 5) {
+                opcode = CompiledJob.OP_LASER_OFF;
+                laserOn = false;
+            }
+        }
+
+        if (opcode == CompiledJob.OP_OTHER) {
+            // a line with X or Y but no code moves with the last motion code
+            boolean moves = moveCode >= 0 || (codes == 0 && (present & (CompiledJob.FLAG_X | CompiledJob.FLAG_Y)) != 0);
+
+            // other commands are copied as they are, so they must not depend on relative mode
+            if (distanceMode == 91) {
+                throw new GCodeFormatException(String.format("G91 must be on a line by itself, on line %d", line + 1));
+            }
+            if (relative && moves && (unknownWords || (present & (CompiledJob.FLAG_X | CompiledJob.FLAG_Y)) != 0)) {
+                throw new GCodeFormatException(String.format("Cannot compile relative move on line %d, it must only have G0-G3, X, Y, I, J, F and S", line + 1));
+            }
+            if (distanceMode == 90) {
+                relative = false;
+            }
+
+            if (setPosition) {
+                // set position
+                posX = (present & CompiledJob.FLAG_X) != 0 ? newX : posX;
+                posY = (present & CompiledJob.FLAG_Y) != 0 ? newY : posY;
+            } else if (gCode == 28) {
+                // home
+                posX = 0;
+                posY = 0;
+            } else if (moves) {
+                // a move with other words, such as Z
+                posX = targetX;
+                posY = targetY;
+            }
+            present = 0;
+        } else {
+            posX = targetX;
+            posY = targetY;
+        }
+        feed = newFeed;
+        power = newPower;
+
+        // G1 with S sets power, and laser commands are always on while running
+        byte flag = present;
+        if (laserOn && opcode != CompiledJob.OP_TRAVEL) {
+            flag |= CompiledJob.FLAG_LASER_ON;
+        }
+
+        add(opcode, flag, posX, posY, newI, newJ, line);
+    }
+
+    private void add(byte opcode, byte flag, long cmdX, long cmdY, long cmdI, long cmdJ, int line) {
+        if (count == opcodes.length) {
+            int capacity = count + (count >> 1) + 1;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            arcI = Arrays.copyOf(arcI, capacity);
+            arcJ = Arrays.copyOf(arcJ, capacity);
+            feeds = Arrays.copyOf(feeds, capacity);
+            powers = Arrays.copyOf(powers, capacity);
+            sourceLines = Arrays.copyOf(sourceLines, capacity);
+        }
+
+        opcodes[count] = opcode;
+        flags[count] = flag;
+        x[count] = toInt(cmdX, line);
+        y[count] = toInt(cmdY, line);
+        arcI[count] = toInt(cmdI, line);
+        arcJ[count] = toInt(cmdJ, line);
+        feeds[count] = feed;
+        powers[count] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, power));
+        sourceLines[count] = line;
+        count++;
+    }
+
+    /*
+      Reads a number such as "-12.345" starting at pos.  Returns the position after the number.
+     */
+    private int readNumber(GCodeFile file, int pos, int end) {
+        numInt = 0;
+        numFrac = 0;
+        numDecimal = false;
+        numNegative = false;
+
+        int start = pos;
+        if (pos < end && (file.getByte(pos) == '-' || file.getByte(pos) == '+')) {
+            numNegative = file.getByte(pos) == '-';
+            pos++;
+        }
+
+        boolean digits = false;
+        int fracDigits = 0;
+        while (pos < end) {
+            byte chr = file.getByte(pos);
+            if (chr >= '0' && chr <= '9') {
+                digits = true;
+                if (numDecimal) {
+                    // only keep micrometer precision
+                    if (fracDigits < 3) {
+                        numFrac = numFrac * 10 + (chr - '0');
+                        fracDigits++;
+                    }
+                } else {
+                    numInt = numInt * 10 + (chr - '0');
+                }
+            } else if (chr == '.' && !numDecimal) {
+                numDecimal = true;
+            } else {
+                break;
+            }
+            pos++;
+        }
+
+        if (!digits) {
+            return start;
+        }
+        while (fracDigits < 3) {
+            numFrac *= 10;
+            fracDigits++;
+        }
+        return pos;
+    }
+
+    /*
+      Last number as micrometers.  Decimal numbers are millimeters.
+     */
+    private long coordinate() {
+        long value = numDecimal ? numInt * 1000L + numFrac : numInt;
+        return numNegative ? -value : value;
+    }
+
+    private long rounded() {
+        long value = numInt + (numFrac >= 500 ? 1 : 0);
+        return numNegative ? -value : value;
+    }
+
+    private static int toInt(long value, int line) {
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new GCodeFormatException(String.format("Coordinate out of range on line %d: %dum", line + 1, value));
+        }
+        return (int) value;
+    }
+}
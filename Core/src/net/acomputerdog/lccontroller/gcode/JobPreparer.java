@@ -0,0 +1,62 @@
+package net.acomputerdog.lccontroller.gcode;
+
+import net.acomputerdog.lccontroller.LaserProperties;
+
+import java.util.function.Consumer;
+
+/*
+  Turns a compiled job into the job that is sent to a laser: curves are fitted with arcs if the laser supports them,
+  tiny segments are merged, and contours are put in the order that travels the least.
+
+  Every way of running a file should go through here, so that a file cuts the same however it is started.
+ */
+public class JobPreparer {
+    private JobPreparer() {
+    }
+
+    /*
+      Prepares a job for a laser.  Properties may be null to use the defaults.  A line describing each step is
+      passed to log, which may be null.
+     */
+    public static CompiledJob prepare(CompiledJob compiled, LaserProperties properties, Consumer<String> log) {
+        int tolerance = properties != null ? properties.getPathTolerance() : LaserProperties.DEFAULT_PATH_TOLERANCE;
+
+        // send curves as arcs instead of many chords
+        if (properties != null && properties.supportsArcs()) {
+            ArcFitter fitter = new ArcFitter(tolerance);
+            compiled = fitter.fit(compiled);
+            log(log, String.format("Fitted %d arcs: %d lines -> %d lines, %d bytes -> %d bytes.", fitter.getArcs(),
+                    fitter.getLinesBefore(), fitter.getLinesAfter(), fitter.getBytesBefore(), fitter.getBytesAfter()));
+        }
+
+        // merge tiny segments, which each cost a round trip
+        PathSimplifier simplifier = new PathSimplifier(tolerance);
+        compiled = simplifier.simplify(compiled);
+        log(log, String.format("Simplified paths to within %d µm: removed %d commands.", tolerance, simplifier.getRemoved()));
+
+        // cut in the order that travels the least
+        PathOptimizer optimizer = new PathOptimizer(compiled);
+        compiled = optimizer.optimize();
+        log(log, String.format("Optimized %d contours (%d reversed): travel reduced from %.1f mm to %.1f mm.",
+                optimizer.getNumContours(), optimizer.getNumReversed(), optimizer.getTravelBefore() / 1000.0, optimizer.getTravelAfter() / 1000.0));
+
+        return compiled;
+    }
+
+    /*
+      The properties that prepare() depends on, as a string.  Jobs prepared with properties that have the same key
+      are the same.
+     */
+    public static String getSettingsKey(LaserProperties properties) {
+        if (properties == null) {
+            return "tolerance=" + LaserProperties.DEFAULT_PATH_TOLERANCE;
+        }
+        return "tolerance=" + properties.getPathTolerance() + (properties.supportsArcs() ? ",arcs" : "");
+    }
+
+    private static void log(Consumer<String> log, String line) {
+        if (log != null) {
+            log.accept(line);
+        }
+    }
+}
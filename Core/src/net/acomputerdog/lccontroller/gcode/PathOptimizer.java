@@ -0,0 +1,1138 @@
+package net.acomputerdog.lccontroller.gcode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+  Reorders the cuts in a job to reduce the distance travelled with the laser off.
+
+  The job is split into blocks, each starting at the G0 that follows a cut.  Consecutive blocks that only
+  contain compiled commands are cut in the best order found, and blocks that are a single travel followed by a
+  single path can also be cut backwards.  Blocks with OP_OTHER commands stay where they are, since their effect
+  is unknown.  A closed contour is always cut after any contours inside of it, so parts are not cut free before
+  their holes.
+
+  Each run of blocks is ordered by several tours (the original order and nearest-neighbour tours with different
+  starts), each improved with 2-opt and Or-opt moves.  Tours are built in parallel on the common fork/join pool and
+  the shortest is kept.  Nearest contours and enclosing contours are looked up in grids, so jobs with tens of
+  thousands of contours take seconds, not minutes.  When commands are moved, modal state (position, feed, laser mode and power) is written
+  out wherever it differs from what the command had in the original order.
+ */
+public class PathOptimizer {
+    // how many positions away 2-opt and Or-opt look for a better move
+    private static final int SEARCH_WINDOW = 100;
+    // maximum number of improvement passes per tour
+    private static final int MAX_PASSES = 16;
+    // longest chain of contours moved at once by Or-opt
+    private static final int MAX_SEGMENT = 3;
+    // improvements smaller than this (µm) are ignored
+    private static final double EPSILON = 0.001;
+    // contours per task when searching for enclosing contours
+    private static final int PARENT_TASK_SIZE = 64;
+    // runs with more contours than this only improve one nearest-neighbour tour, since each one takes seconds
+    private static final int LARGE_RUN = 10000;
+    // contours covering more grid cells than this are checked for every contour instead of being put in the grid
+    private static final int MAX_BOX_CELLS = 64;
+
+    private static final byte LASER_OFF = 0;
+
+    private final CompiledJob job;
+    private final int count;
+
+    // laser mode after each command: LASER_OFF, or the opcode that turned it on
+    private final byte[] modeAfter;
+
+    private double travelBefore = 0;
+    private double travelAfter = 0;
+    private int numContours = 0;
+    private int numReversed = 0;
+
+    private JobBuilder out;
+
+    // state of the output so far
+    private byte curMode = LASER_OFF;
+    private int curPower = 0;
+    private int curFeed = 0;
+    private int curX = 0;
+    private int curY = 0;
+
+    public PathOptimizer(CompiledJob job) {
+        this.job = job;
+        this.count = job.size();
+
+        modeAfter = new byte[count];
+        byte mode = LASER_OFF;
+        for (int i = 0; i < count; i++) {
+            byte opcode = job.getOpcode(i);
+            if (opcode == CompiledJob.OP_LASER_ON || opcode == CompiledJob.OP_LASER_DYNAMIC) {
+                mode = opcode;
+            } else if (opcode == CompiledJob.OP_LASER_OFF) {
+                mode = LASER_OFF;
+            }
+            modeAfter[i] = mode;
+        }
+    }
+
+    /*
+      Creates the optimized job.  The original job is not modified.
+     */
+    public CompiledJob optimize() {
+        travelBefore = getTravelDistance(job);
+
+        // everything before the first travel is left alone
+        int prefixEnd = 0;
+        while (prefixEnd < count && job.getOpcode(prefixEnd) != CompiledJob.OP_TRAVEL) {
+            prefixEnd++;
+        }
+
+        List<Contour> blocks = splitBlocks(prefixEnd);
+
+        // group movable blocks into runs
+        List<Run> runs = new ArrayList<>();
+        int runStart = -1;
+        for (int i = 0; i <= blocks.size(); i++) {
+            boolean movable = i < blocks.size() && blocks.get(i).movable;
+            if (movable && runStart < 0) {
+                runStart = i;
+            } else if (!movable && runStart >= 0) {
+                runs.add(new Run(blocks.subList(runStart, i)));
+                runStart = -1;
+            }
+        }
+
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(runs.stream().map(RunTask::new).toArray(RunTask[]::new));
+            }
+        });
+
+        // write out the new order
+        out = new JobBuilder(count + count / 8);
+
+        for (int i = 0; i < prefixEnd; i++) {
+            copy(i);
+        }
+        int runIndex = 0;
+        for (int i = 0; i < blocks.size(); ) {
+            if (runIndex < runs.size() && runs.get(runIndex).contours.get(0) == blocks.get(i)) {
+                Run run = runs.get(runIndex);
+                for (int c : run.result.order) {
+                    Contour contour = run.contours.get(c);
+                    if (run.result.flipped[c]) {
+                        writeReversed(contour);
+                        numReversed++;
+                    } else {
+                        writeBlock(contour);
+                    }
+                }
+                numContours += run.n;
+                i += run.n;
+                runIndex++;
+            } else {
+                writeBlock(blocks.get(i));
+                i++;
+            }
+        }
+
+        CompiledJob optimized = out.build();
+        out = null;
+        travelAfter = getTravelDistance(optimized);
+        return optimized;
+    }
+
+    /*
+      Travel distance of the original job, in micrometers.
+     */
+    public double getTravelBefore() {
+        return travelBefore;
+    }
+
+    /*
+      Travel distance of the optimized job, in micrometers.
+     */
+    public double getTravelAfter() {
+        return travelAfter;
+    }
+
+    /*
+      Number of contours that could be reordered.
+     */
+    public int getNumContours() {
+        return numContours;
+    }
+
+    public int getNumReversed() {
+        return numReversed;
+    }
+
+    /*
+      Total distance moved with the laser off, in micrometers.
+     */
+    public static double getTravelDistance(CompiledJob job) {
+        double distance = 0;
+        long x = 0, y = 0;
+        for (int i = 0; i < job.size(); i++) {
+            byte opcode = job.getOpcode(i);
+            if (CompiledJob.isMotion(opcode) && !job.isLaserOn(i)) {
+                distance += Math.hypot(job.getX(i) - x, job.getY(i) - y);
+            }
+            x = job.getX(i);
+            y = job.getY(i);
+        }
+        return distance;
+    }
+
+    private List<Contour> splitBlocks(int start) {
+        List<Contour> blocks = new ArrayList<>();
+        int blockStart = start;
+        boolean moved = false;
+        for (int i = start; i < count; i++) {
+            byte opcode = job.getOpcode(i);
+            if (opcode == CompiledJob.OP_TRAVEL) {
+                if (moved) {
+                    blocks.add(new Contour(job, blockStart, i));
+                    blockStart = i;
+                    moved = false;
+                }
+            } else if (CompiledJob.isMotion(opcode)) {
+                moved = true;
+            }
+        }
+        if (blockStart < count) {
+            blocks.add(new Contour(job, blockStart, count));
+        }
+        return blocks;
+    }
+
+    private void writeBlock(Contour contour) {
+        for (int i = contour.from; i < contour.to; i++) {
+            copy(i);
+        }
+    }
+
+    /*
+      Writes a block that is a travel, laser commands, a path, and more laser commands, with the path cut backwards.
+     */
+    private void writeReversed(Contour contour) {
+        int from = contour.from;
+        write(from, CompiledJob.OP_TRAVEL, job.getFlags(from), contour.exitX, contour.exitY, 0, 0);
+
+        int firstMove = from + 1;
+        while (!CompiledJob.isMotion(job.getOpcode(firstMove))) {
+            copy(firstMove);
+            firstMove++;
+        }
+        int lastMove = firstMove;
+        while (lastMove + 1 < contour.to && CompiledJob.isMotion(job.getOpcode(lastMove + 1))) {
+            lastMove++;
+        }
+
+        for (int r = lastMove; r >= firstMove; r--) {
+            // each move now ends where it used to start
+            int startX = job.getX(r - 1);
+            int startY = job.getY(r - 1);
+            byte opcode = job.getOpcode(r);
+            int arcI = 0, arcJ = 0;
+            if (opcode == CompiledJob.OP_ARC_CW || opcode == CompiledJob.OP_ARC_CCW) {
+                // same center, opposite direction
+                opcode = opcode == CompiledJob.OP_ARC_CW ? CompiledJob.OP_ARC_CCW : CompiledJob.OP_ARC_CW;
+                arcI = startX + job.getArcI(r) - job.getX(r);
+                arcJ = startY + job.getArcJ(r) - job.getY(r);
+            }
+            write(r, opcode, job.getFlags(r), startX, startY, arcI, arcJ);
+        }
+
+        for (int i = lastMove + 1; i < contour.to; i++) {
+            copy(i);
+        }
+    }
+
+    private void copy(int src) {
+        write(src, job.getOpcode(src), job.getFlags(src), job.getX(src), job.getY(src), job.getArcI(src), job.getArcJ(src));
+    }
+
+    /*
+      Writes a command, adding whatever is needed to put the machine into the state the command expects.
+      When nothing has been moved this never changes anything.
+     */
+    private void write(int src, byte opcode, byte flag, int x, int y, int arcI, int arcJ) {
+        int feed = job.getFeed(src);
+        int power = job.getPower(src);
+        boolean laserCommand = opcode == CompiledJob.OP_LASER_ON || opcode == CompiledJob.OP_LASER_DYNAMIC || opcode == CompiledJob.OP_LASER_OFF;
+
+        if (!laserCommand) {
+            byte expectedMode = src > 0 ? modeAfter[src - 1] : LASER_OFF;
+            int expectedPower = src > 0 ? job.getPower(src - 1) : 0;
+            if (expectedMode != LASER_OFF && (curMode != expectedMode || curPower != expectedPower)) {
+                out.add(expectedMode, CompiledJob.FLAG_S, curX, curY, 0, 0, curFeed, expectedPower, job.getSourceLine(src));
+                curMode = expectedMode;
+                curPower = expectedPower;
+            } else if (expectedMode == LASER_OFF && curMode != LASER_OFF) {
+                out.add(CompiledJob.OP_LASER_OFF, (byte) 0, curX, curY, 0, 0, curFeed, curPower, job.getSourceLine(src));
+                curMode = LASER_OFF;
+            }
+        }
+
+        if (opcode == CompiledJob.OP_OTHER) {
+            out.add(opcode, flag, x, y, arcI, arcJ, feed, power, job.getSourceLine(src));
+        } else {
+            if (CompiledJob.isMotion(opcode)) {
+                if (x != curX) {
+                    flag |= CompiledJob.FLAG_X;
+                }
+                if (y != curY) {
+                    flag |= CompiledJob.FLAG_Y;
+                }
+                // a feed of 0 means that none was set yet
+                if (feed != curFeed && feed != 0) {
+                    flag |= CompiledJob.FLAG_F;
+                }
+            } else {
+                // only motion changes the position
+                x = curX;
+                y = curY;
+            }
+            if (laserCommand && opcode != CompiledJob.OP_LASER_OFF && power != curPower) {
+                flag |= CompiledJob.FLAG_S;
+            }
+            out.add(opcode, flag, x, y, arcI, arcJ, feed, power, job.getSourceLine(src));
+        }
+
+        curMode = modeAfter[src];
+        curPower = power;
+        curFeed = feed;
+        curX = x;
+        curY = y;
+    }
+
+    /*
+      A block of commands starting with a travel.
+     */
+    private static final class Contour {
+        // commands [from, to)
+        final int from;
+        final int to;
+        final boolean movable;
+        final boolean reversible;
+        final boolean closed;
+        // position before the block
+        final int beforeX, beforeY;
+        // where the block starts cutting, and where it ends
+        final int entryX, entryY;
+        final int exitX, exitY;
+        final int minX, minY, maxX, maxY;
+        // corners of the path, for checking if other contours are inside.  Arcs are treated as straight lines.
+        final int[] pathX;
+        final int[] pathY;
+
+        Contour(CompiledJob job, int from, int to) {
+            this.from = from;
+            this.to = to;
+
+            boolean other = false;
+            boolean cuts = false;
+            // 0 = travel, 1 = laser commands before the path, 2 = path, 3 = laser commands after the path, 4 = anything else
+            int shape = 0;
+            int motions = 0;
+            for (int i = from; i < to; i++) {
+                byte opcode = job.getOpcode(i);
+                boolean motion = CompiledJob.isMotion(opcode);
+                if (opcode == CompiledJob.OP_OTHER) {
+                    other = true;
+                }
+                if (motion) {
+                    motions++;
+                    if (job.isLaserOn(i)) {
+                        cuts = true;
+                    }
+                }
+
+                if (i == from) {
+                    shape = opcode == CompiledJob.OP_TRAVEL ? 1 : 4;
+                } else if (shape == 1 || shape == 2) {
+                    if (motion) {
+                        // power changes along the path can't be reversed
+                        shape = opcode == CompiledJob.OP_TRAVEL || job.hasFlag(i, CompiledJob.FLAG_S) ? 4 : 2;
+                    } else if (shape == 2) {
+                        shape = 3;
+                    }
+                } else if (shape == 3 && motion) {
+                    shape = 4;
+                }
+            }
+
+            this.movable = !other && cuts;
+            this.reversible = movable && (shape == 2 || shape == 3);
+
+            beforeX = from > 0 ? job.getX(from - 1) : 0;
+            beforeY = from > 0 ? job.getY(from - 1) : 0;
+            entryX = job.getX(from);
+            entryY = job.getY(from);
+            exitX = job.getX(to - 1);
+            exitY = job.getY(to - 1);
+
+            pathX = new int[motions];
+            pathY = new int[motions];
+            int minX = entryX, minY = entryY, maxX = entryX, maxY = entryY;
+            int point = 0;
+            for (int i = from; i < to; i++) {
+                if (CompiledJob.isMotion(job.getOpcode(i))) {
+                    pathX[point] = job.getX(i);
+                    pathY[point] = job.getY(i);
+                    minX = Math.min(minX, pathX[point]);
+                    minY = Math.min(minY, pathY[point]);
+                    maxX = Math.max(maxX, pathX[point]);
+                    maxY = Math.max(maxY, pathY[point]);
+                    point++;
+                }
+            }
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.closed = motions >= 3 && entryX == exitX && entryY == exitY;
+        }
+
+        long area() {
+            return (long) (maxX - minX) * (long) (maxY - minY);
+        }
+
+        /*
+          Checks if another contour is inside of this one.
+         */
+        boolean encloses(Contour inner) {
+            if (!closed || inner == this || inner.area() >= area()) {
+                return false;
+            }
+            if (inner.minX < minX || inner.minY < minY || inner.maxX > maxX || inner.maxY > maxY) {
+                return false;
+            }
+
+            // ray casting from the start of the inner contour
+            double px = inner.entryX, py = inner.entryY;
+            boolean inside = false;
+            for (int i = 0, j = pathX.length - 1; i < pathX.length; j = i++) {
+                if ((pathY[i] > py) != (pathY[j] > py)) {
+                    double crossX = pathX[j] + (double) (pathX[i] - pathX[j]) * (py - pathY[j]) / (pathY[i] - pathY[j]);
+                    if (px < crossX) {
+                        inside = !inside;
+                    }
+                }
+            }
+            return inside;
+        }
+    }
+
+    /*
+      An order to cut the contours of a run in.
+     */
+    private static final class Tour {
+        final int[] order;
+        final int[] pos;
+        final boolean[] flipped;
+        double cost;
+
+        Tour(int n) {
+            order = new int[n];
+            pos = new int[n];
+            flipped = new boolean[n];
+        }
+    }
+
+    /*
+      Consecutive movable blocks, which can be cut in any order that keeps inner contours first.
+     */
+    private static final class Run {
+        final List<Contour> contours;
+        final int n;
+        final double startX, startY;
+        final double[] inX, inY, outX, outY;
+        final boolean[] reversible;
+        // smallest contour enclosing each contour, or -1
+        final int[] parent;
+        int[][] children;
+        BoxGrid boxes;
+
+        Tour result;
+
+        Run(List<Contour> contours) {
+            this.contours = contours;
+            this.n = contours.size();
+
+            startX = contours.get(0).beforeX;
+            startY = contours.get(0).beforeY;
+
+            inX = new double[n];
+            inY = new double[n];
+            outX = new double[n];
+            outY = new double[n];
+            reversible = new boolean[n];
+            parent = new int[n];
+            for (int i = 0; i < n; i++) {
+                Contour contour = contours.get(i);
+                inX[i] = contour.entryX;
+                inY[i] = contour.entryY;
+                outX[i] = contour.exitX;
+                outY[i] = contour.exitY;
+                reversible[i] = contour.reversible;
+            }
+        }
+
+        void findChildren() {
+            int[] numChildren = new int[n];
+            for (int i = 0; i < n; i++) {
+                if (parent[i] >= 0) {
+                    numChildren[parent[i]]++;
+                }
+            }
+            children = new int[n][];
+            for (int i = 0; i < n; i++) {
+                children[i] = new int[numChildren[i]];
+                numChildren[i] = 0;
+            }
+            for (int i = 0; i < n; i++) {
+                if (parent[i] >= 0) {
+                    children[parent[i]][numChildren[parent[i]]++] = i;
+                }
+            }
+        }
+
+        private double startX(Tour tour, int c) {
+            return tour.flipped[c] ? outX[c] : inX[c];
+        }
+
+        private double startY(Tour tour, int c) {
+            return tour.flipped[c] ? outY[c] : inY[c];
+        }
+
+        private double endX(Tour tour, int c) {
+            return tour.flipped[c] ? inX[c] : outX[c];
+        }
+
+        private double endY(Tour tour, int c) {
+            return tour.flipped[c] ? inY[c] : outY[c];
+        }
+
+        // position after the contour at a position in the tour, or the start of the run
+        private double endXAt(Tour tour, int p) {
+            return p < 0 ? startX : endX(tour, tour.order[p]);
+        }
+
+        private double endYAt(Tour tour, int p) {
+            return p < 0 ? startY : endY(tour, tour.order[p]);
+        }
+
+        private static double distance(double x1, double y1, double x2, double y2) {
+            double dx = x2 - x1;
+            double dy = y2 - y1;
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+
+        double cost(Tour tour) {
+            double cost = 0;
+            for (int p = 0; p < n; p++) {
+                int c = tour.order[p];
+                cost += distance(endXAt(tour, p - 1), endYAt(tour, p - 1), startX(tour, c), startY(tour, c));
+            }
+            return cost;
+        }
+
+        /*
+          The original order, with inner contours moved up to just before the contour that encloses them.
+         */
+        Tour originalOrder() {
+            Tour tour = new Tour(n);
+            boolean[] placed = new boolean[n];
+            int[] next = {0};
+            for (int c = 0; c < n; c++) {
+                placeWithChildren(tour, placed, next, c);
+            }
+            return tour;
+        }
+
+        private void placeWithChildren(Tour tour, boolean[] placed, int[] next, int c) {
+            if (!placed[c]) {
+                for (int child : children[c]) {
+                    placeWithChildren(tour, placed, next, child);
+                }
+                placed[c] = true;
+                tour.order[next[0]] = c;
+                tour.pos[c] = next[0];
+                next[0]++;
+            }
+        }
+
+        /*
+          Builds a tour by always cutting the closest contour that has no uncut contours inside.
+          If first is not -1, the tour starts with that contour.
+         */
+        Tour nearestNeighbour(int first) {
+            Tour tour = new Tour(n);
+            PointGrid grid = new PointGrid(this);
+            int[] pending = new int[n];
+            for (int c = 0; c < n; c++) {
+                pending[c] = children[c].length;
+                if (pending[c] == 0) {
+                    grid.add(c);
+                }
+            }
+            double x = startX, y = startY;
+
+            for (int p = 0; p < n; p++) {
+                int best;
+                boolean bestFlipped;
+                if (p == 0 && first >= 0) {
+                    best = first;
+                    bestFlipped = reversible[first] && distance(x, y, outX[first], outY[first]) < distance(x, y, inX[first], inY[first]);
+                } else {
+                    int point = grid.nearest(x, y);
+                    best = point >> 1;
+                    bestFlipped = (point & 1) != 0;
+                }
+
+                grid.remove(best);
+                tour.flipped[best] = bestFlipped;
+                tour.order[p] = best;
+                tour.pos[best] = p;
+                x = endX(tour, best);
+                y = endY(tour, best);
+                if (parent[best] >= 0 && --pending[parent[best]] == 0) {
+                    grid.add(parent[best]);
+                }
+            }
+            return tour;
+        }
+
+        void improve(Tour tour) {
+            for (int pass = 0; pass < MAX_PASSES; pass++) {
+                boolean improved = twoOpt(tour);
+                for (int length = 1; length <= MAX_SEGMENT; length++) {
+                    improved |= orOpt(tour, length);
+                }
+                if (!improved) {
+                    break;
+                }
+            }
+            tour.cost = cost(tour);
+        }
+
+        /*
+          Tries cutting each section of the tour backwards, which also reverses every contour in it.
+         */
+        private boolean twoOpt(Tour tour) {
+            boolean improved = false;
+            for (int i = 0; i < n; i++) {
+                double ax = endXAt(tour, i - 1), ay = endYAt(tour, i - 1);
+                for (int j = i; j < n && j <= i + SEARCH_WINDOW; j++) {
+                    int c = tour.order[j];
+                    if (!reversible[c] || hasChildFrom(tour, c, i)) {
+                        break;
+                    }
+
+                    int ci = tour.order[i];
+                    double before = distance(ax, ay, startX(tour, ci), startY(tour, ci));
+                    double after = distance(ax, ay, endX(tour, c), endY(tour, c));
+                    if (j + 1 < n) {
+                        int next = tour.order[j + 1];
+                        before += distance(endX(tour, c), endY(tour, c), startX(tour, next), startY(tour, next));
+                        after += distance(startX(tour, ci), startY(tour, ci), startX(tour, next), startY(tour, next));
+                    }
+
+                    if (after < before - EPSILON) {
+                        reverse(tour, i, j);
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+            return improved;
+        }
+
+        // checks if a contour encloses anything at or after a position in the tour
+        private boolean hasChildFrom(Tour tour, int c, int p) {
+            for (int child : children[c]) {
+                if (tour.pos[child] >= p) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void reverse(Tour tour, int i, int j) {
+            for (int a = i, b = j; a <= b; a++, b--) {
+                int ca = tour.order[a];
+                int cb = tour.order[b];
+                tour.order[a] = cb;
+                tour.order[b] = ca;
+                tour.pos[cb] = a;
+                tour.pos[ca] = b;
+                tour.flipped[ca] = !tour.flipped[ca];
+                if (a != b) {
+                    tour.flipped[cb] = !tour.flipped[cb];
+                }
+            }
+        }
+
+        /*
+          Tries moving each chain of contours to somewhere else in the tour.
+         */
+        private boolean orOpt(Tour tour, int length) {
+            boolean improved = false;
+            for (int i = 0; i + length <= n; i++) {
+                int last = i + length - 1;
+                int first = tour.order[i];
+                int end = tour.order[last];
+                double sx = startX(tour, first), sy = startY(tour, first);
+                double ex = endX(tour, end), ey = endY(tour, end);
+                double ax = endXAt(tour, i - 1), ay = endYAt(tour, i - 1);
+
+                double removed = distance(ax, ay, sx, sy);
+                if (last + 1 < n) {
+                    int next = tour.order[last + 1];
+                    double bx = startX(tour, next), by = startY(tour, next);
+                    removed += distance(ex, ey, bx, by) - distance(ax, ay, bx, by);
+                }
+                if (removed < EPSILON) {
+                    continue;
+                }
+
+                // insert between p and p + 1
+                int from = Math.max(-1, i - 1 - SEARCH_WINDOW);
+                int to = Math.min(n - 1, last + SEARCH_WINDOW);
+                for (int p = from; p <= to; p++) {
+                    if (p >= i - 1 && p <= last) {
+                        continue;
+                    }
+                    double px = endXAt(tour, p), py = endYAt(tour, p);
+                    double added = distance(px, py, sx, sy);
+                    if (p + 1 < n) {
+                        int next = tour.order[p + 1];
+                        double qx = startX(tour, next), qy = startY(tour, next);
+                        added += distance(ex, ey, qx, qy) - distance(px, py, qx, qy);
+                    }
+
+                    if (added < removed - EPSILON && canMove(tour, i, last, p)) {
+                        move(tour, i, length, p);
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+            return improved;
+        }
+
+        // checks if moving [i, last] to after p keeps every contour after the ones inside it
+        private boolean canMove(Tour tour, int i, int last, int p) {
+            for (int s = i; s <= last; s++) {
+                int c = tour.order[s];
+                if (p < i) {
+                    // contours in (p, i) end up after the chain
+                    for (int child : children[c]) {
+                        int childPos = tour.pos[child];
+                        if (childPos > p && childPos < i) {
+                            return false;
+                        }
+                    }
+                } else {
+                    // contours in (last, p] end up before the chain
+                    int parentPos = parent[c] >= 0 ? tour.pos[parent[c]] : -1;
+                    if (parentPos > last && parentPos <= p) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void move(Tour tour, int i, int length, int p) {
+            int[] chain = Arrays.copyOfRange(tour.order, i, i + length);
+            int start;
+            int end;
+            if (p < i) {
+                // shift (p, i) forward
+                System.arraycopy(tour.order, p + 1, tour.order, p + 1 + length, i - p - 1);
+                System.arraycopy(chain, 0, tour.order, p + 1, length);
+                start = p + 1;
+                end = i + length;
+            } else {
+                // shift (last, p] back
+                System.arraycopy(tour.order, i + length, tour.order, i, p - i - length + 1);
+                System.arraycopy(chain, 0, tour.order, p - length + 1, length);
+                start = i;
+                end = p + 1;
+            }
+            for (int q = start; q < end; q++) {
+                tour.pos[tour.order[q]] = q;
+            }
+        }
+    }
+
+    /*
+      Finds the smallest enclosing contour for a range of contours in a run.
+     */
+    private static final class ParentTask extends RecursiveAction {
+        private final Run run;
+        private final int from;
+        private final int to;
+
+        // smallest enclosing contour found so far, the first one if there are several
+        private int best;
+        private long bestArea;
+
+        ParentTask(Run run, int from, int to) {
+            this.run = run;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARENT_TASK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParentTask(run, from, middle), new ParentTask(run, middle, to));
+            } else {
+                BoxGrid grid = run.boxes;
+                for (int i = from; i < to; i++) {
+                    Contour inner = run.contours.get(i);
+                    best = -1;
+                    bestArea = Long.MAX_VALUE;
+                    // anything enclosing the contour covers its entry
+                    int cell = grid.cellAt(inner.entryX, inner.entryY);
+                    if (cell >= 0) {
+                        for (int k = grid.cellStart[cell]; k < grid.cellStart[cell + 1]; k++) {
+                            check(inner, grid.items[k]);
+                        }
+                        for (int j : grid.large) {
+                            check(inner, j);
+                        }
+                    }
+                    run.parent[i] = best;
+                }
+            }
+        }
+
+        private void check(Contour inner, int j) {
+            Contour outer = run.contours.get(j);
+            long area = outer.area();
+            if ((area < bestArea || (area == bestArea && j < best)) && outer.encloses(inner)) {
+                best = j;
+                bestArea = area;
+            }
+        }
+    }
+
+    /*
+      Size of the square cells of a grid over an area, so that there are about as many cells as items, and no more
+      than that many along either side.
+     */
+    private static double cellSize(double width, double height, int items) {
+        items = Math.max(1, items);
+        return Math.max(1, Math.max(Math.sqrt(width * height / items), Math.max(width, height) / items));
+    }
+
+    /*
+      The points where contours of a run that can be cut next start, in a grid, for finding the nearest one.
+      Point c * 2 is the entry of contour c, and point c * 2 + 1 is its exit, for cutting it backwards.
+     */
+    private static final class PointGrid {
+        private final Run run;
+        private final double minX, minY;
+        private final double cellSize;
+        private final int columns, rows;
+        private final int[][] cells;
+        private final int[] cellSizes;
+        // position of each point in its cell, or -1 if it is not in the grid
+        private final int[] slots;
+        private int size = 0;
+
+        PointGrid(Run run) {
+            this.run = run;
+            double minX = run.startX, minY = run.startY, maxX = run.startX, maxY = run.startY;
+            for (int c = 0; c < run.n; c++) {
+                minX = Math.min(minX, Math.min(run.inX[c], run.outX[c]));
+                minY = Math.min(minY, Math.min(run.inY[c], run.outY[c]));
+                maxX = Math.max(maxX, Math.max(run.inX[c], run.outX[c]));
+                maxY = Math.max(maxY, Math.max(run.inY[c], run.outY[c]));
+            }
+            this.minX = minX;
+            this.minY = minY;
+            cellSize = cellSize(maxX - minX, maxY - minY, run.n * 2);
+            columns = (int) ((maxX - minX) / cellSize) + 1;
+            rows = (int) ((maxY - minY) / cellSize) + 1;
+            cells = new int[columns * rows][];
+            cellSizes = new int[columns * rows];
+            slots = new int[run.n * 2];
+            Arrays.fill(slots, -1);
+        }
+
+        void add(int c) {
+            add(c * 2, run.inX[c], run.inY[c]);
+            if (run.reversible[c]) {
+                add(c * 2 + 1, run.outX[c], run.outY[c]);
+            }
+        }
+
+        void remove(int c) {
+            remove(c * 2, run.inX[c], run.inY[c]);
+            remove(c * 2 + 1, run.outX[c], run.outY[c]);
+        }
+
+        private void add(int point, double x, double y) {
+            int cell = row(y) * columns + column(x);
+            if (cells[cell] == null) {
+                cells[cell] = new int[4];
+            } else if (cellSizes[cell] == cells[cell].length) {
+                cells[cell] = Arrays.copyOf(cells[cell], cellSizes[cell] * 2);
+            }
+            slots[point] = cellSizes[cell];
+            cells[cell][cellSizes[cell]++] = point;
+            size++;
+        }
+
+        private void remove(int point, double x, double y) {
+            int slot = slots[point];
+            if (slot >= 0) {
+                // move the last point of the cell into the gap
+                int cell = row(y) * columns + column(x);
+                int last = cells[cell][--cellSizes[cell]];
+                cells[cell][slot] = last;
+                slots[last] = slot;
+                slots[point] = -1;
+                size--;
+            }
+        }
+
+        /*
+          Finds the closest point, searching rings of cells outwards until no closer point can be found.
+          Returns -1 if there are no points.
+         */
+        int nearest(double x, double y) {
+            if (size == 0) {
+                return -1;
+            }
+            int cx = column(x);
+            int cy = row(y);
+            int best = -1;
+            double bestDistance = Double.MAX_VALUE;
+            for (int ring = 0; ; ring++) {
+                // every point in this ring is at least this far away
+                double bound = Math.max(0, ring - 1) * cellSize;
+                if (best >= 0 && bestDistance <= bound * bound) {
+                    return best;
+                }
+                if (cx - ring < 0 && cy - ring < 0 && cx + ring >= columns && cy + ring >= rows) {
+                    return best;
+                }
+
+                for (int gy = Math.max(0, cy - ring); gy <= Math.min(rows - 1, cy + ring); gy++) {
+                    boolean edge = gy == cy - ring || gy == cy + ring;
+                    int step = edge ? 1 : ring * 2;
+                    for (int gx = cx - ring; gx <= cx + ring; gx += step) {
+                        if (gx < 0 || gx >= columns) {
+                            continue;
+                        }
+                        int cell = gy * columns + gx;
+                        for (int k = 0; k < cellSizes[cell]; k++) {
+                            int point = cells[cell][k];
+                            int c = point >> 1;
+                            double dx = ((point & 1) != 0 ? run.outX[c] : run.inX[c]) - x;
+                            double dy = ((point & 1) != 0 ? run.outY[c] : run.inY[c]) - y;
+                            double distance = dx * dx + dy * dy;
+                            if (distance < bestDistance || (distance == bestDistance && point < best)) {
+                                best = point;
+                                bestDistance = distance;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private int column(double x) {
+            return Math.max(0, Math.min(columns - 1, (int) ((x - minX) / cellSize)));
+        }
+
+        private int row(double y) {
+            return Math.max(0, Math.min(rows - 1, (int) ((y - minY) / cellSize)));
+        }
+    }
+
+    /*
+      The closed contours of a run by the grid cells that their bounding boxes cover, for finding the contours that
+      could enclose a point.  Contours that cover too many cells are kept in a list that is always checked instead.
+     */
+    private static final class BoxGrid {
+        private final double minX, minY;
+        private final double cellSize;
+        private final int columns, rows;
+        // contours in cell i are items[cellStart[i]] to items[cellStart[i + 1] - 1]
+        final int[] cellStart;
+        final int[] items;
+        final int[] large;
+
+        BoxGrid(Run run) {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            int closed = 0;
+            for (Contour contour : run.contours) {
+                if (contour.closed) {
+                    minX = Math.min(minX, contour.minX);
+                    minY = Math.min(minY, contour.minY);
+                    maxX = Math.max(maxX, contour.maxX);
+                    maxY = Math.max(maxY, contour.maxY);
+                    closed++;
+                }
+            }
+            if (closed == 0) {
+                minX = minY = maxX = maxY = 0;
+            }
+            this.minX = minX;
+            this.minY = minY;
+            cellSize = cellSize(maxX - minX, maxY - minY, closed);
+            columns = (int) ((maxX - minX) / cellSize) + 1;
+            rows = (int) ((maxY - minY) / cellSize) + 1;
+
+            // count, then fill
+            cellStart = new int[columns * rows + 1];
+            int numLarge = 0;
+            for (Contour contour : run.contours) {
+                if (contour.closed) {
+                    if (numCells(contour) > MAX_BOX_CELLS) {
+                        numLarge++;
+                    } else {
+                        for (int gy = row(contour.minY); gy <= row(contour.maxY); gy++) {
+                            for (int gx = column(contour.minX); gx <= column(contour.maxX); gx++) {
+                                cellStart[gy * columns + gx + 1]++;
+                            }
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < columns * rows; i++) {
+                cellStart[i + 1] += cellStart[i];
+            }
+            items = new int[cellStart[columns * rows]];
+            large = new int[numLarge];
+            int[] next = Arrays.copyOf(cellStart, columns * rows);
+            numLarge = 0;
+            for (int c = 0; c < run.n; c++) {
+                Contour contour = run.contours.get(c);
+                if (contour.closed) {
+                    if (numCells(contour) > MAX_BOX_CELLS) {
+                        large[numLarge++] = c;
+                    } else {
+                        for (int gy = row(contour.minY); gy <= row(contour.maxY); gy++) {
+                            for (int gx = column(contour.minX); gx <= column(contour.maxX); gx++) {
+                                items[next[gy * columns + gx]++] = c;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /*
+          Cell containing a point, or -1 if it is outside of every contour's bounding box.
+         */
+        int cellAt(double x, double y) {
+            if (x < minX || y < minY || x - minX >= columns * cellSize || y - minY >= rows * cellSize) {
+                return -1;
+            }
+            return row(y) * columns + column(x);
+        }
+
+        private long numCells(Contour contour) {
+            return (long) (column(contour.maxX) - column(contour.minX) + 1) * (row(contour.maxY) - row(contour.minY) + 1);
+        }
+
+        private int column(double x) {
+            return Math.max(0, Math.min(columns - 1, (int) ((x - minX) / cellSize)));
+        }
+
+        private int row(double y) {
+            return Math.max(0, Math.min(rows - 1, (int) ((y - minY) / cellSize)));
+        }
+    }
+
+    /*
+      Builds and improves one starting tour.
+     */
+    private static final class TourTask extends RecursiveTask<Tour> {
+        private final Run run;
+        // start from the original order instead of a nearest-neighbour tour
+        private final boolean original;
+        // first contour of a nearest-neighbour tour, or -1 to pick the nearest
+        private final int first;
+        private final boolean improve;
+
+        TourTask(Run run, boolean original, int first, boolean improve) {
+            this.run = run;
+            this.original = original;
+            this.first = first;
+            this.improve = improve;
+        }
+
+        @Override
+        protected Tour compute() {
+            Tour tour = original ? run.originalOrder() : run.nearestNeighbour(first);
+            if (improve) {
+                run.improve(tour);
+            } else {
+                tour.cost = run.cost(tour);
+            }
+            return tour;
+        }
+    }
+
+    /*
+      Optimizes one run, trying several starting tours in parallel.
+     */
+    private static final class RunTask extends RecursiveAction {
+        private final Run run;
+
+        RunTask(Run run) {
+            this.run = run;
+        }
+
+        @Override
+        protected void compute() {
+            run.boxes = new BoxGrid(run);
+            invokeAll(new ParentTask(run, 0, run.n));
+            run.boxes = null;
+            run.findChildren();
+
+            // contours with nothing inside can start a tour
+            List<Integer> leaves = new ArrayList<>();
+            for (int c = 0; c < run.n; c++) {
+                if (run.children[c].length == 0) {
+                    leaves.add(c);
+                }
+            }
+
+            // the original order is always tried, so that the result is never worse
+            boolean large = run.n > LARGE_RUN;
+            int starts = large ? 2 : Math.min(leaves.size(), Math.max(2, ForkJoinPool.getCommonPoolParallelism()));
+            List<TourTask> tasks = new ArrayList<>();
+            tasks.add(new TourTask(run, true, -1, !large));
+            tasks.add(new TourTask(run, false, -1, true));
+            for (int s = 2; s < starts; s++) {
+                tasks.add(new TourTask(run, false, leaves.get(s * leaves.size() / starts), true));
+            }
+            invokeAll(tasks);
+
+            // first shortest tour, so the result does not depend on timing
+            Tour best = null;
+            for (TourTask task : tasks) {
+                Tour tour = task.join();
+                if (best == null || tour.cost < best.cost - EPSILON) {
+                    best = tour;
+                }
+            }
+            run.result = best;
+        }
+    }
+}
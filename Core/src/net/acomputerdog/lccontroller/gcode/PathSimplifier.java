@@ -0,0 +1,122 @@
+package net.acomputerdog.lccontroller.gcode;
+
+/*
+  Removes points from cut paths that do not change the shape of the path by more than a tolerance.
+
+  Runs of G1 moves with the laser on, at the same feed and power, are collected as they stream past and simplified
+  with Douglas-Peucker: a point is only kept if dropping it would move the path by more than the tolerance.
+  A tolerance of 0 only merges segments that are exactly in line.  Runs are collected by RunCollector.
+ */
+public class PathSimplifier extends RunCollector {
+    private final int tolerance;
+
+    private final boolean[] keep = new boolean[MAX_RUN];
+    private final int[] stack = new int[MAX_RUN * 2];
+
+    private int removed = 0;
+
+    /*
+      tolerance is the furthest that the path may move, in micrometers.
+     */
+    public PathSimplifier(int tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("Tolerance cannot be negative: " + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    /*
+      Creates the simplified job.  The original job is not modified.
+     */
+    public CompiledJob simplify(CompiledJob job) {
+        removed = 0;
+        return collect(job);
+    }
+
+    /*
+      Number of commands removed by the last call to simplify().
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    public int getTolerance() {
+        return tolerance;
+    }
+
+    /*
+      Simplifies and writes out the current run.
+     */
+    @Override
+    void writeRun(CompiledJob job, JobBuilder out) {
+        // Douglas-Peucker, with a stack instead of recursion.  Point -1 is the start of the run.
+        for (int i = 0; i < runLength; i++) {
+            keep[i] = false;
+        }
+        keep[runLength - 1] = true;
+        int top = 0;
+        stack[top++] = -1;
+        stack[top++] = runLength - 1;
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+
+            int furthest = -1;
+            double furthestDistance = tolerance;
+            for (int p = start + 1; p < end; p++) {
+                double distance = distanceToSegment(job, p, start, end);
+                if (distance > furthestDistance) {
+                    furthest = p;
+                    furthestDistance = distance;
+                }
+            }
+
+            if (furthest >= 0) {
+                keep[furthest] = true;
+                stack[top++] = start;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = end;
+            }
+        }
+
+        // write the kept points
+        int lastX = runStartX, lastY = runStartY;
+        byte carried = 0;
+        for (int i = 0; i < runLength; i++) {
+            int cmd = run[i];
+            byte flag = job.getFlags(cmd);
+            if (keep[i]) {
+                // dropped points may have set the feed or power, or been where this point is
+                flag |= carried;
+                if (job.getX(cmd) != lastX) {
+                    flag |= CompiledJob.FLAG_X;
+                }
+                if (job.getY(cmd) != lastY) {
+                    flag |= CompiledJob.FLAG_Y;
+                }
+                out.copy(job, cmd, flag);
+                lastX = job.getX(cmd);
+                lastY = job.getY(cmd);
+                carried = 0;
+            } else {
+                carried |= flag & (CompiledJob.FLAG_F | CompiledJob.FLAG_S);
+                removed++;
+            }
+        }
+    }
+
+    // distance from point p to the segment between points a and b
+    private double distanceToSegment(CompiledJob job, int p, int a, int b) {
+        double px = pointX(job, p), py = pointY(job, p);
+        double ax = pointX(job, a), ay = pointY(job, a);
+        double dx = pointX(job, b) - ax, dy = pointY(job, b) - ay;
+
+        double lengthSq = dx * dx + dy * dy;
+        double t = lengthSq == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+        t = Math.max(0, Math.min(1, t));
+        double cx = ax + t * dx - px;
+        double cy = ay + t * dy - py;
+        return Math.sqrt(cx * cx + cy * cy);
+    }
+}
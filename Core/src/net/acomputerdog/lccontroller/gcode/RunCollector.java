@@ -0,0 +1,82 @@
+package net.acomputerdog.lccontroller.gcode;
+
+/*
+  Base for stages that rework cut paths.
+
+  Runs of G1 moves with the laser on, at the same feed and power, are collected as they stream past and passed to
+  writeRun().  Runs are limited to MAX_RUN points so that memory use does not depend on the size of the job.
+  Everything else passes through unchanged.
+ */
+abstract class RunCollector {
+    // longest run of points that is handled at once
+    static final int MAX_RUN = 4096;
+
+    // position before the current run, and the commands in it
+    int runStartX, runStartY;
+    final int[] run = new int[MAX_RUN];
+    int runLength = 0;
+
+    /*
+      Copies a job, passing each run to writeRun().  The original job is not modified.
+     */
+    CompiledJob collect(CompiledJob job) {
+        JobBuilder out = new JobBuilder(job.size());
+        runLength = 0;
+
+        for (int i = 0; i < job.size(); i++) {
+            if (runLength > 0 && !continuesRun(job, i)) {
+                flush(job, out);
+            }
+
+            if (isRunCommand(job, i)) {
+                if (runLength == 0) {
+                    runStartX = i > 0 ? job.getX(i - 1) : 0;
+                    runStartY = i > 0 ? job.getY(i - 1) : 0;
+                }
+                run[runLength++] = i;
+                if (runLength == MAX_RUN) {
+                    flush(job, out);
+                }
+            } else {
+                out.copy(job, i);
+            }
+        }
+        flush(job, out);
+
+        return out.build();
+    }
+
+    /*
+      Writes out the current run, which has at least one point.
+     */
+    abstract void writeRun(CompiledJob job, JobBuilder out);
+
+    // position of a point of the current run.  Point -1 is the start of the run.
+    int pointX(CompiledJob job, int p) {
+        return p < 0 ? runStartX : job.getX(run[p]);
+    }
+
+    int pointY(CompiledJob job, int p) {
+        return p < 0 ? runStartY : job.getY(run[p]);
+    }
+
+    private void flush(CompiledJob job, JobBuilder out) {
+        if (runLength > 0) {
+            writeRun(job, out);
+            runLength = 0;
+        }
+    }
+
+    private static boolean isRunCommand(CompiledJob job, int cmd) {
+        return job.getOpcode(cmd) == CompiledJob.OP_LINEAR && job.isLaserOn(cmd);
+    }
+
+    // checks if a command can be added to the current run
+    private boolean continuesRun(CompiledJob job, int cmd) {
+        int last = run[runLength - 1];
+        return isRunCommand(job, cmd) &&
+                !job.hasFlag(cmd, CompiledJob.FLAG_S) &&
+                job.getFeed(cmd) == job.getFeed(last) &&
+                job.getPower(cmd) == job.getPower(last);
+    }
+}
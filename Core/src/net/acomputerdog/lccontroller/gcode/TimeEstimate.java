@@ -0,0 +1,37 @@
+package net.acomputerdog.lccontroller.gcode;
+
+/*
+  Estimated machine time of a job, created by TimeEstimator.  Times are in seconds from the start of the job.
+ */
+public class TimeEstimate {
+    private final double[] endTimes;
+
+    TimeEstimate(double[] endTimes) {
+        this.endTimes = endTimes;
+    }
+
+    public double getTotalTime() {
+        return endTimes.length > 0 ? endTimes[endTimes.length - 1] : 0;
+    }
+
+    /*
+      Time at which a number of commands from the start of the job have finished.
+     */
+    public double getTimeAfter(int commands) {
+        if (commands <= 0) {
+            return 0;
+        }
+        return endTimes[Math.min(commands, endTimes.length) - 1];
+    }
+
+    /*
+      Fraction of the job's time taken by a number of commands from the start, between 0 and 1.
+     */
+    public float getProgress(int commands) {
+        double total = getTotalTime();
+        if (total <= 0) {
+            return commands >= endTimes.length ? 1f : 0f;
+        }
+        return (float) (getTimeAfter(commands) / total);
+    }
+}
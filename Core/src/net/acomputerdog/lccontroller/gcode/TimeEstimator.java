@@ -0,0 +1,172 @@
+package net.acomputerdog.lccontroller.gcode;
+
+/*
+  Estimates how long a job takes to run on the machine.
+
+  Moves follow a trapezoidal speed profile: they accelerate to their feed, cruise, and slow down in time for the next
+  move.  Corners are taken at the speed allowed by the junction deviation, like the usual grbl-style planners, and
+  arcs are limited by their centripetal acceleration.  Laser and unknown commands stop the machine.
+
+  The job is read once to find the length, speed limit and corner speed of each move, then the speeds are limited by
+  one backward and one forward pass, so the cost is linear in the size of the job.
+ */
+public class TimeEstimator {
+    // how far a corner may be cut when taking it at speed (mm)
+    private static final double JUNCTION_DEVIATION = 0.01;
+
+    // acceleration in mm/s^2, and max feed in mm/s
+    private final double acceleration;
+    private final double maxSpeed;
+
+    /*
+      acceleration is in mm/s^2 and maxFeed is in mm/min, as used by the F word.
+     */
+    public TimeEstimator(double acceleration, int maxFeed) {
+        if (acceleration <= 0 || maxFeed <= 0) {
+            throw new IllegalArgumentException("Acceleration and max feed must be positive.");
+        }
+        this.acceleration = acceleration;
+        this.maxSpeed = maxFeed / 60.0;
+    }
+
+    public TimeEstimate estimate(CompiledJob job) {
+        int count = job.size();
+        // per command: length (mm), top speed, and max speed at the start and end (mm/s).  Floats keep large jobs small.
+        float[] length = new float[count];
+        float[] speed = new float[count];
+        float[] entry = new float[count];
+        float[] exit = new float[count];
+
+        // direction at the end of the last move, or 0,0 if the machine is stopped
+        double lastDirX = 0, lastDirY = 0;
+        // top speed of the last move
+        double lastSpeed = 0;
+        int lastX = 0, lastY = 0;
+        for (int i = 0; i < count; i++) {
+            byte opcode = job.getOpcode(i);
+            int x = job.getX(i);
+            int y = job.getY(i);
+            boolean arc = opcode == CompiledJob.OP_ARC_CW || opcode == CompiledJob.OP_ARC_CCW;
+            boolean moves = arc ? job.getArcI(i) != 0 || job.getArcJ(i) != 0 : x != lastX || y != lastY;
+
+            if (CompiledJob.isMotion(opcode) && moves) {
+                double feed = job.getFeed(i) > 0 ? Math.min(job.getFeed(i) / 60.0, maxSpeed) : maxSpeed;
+                double startDirX, startDirY, endDirX, endDirY;
+
+                if (arc) {
+                    boolean clockwise = opcode == CompiledJob.OP_ARC_CW;
+                    double centerX = lastX + job.getArcI(i);
+                    double centerY = lastY + job.getArcJ(i);
+                    double radius = Math.hypot(job.getArcI(i), job.getArcJ(i)) / 1000.0;
+
+                    double startAngle = Math.atan2(lastY - centerY, lastX - centerX);
+                    double endAngle = Math.atan2(y - centerY, x - centerX);
+                    double sweep = clockwise ? startAngle - endAngle : endAngle - startAngle;
+                    if (sweep <= 0) {
+                        // full circle when the ends are the same
+                        sweep += 2 * Math.PI;
+                    }
+                    length[i] = (float) (radius * sweep);
+                    // keep the centripetal acceleration under the limit
+                    speed[i] = (float) Math.min(feed, Math.sqrt(acceleration * radius));
+
+                    // tangents at the ends
+                    double sign = clockwise ? -1 : 1;
+                    startDirX = -sign * Math.sin(startAngle);
+                    startDirY = sign * Math.cos(startAngle);
+                    endDirX = -sign * Math.sin(endAngle);
+                    endDirY = sign * Math.cos(endAngle);
+                } else {
+                    double dx = (x - lastX) / 1000.0;
+                    double dy = (y - lastY) / 1000.0;
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    length[i] = (float) distance;
+                    speed[i] = (float) feed;
+                    startDirX = endDirX = dx / distance;
+                    startDirY = endDirY = dy / distance;
+                }
+
+                // neither move can go faster than its own limit through the corner
+                double junction = Math.min(junctionSpeed(lastDirX, lastDirY, startDirX, startDirY), Math.min(lastSpeed, speed[i]));
+                entry[i] = (float) junction;
+                lastDirX = endDirX;
+                lastDirY = endDirY;
+                lastSpeed = speed[i];
+            } else if (!CompiledJob.isMotion(opcode)) {
+                // the machine stops for anything that is not a move
+                lastDirX = 0;
+                lastDirY = 0;
+                lastSpeed = 0;
+            }
+
+            lastX = x;
+            lastY = y;
+        }
+
+        // backward pass: leave room to slow down for whatever comes next
+        double next = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            if (length[i] > 0) {
+                exit[i] = (float) next;
+                entry[i] = (float) Math.min(entry[i], Math.min(speed[i], Math.sqrt(next * next + 2 * acceleration * length[i])));
+                next = entry[i];
+            } else if (!CompiledJob.isMotion(job.getOpcode(i))) {
+                next = 0;
+            }
+        }
+
+        // forward pass: speeds that can actually be reached, and the time for each command
+        double[] endTimes = new double[count];
+        double time = 0;
+        double current = 0;
+        for (int i = 0; i < count; i++) {
+            if (length[i] > 0) {
+                double start = Math.min(entry[i], current);
+                double end = Math.min(exit[i], Math.sqrt(start * start + 2 * acceleration * length[i]));
+                time += moveTime(length[i], start, speed[i], end);
+                current = end;
+            } else if (!CompiledJob.isMotion(job.getOpcode(i))) {
+                current = 0;
+            }
+            endTimes[i] = time;
+        }
+
+        return new TimeEstimate(endTimes);
+    }
+
+    /*
+      Fastest speed at which the machine can turn from one direction to another.
+     */
+    private double junctionSpeed(double fromX, double fromY, double toX, double toY) {
+        if (fromX == 0 && fromY == 0) {
+            // starting from a stop
+            return 0;
+        }
+        double cosTheta = -(fromX * toX + fromY * toY);
+        if (cosTheta > 0.999999) {
+            // reversing
+            return 0;
+        }
+        if (cosTheta < -0.999999) {
+            // straight on
+            return Double.MAX_VALUE;
+        }
+        double sinHalfTheta = Math.sqrt(0.5 * (1 - cosTheta));
+        return Math.sqrt(acceleration * JUNCTION_DEVIATION * sinHalfTheta / (1 - sinHalfTheta));
+    }
+
+    /*
+      Time for one move following a trapezoid (or triangle) speed profile.
+     */
+    private double moveTime(double length, double start, double cruise, double end) {
+        double accelDistance = (cruise * cruise - start * start) / (2 * acceleration);
+        double decelDistance = (cruise * cruise - end * end) / (2 * acceleration);
+        if (accelDistance + decelDistance <= length) {
+            return (cruise - start) / acceleration + (cruise - end) / acceleration + (length - accelDistance - decelDistance) / cruise;
+        }
+        // never reaches the cruise speed
+        double peak = Math.sqrt((2 * acceleration * length + start * start + end * end) / 2);
+        peak = Math.max(peak, Math.max(start, end));
+        return (peak - start) / acceleration + (peak - end) / acceleration;
+    }
+}
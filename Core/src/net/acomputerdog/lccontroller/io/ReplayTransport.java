@@ -0,0 +1,267 @@
+package net.acomputerdog.lccontroller.io;
+
+import net.acomputerdog.lccontroller.IOConnection;
+import net.acomputerdog.lccontroller.util.Signal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+  Transport that plays back the laser's side of a TrafficCapture.
+
+  Received lines are played in the order they were recorded, each one after the sent line that it depends on.  The
+  n-th ack depends on the n-th sent line.  Other lines are sent while the firmware works on the line after the last
+  ack, so they depend on that line (or on the last line sent before them, if that is earlier).  Each line waits for
+  its sent line, and then for as long after it (or after the last received line, if that was later) as it did when
+  recorded, divided by the speed.  So the replay keeps the firmware's timing but follows what the connection really
+  sends.  Lines are matched by count, not by text; sent lines that differ from the capture are counted by
+  getMismatchedLines().
+
+  Playback starts with the first read, so nothing is lost to the flush done when an IOConnection is created.
+ */
+public class ReplayTransport implements Transport {
+    // as fast as possible
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final TrafficCapture capture;
+    private final double speed;
+    // for each received record, the number of the sent line that it depends on (starting from 1)
+    private final int[] dependency;
+    // capture time of each sent line
+    private final long[] sentTimes;
+
+    private final ReplayInputStream in = new ReplayInputStream();
+    private final ReplayOutputStream out = new ReplayOutputStream();
+    private final Thread player;
+    private final Signal lineSent = new Signal();
+
+    private volatile boolean isOpen = true;
+    private volatile boolean finished = false;
+    private volatile long startTime;
+    private volatile long endTime;
+
+    /*
+      speed is how much faster than the recording to play; 1 for the recorded speed, or MAX_SPEED for no delays.
+     */
+    public ReplayTransport(TrafficCapture capture, double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive: " + speed);
+        }
+        this.capture = capture;
+        this.speed = speed;
+
+        this.dependency = new int[capture.size()];
+        this.sentTimes = new long[capture.countSent() + 1];
+        int sent = 0;
+        int acks = 0;
+        for (int i = 0; i < capture.size(); i++) {
+            if (capture.isSent(i)) {
+                sent++;
+                sentTimes[sent] = capture.getTime(i);
+            } else if (IOConnection.ACK_LINE.equals(capture.getLine(i))) {
+                acks++;
+                dependency[i] = acks;
+            } else {
+                dependency[i] = Math.min(sent, acks + 1);
+            }
+        }
+        this.player = new Thread(this::play);
+        player.setDaemon(true);
+        player.setName("Replay_Thread");
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+        player.interrupt();
+        lineSent.release();
+        in.queue.offer(in.CLOSED);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /*
+      Time from the start of playback to the last received line (ns), or to now if it is still playing.
+     */
+    public long getElapsedTime() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (finished ? endTime : System.nanoTime()) - startTime;
+    }
+
+    public long getLinesSent() {
+        return out.lines;
+    }
+
+    public long getMismatchedLines() {
+        return out.mismatches;
+    }
+
+    private void play() {
+        startTime = System.nanoTime();
+        // last received line, in capture time and in playback time
+        long lastCapture = 0;
+        long lastPlayback = startTime;
+
+        for (int i = 0; i < capture.size() && isOpen; i++) {
+            if (capture.isSent(i)) {
+                continue;
+            }
+
+            // wait for the line that this depends on
+            int sent = dependency[i];
+            while (out.lines < sent) {
+                lineSent.waitForNotify();
+                if (!isOpen) {
+                    return;
+                }
+            }
+
+            // then wait as long as the firmware did after whatever happened last
+            long triggerCapture = lastCapture;
+            long triggerPlayback = lastPlayback;
+            if (sent > 0 && sentTimes[sent] > lastCapture) {
+                triggerCapture = sentTimes[sent];
+                triggerPlayback = Math.max(lastPlayback, out.times[sent]);
+            }
+            long target = triggerPlayback + (long) ((capture.getTime(i) - triggerCapture) / speed);
+            long wait;
+            while ((wait = target - System.nanoTime()) > 0 && isOpen) {
+                LockSupport.parkNanos(this, wait);
+            }
+            in.queue.offer(toBytes(capture.getLine(i)));
+            lastCapture = capture.getTime(i);
+            lastPlayback = Math.max(target, triggerPlayback);
+        }
+        endTime = System.nanoTime();
+        finished = true;
+    }
+
+    private static byte[] toBytes(String line) {
+        byte[] bytes = new byte[line.length() + 1];
+        for (int i = 0; i < line.length(); i++) {
+            char chr = line.charAt(i);
+            bytes[i] = chr < 0x100 ? (byte) chr : (byte) '?';
+        }
+        bytes[line.length()] = '\n';
+        return bytes;
+    }
+
+    /*
+      Lines from the player, read by the connection's reader thread.
+     */
+    private final class ReplayInputStream extends InputStream {
+        private static final int EOF = -1;
+        private final byte[] CLOSED = new byte[0];
+
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private byte[] current;
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == EOF ? EOF : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (player.getState() == Thread.State.NEW) {
+                synchronized (player) {
+                    if (player.getState() == Thread.State.NEW) {
+                        player.start();
+                    }
+                }
+            }
+            while (current == null || position == current.length) {
+                if (!isOpen) {
+                    return EOF;
+                }
+                try {
+                    current = queue.take();
+                    position = 0;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while reading replay.");
+                }
+                if (current == CLOSED) {
+                    return EOF;
+                }
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current != null ? current.length - position : 0;
+        }
+    }
+
+    /*
+      Counts the lines written by the connection's writer thread, and checks them against the capture.
+     */
+    private final class ReplayOutputStream extends OutputStream {
+        private final StringBuilder line = new StringBuilder();
+        // capture record of the next sent line
+        private int nextSent = 0;
+        // playback time of each sent line, starting from 1.  Written before lines, so it is safe to read up to lines.
+        private long[] times = new long[1024];
+        private volatile long lines = 0;
+        private volatile long mismatches = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!isOpen) {
+                throw new IOException("Replay closed.");
+            }
+            if (b == '\n') {
+                while (nextSent < capture.size() && !capture.isSent(nextSent)) {
+                    nextSent++;
+                }
+                if (nextSent >= capture.size() || !capture.getLine(nextSent).contentEquals(line)) {
+                    mismatches++;
+                }
+                nextSent++;
+                line.setLength(0);
+                if (lines + 1 >= times.length) {
+                    times = Arrays.copyOf(times, times.length * 2);
+                }
+                times[(int) lines + 1] = System.nanoTime();
+                lines++;
+                lineSent.release();
+            } else {
+                line.append((char) (b & 0xFF));
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+    }
+}
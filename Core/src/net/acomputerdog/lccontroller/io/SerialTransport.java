@@ -0,0 +1,36 @@
+package net.acomputerdog.lccontroller.io;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+  Transport over an open serial port.
+ */
+public class SerialTransport implements Transport {
+    private final SerialPort serialPort;
+
+    public SerialTransport(SerialPort serialPort) {
+        this.serialPort = serialPort;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return serialPort.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return serialPort.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        serialPort.closePort();
+    }
+
+    public SerialPort getSerialPort() {
+        return serialPort;
+    }
+}
@@ -0,0 +1,134 @@
+package net.acomputerdog.lccontroller.io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+  Lines read from a capture file made by TrafficRecorder, in the order they were recorded.
+  Times are in nanoseconds since the start of the recording.
+ */
+public class TrafficCapture {
+    private final long startTime;
+    private int size = 0;
+    private byte[] types = new byte[1024];
+    private long[] times = new long[1024];
+    private String[] lines = new String[1024];
+
+    private TrafficCapture(long startTime) {
+        this.startTime = startTime;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+      TrafficRecorder.TYPE_SENT or TrafficRecorder.TYPE_RECEIVED.
+     */
+    public byte getType(int record) {
+        return types[record];
+    }
+
+    public long getTime(int record) {
+        return times[record];
+    }
+
+    public String getLine(int record) {
+        return lines[record];
+    }
+
+    public boolean isSent(int record) {
+        return types[record] == TrafficRecorder.TYPE_SENT;
+    }
+
+    /*
+      When the recording started, in ms since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /*
+      Time of the last record (ns).
+     */
+    public long getDuration() {
+        return size > 0 ? times[size - 1] : 0;
+    }
+
+    public int countSent() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (types[i] == TrafficRecorder.TYPE_SENT) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void add(byte type, long time, String line) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            times = Arrays.copyOf(times, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        types[size] = type;
+        times[size] = time;
+        lines[size] = line;
+        size++;
+    }
+
+    /*
+      Reads a capture.  A capture that ends part way through a record, such as one that was still being recorded,
+      is read up to the last complete record.
+     */
+    public static TrafficCapture load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != TrafficRecorder.MAGIC) {
+                throw new IOException("Not a traffic capture: " + file);
+            }
+            int version = in.readInt();
+            if (version != TrafficRecorder.VERSION) {
+                throw new IOException("Unsupported traffic capture version: " + version);
+            }
+            TrafficCapture capture = new TrafficCapture(in.readLong());
+
+            byte[] buffer = new byte[256];
+            long time = 0;
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == TrafficRecorder.TYPE_END) {
+                        break;
+                    }
+                    if (type != TrafficRecorder.TYPE_SENT && type != TrafficRecorder.TYPE_RECEIVED) {
+                        throw new IOException("Corrupt traffic capture: unknown record type " + type);
+                    }
+                    time += readVarLong(in);
+                    int length = (int) readVarLong(in);
+                    if (length > buffer.length) {
+                        buffer = new byte[Math.max(length, buffer.length * 2)];
+                    }
+                    in.readFully(buffer, 0, length);
+                    capture.add(type, time, new String(buffer, 0, length, StandardCharsets.ISO_8859_1));
+                }
+            } catch (EOFException ignored) {
+                // end of the file without an end marker
+            }
+            return capture;
+        }
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt traffic capture: number is too long");
+    }
+}
@@ -0,0 +1,179 @@
+package net.acomputerdog.lccontroller.io;
+
+import net.acomputerdog.lccontroller.IOConnection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/*
+  Records every line sent to and received from the laser, with the time it was seen, to a capture file.
+
+  The file starts with a header (MAGIC, VERSION, and the start time in ms since the epoch), followed by one record
+  per line: the type, the nanoseconds since the last record and the length as variable length numbers, then the
+  line as ISO-8859-1 bytes.  The file is written through memory mapped regions, so recording a line is only a copy
+  into memory and never waits for the disk.  New regions are zero filled, and a zero type marks the end of the
+  capture, so a capture that was not closed properly can still be read.  See TrafficCapture for reading them.
+ */
+public class TrafficRecorder implements Closeable {
+    public static final int MAGIC = 0x4C435452; // "LCTR"
+    public static final int VERSION = 1;
+
+    public static final byte TYPE_END = 0;
+    public static final byte TYPE_SENT = 1;
+    public static final byte TYPE_RECEIVED = 2;
+
+    // size of each mapped part of the file
+    private static final int REGION_SIZE = 4 << 20;
+    // type, time and length
+    private static final int MAX_RECORD_HEADER = 1 + 10 + 5;
+
+    private final File file;
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    // offset in the file of the start of the region
+    private long regionStart;
+
+    private final long startTime;
+    private long lastTime;
+    private long records = 0;
+    private boolean closed = false;
+    private IOException failure;
+
+    private final Consumer<String> sentMonitor = this::recordSent;
+    private final Consumer<String> receivedMonitor = this::recordReceived;
+
+    public TrafficRecorder(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            map(0, REGION_SIZE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        region.putInt(MAGIC);
+        region.putInt(VERSION);
+        region.putLong(System.currentTimeMillis());
+        startTime = System.nanoTime();
+        lastTime = startTime;
+    }
+
+    /*
+      Starts recording the traffic of a connection.
+     */
+    public void attach(IOConnection connection) {
+        connection.addLineSentMonitor(sentMonitor);
+        connection.addLineReceivedMonitor(receivedMonitor);
+    }
+
+    public void detach(IOConnection connection) {
+        connection.removeLineSentMonitor(sentMonitor);
+        connection.removeLineReceivedMonitor(receivedMonitor);
+    }
+
+    public void recordSent(String line) {
+        record(TYPE_SENT, line);
+    }
+
+    public void recordReceived(String line) {
+        record(TYPE_RECEIVED, line);
+    }
+
+    /*
+      Records a line.  Called from the connection's threads, so errors are kept for getFailure() instead of thrown.
+     */
+    public synchronized void record(byte type, String line) {
+        if (closed) {
+            return;
+        }
+        long time = System.nanoTime();
+        int length = line.length();
+        try {
+            reserve(MAX_RECORD_HEADER + length);
+        } catch (IOException e) {
+            failure = e;
+            closeQuietly();
+            return;
+        }
+
+        region.put(type);
+        putVarLong(time - lastTime);
+        putVarLong(length);
+        for (int i = 0; i < length; i++) {
+            char chr = line.charAt(i);
+            region.put(chr < 0x100 ? (byte) chr : (byte) '?');
+        }
+        lastTime = time;
+        records++;
+    }
+
+    /*
+      Number of lines recorded so far.
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /*
+      The error that stopped the recording, or null if there was none.
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long end = regionStart + region.position();
+        region.force();
+        region = null;
+        try {
+            // can fail on some systems while the file is still mapped, which is fine because of the end marker
+            channel.truncate(end);
+        } catch (IOException ignored) {
+        }
+        channel.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // makes sure that there is room for a record, moving on to a new region if needed
+    private void reserve(int bytes) throws IOException {
+        if (region.remaining() < bytes) {
+            map(regionStart + region.position(), Math.max(REGION_SIZE, bytes));
+        }
+    }
+
+    private void map(long position, int size) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        regionStart = position;
+    }
+
+    // seven bits at a time, low bits first, with the high bit set on all but the last byte
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            region.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        region.put((byte) value);
+    }
+}
@@ -0,0 +1,19 @@
+package net.acomputerdog.lccontroller.io;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+  Byte streams that an IOConnection talks to the laser over.  Normally a serial port, but can be anything that
+  behaves like one, such as a ReplayTransport.
+ */
+public interface Transport {
+    /*
+      Stream of bytes from the laser.  Reads should block until at least one byte is available.
+     */
+    InputStream getInputStream();
+
+    OutputStream getOutputStream();
+
+    void close();
+}
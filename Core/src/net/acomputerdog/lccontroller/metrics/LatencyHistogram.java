@@ -0,0 +1,127 @@
+package net.acomputerdog.lccontroller.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+  Counts how often values (normally latencies in ns) fall into logarithmic buckets.
+
+  Each power of two is split into SUB_COUNT buckets, so a value is known to within 1/SUB_COUNT (12.5%) of itself,
+  and every positive long fits into BUCKET_COUNT buckets.  Recording is one atomic increment and never blocks or
+  allocates, so it can be called from the serial threads.  Readers take a Snapshot, which is not atomic as a whole
+  but is never more than a few samples behind.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    public static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+
+    /*
+      Records a value.  Negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        sum.add(value);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, sum.sum());
+    }
+
+    /*
+      Values below SUB_COUNT * 2 have a bucket each.  Above that, the bucket is the power of two and the next
+      SUB_BITS bits of the value.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT * 2) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_COUNT * 2) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        return (SUB_COUNT + sub) << (exponent - SUB_BITS);
+    }
+
+    static long upperBound(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+
+    /*
+      Bucket counts at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        private Snapshot(long[] counts, long count, long sum) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /*
+          Smallest value that at least the given fraction (0 to 1) of the samples are at or below, rounded up to the
+          top of its bucket.  0 if there are no samples.
+         */
+        public long getPercentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        public long getMax() {
+            return getPercentile(1);
+        }
+
+        /*
+          The samples recorded since an earlier snapshot of the same histogram.
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] diff = new long[counts.length];
+            long diffCount = 0;
+            for (int i = 0; i < counts.length; i++) {
+                diff[i] = Math.max(0, counts[i] - earlier.counts[i]);
+                diffCount += diff[i];
+            }
+            return new Snapshot(diff, diffCount, Math.max(0, sum - earlier.sum));
+        }
+    }
+}
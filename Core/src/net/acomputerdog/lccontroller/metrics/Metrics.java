@@ -0,0 +1,205 @@
+package net.acomputerdog.lccontroller.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+  Named counters, gauges and latency histograms for one connection.
+
+  Counters and histograms are created on first use and can be updated from any thread without locking.  Callers on
+  hot paths should look them up once and keep the reference.  Gauges are read only when a report is made.
+
+  A job is the span between startJob() and endJob().  Its throughput and ack latency are worked out from the ACKS
+  counter and the ACK_LATENCY histogram, so nothing extra is recorded per line while it runs.
+ */
+public class Metrics {
+    public static final String LINES_SENT = "lines.sent";
+    public static final String BYTES_SENT = "bytes.sent";
+    public static final String LINES_RECEIVED = "lines.received";
+    public static final String BYTES_RECEIVED = "bytes.received";
+    public static final String ACKS = "acks";
+    public static final String TIMEOUTS = "timeouts";
+    public static final String STATUS_POLLS = "status.polls";
+    // time from sending a line to its ack (ns)
+    public static final String ACK_LATENCY = "ack.latency";
+    public static final String LINES_IN_FLIGHT = "queue.lines_in_flight";
+    public static final String BYTES_IN_FLIGHT = "queue.bytes_in_flight";
+    public static final String OUTPUT_QUEUE = "queue.output";
+
+    // sorted, so that reports are in a stable order
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    private final AtomicReference<Job> job = new AtomicReference<>();
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /*
+      Adds a value that is read when needed, such as the size of a queue.  Replaces any gauge with the same name.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /*
+      Value of a counter or gauge, or 0 if there is none with that name.
+     */
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongSupplier gauge = gauges.get(name);
+        return gauge != null ? gauge.getAsLong() : 0;
+    }
+
+    /*
+      Starts measuring a new job, replacing any earlier one.
+     */
+    public void startJob() {
+        job.set(new Job(System.nanoTime(), get(ACKS), histogram(ACK_LATENCY).snapshot()));
+    }
+
+    /*
+      Stops measuring the current job.  Its numbers are kept until the next job starts.
+     */
+    public void endJob() {
+        Job current = job.get();
+        if (current != null && current.isRunning()) {
+            job.compareAndSet(current, current.end(System.nanoTime(), get(ACKS), histogram(ACK_LATENCY).snapshot()));
+        }
+    }
+
+    public boolean isJobRunning() {
+        Job current = job.get();
+        return current != null && current.isRunning();
+    }
+
+    /*
+      Lines acknowledged during the current or last job.
+     */
+    public long getJobLines() {
+        Job current = job.get();
+        if (current == null) {
+            return 0;
+        }
+        return (current.isRunning() ? get(ACKS) : current.endAcks) - current.startAcks;
+    }
+
+    /*
+      Length of the current or last job (ns).
+     */
+    public long getJobTime() {
+        Job current = job.get();
+        if (current == null) {
+            return 0;
+        }
+        return (current.isRunning() ? System.nanoTime() : current.endTime) - current.startTime;
+    }
+
+    public double getJobLinesPerSecond() {
+        long time = getJobTime();
+        return time > 0 ? getJobLines() * 1e9 / time : 0;
+    }
+
+    /*
+      Ack latencies of the current or last job, or null if no job has started.
+     */
+    public LatencyHistogram.Snapshot getJobLatency() {
+        Job current = job.get();
+        if (current == null) {
+            return null;
+        }
+        LatencyHistogram.Snapshot end = current.isRunning() ? histogram(ACK_LATENCY).snapshot() : current.endLatency;
+        return end.since(current.startLatency);
+    }
+
+    /*
+      Every metric as a line of text, followed by the current job if there has been one.
+     */
+    public String[] report() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            lines.add(String.format("%s: %d", entry.getKey(), entry.getValue().sum()));
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            lines.add(String.format("%s: %d", entry.getKey(), entry.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            lines.add(entry.getKey() + ": " + formatLatency(entry.getValue().snapshot()));
+        }
+
+        LatencyHistogram.Snapshot jobLatency = getJobLatency();
+        if (jobLatency != null) {
+            lines.add(String.format("job: %s, %d lines in %.1f s (%.1f lines/s)", isJobRunning() ? "running" : "finished",
+                    getJobLines(), getJobTime() / 1e9, getJobLinesPerSecond()));
+            lines.add("job " + ACK_LATENCY + ": " + formatLatency(jobLatency));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public static String formatLatency(LatencyHistogram.Snapshot latency) {
+        if (latency.getCount() == 0) {
+            return "no samples";
+        }
+        return String.format("%d samples, mean %s, p50 %s, p99 %s, p999 %s, max %s", latency.getCount(),
+                formatNanos((long) latency.getMean()), formatNanos(latency.getPercentile(0.5)),
+                formatNanos(latency.getPercentile(0.99)), formatNanos(latency.getPercentile(0.999)),
+                formatNanos(latency.getMax()));
+    }
+
+    public static String formatNanos(long nanos) {
+        if (nanos < 1000000L) {
+            return String.format("%.1f us", nanos / 1e3);
+        } else if (nanos < 1000000000L) {
+            return String.format("%.2f ms", nanos / 1e6);
+        } else {
+            return String.format("%.2f s", nanos / 1e9);
+        }
+    }
+
+    private static final class Job {
+        private final long startTime;
+        private final long startAcks;
+        private final LatencyHistogram.Snapshot startLatency;
+
+        // end values, or -1 and null while running
+        private final long endTime;
+        private final long endAcks;
+        private final LatencyHistogram.Snapshot endLatency;
+
+        private Job(long startTime, long startAcks, LatencyHistogram.Snapshot startLatency) {
+            this(startTime, startAcks, startLatency, -1, -1, null);
+        }
+
+        private Job(long startTime, long startAcks, LatencyHistogram.Snapshot startLatency, long endTime, long endAcks, LatencyHistogram.Snapshot endLatency) {
+            this.startTime = startTime;
+            this.startAcks = startAcks;
+            this.startLatency = startLatency;
+            this.endTime = endTime;
+            this.endAcks = endAcks;
+            this.endLatency = endLatency;
+        }
+
+        private boolean isRunning() {
+            return endLatency == null;
+        }
+
+        private Job end(long time, long acks, LatencyHistogram.Snapshot latency) {
+            return new Job(startTime, startAcks, startLatency, time, acks, latency);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package net.acomputerdog.lccontroller.spool;
+
+import net.acomputerdog.lccontroller.JobStreamer;
+import net.acomputerdog.lccontroller.LaserProperties;
+import net.acomputerdog.lccontroller.Machine;
+import net.acomputerdog.lccontroller.MachineRegistry;
+import net.acomputerdog.lccontroller.ex.LaserException;
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+import net.acomputerdog.lccontroller.gcode.GCodeFile;
+import net.acomputerdog.lccontroller.gcode.JobCompiler;
+import net.acomputerdog.lccontroller.gcode.JobPreparer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+  Queue of gcode jobs that are run on the machines of a MachineRegistry as they become free.
+
+  Jobs are kept in a SpoolJournal, so the queue survives a restart.  Each job has a priority and can be limited to
+  one machine.  New jobs are compiled, prepared (see JobPreparer) and checked on a background thread, so that they
+  are ready before a machine is, and the next job is started on a machine as soon as the spooler sees that its last
+  job has finished.  A job is prepared for the properties of each machine that it may run on, so it cuts the same
+  as it would if the file were opened for that machine in the GUI, and it is only started on a machine once it has
+  been prepared for that machine.  Machines that connect later have the waiting jobs prepared for them then.
+
+  All changes are made on the spooler's lock, and all background work runs on two threads: one compiles and
+  prepares jobs, and one starts them, so starting a job never waits for a slow preparation.  Jobs finishing are
+  handed to the second one, so the connections' reader threads never wait for the spooler.
+ */
+public class JobSpooler implements Closeable {
+    // how often to look for idle machines, in case one was freed without the spooler seeing it (ms)
+    private static final long DISPATCH_INTERVAL = 5000;
+
+    private final MachineRegistry registry;
+    private final SpoolJournal journal;
+
+    // guarded by this
+    private final Map<Long, SpoolJob> jobs = new TreeMap<>();
+    // compiled jobs, for READY and RUNNING jobs
+    private final Map<Long, Compiled> compiled = new HashMap<>();
+    private final Map<Long, JobStreamer> running = new HashMap<>();
+    private boolean closed = false;
+    private IOException failure;
+
+    private final ExecutorService compiler;
+    private final ScheduledExecutorService dispatcher;
+    private final Consumer<Machine> connectMonitor = machine -> {
+        prepareReady(machine);
+        dispatchSoon();
+    };
+
+    public JobSpooler(MachineRegistry registry, File journalFile) throws IOException {
+        this.registry = registry;
+        this.journal = SpoolJournal.open(journalFile, jobs);
+        this.compiler = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Spool_Compile_Thread");
+            return thread;
+        });
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Spool_Dispatch_Thread");
+            return thread;
+        });
+
+        synchronized (this) {
+            for (SpoolJob job : jobs.values()) {
+                if (job.getState() == SpoolState.QUEUED) {
+                    compileLater(job);
+                }
+            }
+        }
+        registry.addConnectMonitor(connectMonitor);
+        dispatcher.scheduleWithFixedDelay(this::dispatch, DISPATCH_INTERVAL, DISPATCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+      Adds a job to the queue.  Target is the name of the machine that it must run on, or null for any machine.
+     */
+    public synchronized SpoolJob submit(File file, int priority, String target) throws IOException {
+        checkOpen();
+        SpoolJournal.checkField("Path", file.getPath());
+        if (target != null) {
+            SpoolJournal.checkField("Machine name", target);
+        }
+
+        SpoolJob job = new SpoolJob(journal.takeId(), file.getAbsoluteFile(), priority, target,
+                System.currentTimeMillis(), SpoolState.QUEUED, null, null);
+        journal.writeAdd(job);
+        jobs.put(job.getId(), job);
+        compileLater(job);
+        return job;
+    }
+
+    public synchronized SpoolJob setPriority(long id, int priority) throws IOException {
+        checkOpen();
+        SpoolJob job = getJob(id);
+        if (job.getState().isFinished()) {
+            throw new IllegalStateException("Job " + id + " has already finished.");
+        }
+        if (job.getPriority() != priority) {
+            job = job.withPriority(priority);
+            journal.writePriority(job);
+            jobs.put(id, job);
+        }
+        return job;
+    }
+
+    /*
+      Removes a job from the queue, or stops it if it is running.  Returns false if it had already finished.
+     */
+    public synchronized boolean cancel(long id) throws IOException {
+        checkOpen();
+        SpoolJob job = getJob(id);
+        if (job.getState().isFinished()) {
+            return false;
+        }
+        setState(job.withState(SpoolState.CANCELLED));
+        JobStreamer streamer = running.remove(id);
+        if (streamer != null) {
+            streamer.stop();
+        }
+        return true;
+    }
+
+    /*
+      Puts a failed or cancelled job back in the queue.
+     */
+    public synchronized SpoolJob retry(long id) throws IOException {
+        checkOpen();
+        SpoolJob job = getJob(id);
+        if (job.getState() != SpoolState.FAILED && job.getState() != SpoolState.CANCELLED) {
+            throw new IllegalStateException("Job " + id + " has not failed or been cancelled.");
+        }
+        job = job.withState(SpoolState.QUEUED);
+        setState(job);
+        compileLater(job);
+        return job;
+    }
+
+    /*
+      The job with an id, or null if there is none.
+     */
+    public synchronized SpoolJob get(long id) {
+        return jobs.get(id);
+    }
+
+    /*
+      Every job, in the order that they were added.
+     */
+    public synchronized List<SpoolJob> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /*
+      The last error that stopped a job from being started in the background, or null if there was none.  Most are
+      from writing the journal; jobs are not started while it cannot be written.
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    /*
+      Stops the spooler.  Running jobs are left to finish, but are recorded as failed when the spooler is next opened.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        registry.removeConnectMonitor(connectMonitor);
+        compiler.shutdownNow();
+        dispatcher.shutdownNow();
+        synchronized (this) {
+            journal.close();
+        }
+    }
+
+    private void compileLater(SpoolJob job) {
+        try {
+            compiler.execute(() -> compile(job));
+        } catch (RejectedExecutionException ignored) {
+            // closed
+        }
+    }
+
+    private void dispatchSoon() {
+        try {
+            dispatcher.execute(this::dispatch);
+        } catch (RejectedExecutionException ignored) {
+            // closed
+        }
+    }
+
+    // runs on the compile thread
+    private void compile(SpoolJob job) {
+        GCodeFile file = null;
+        Compiled result = null;
+        String error = null;
+        try {
+            file = GCodeFile.load(job.getFile());
+            result = new Compiled(file, JobCompiler.compileCached(file));
+            for (Machine machine : registry.getMachines()) {
+                if (job.canRunOn(machine.getName())) {
+                    result.prepare(machine.getLaser().getProperties());
+                }
+            }
+        } catch (IOException e) {
+            error = "Unable to read file: " + e.getMessage();
+        } catch (LaserException e) {
+            error = e.getMessage();
+        }
+
+        synchronized (this) {
+            SpoolJob current = jobs.get(job.getId());
+            // cancelled while compiling
+            if (closed || current == null || current.getState() != SpoolState.QUEUED) {
+                return;
+            }
+            try {
+                if (error != null) {
+                    setState(current.withFailure(error));
+                    return;
+                }
+                // finding a machine only checks the bed, so a job that can never fit its machine is failed now
+                Machine target = current.getTarget() != null ? registry.get(current.getTarget()) : null;
+                String bounds = target != null ? checkBounds(result.base, target) : null;
+                if (bounds != null) {
+                    setState(current.withFailure(bounds));
+                    return;
+                }
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+            compiled.put(current.getId(), result);
+            jobs.put(current.getId(), current.withState(SpoolState.READY));
+        }
+        dispatchSoon();
+    }
+
+    // runs on the compile thread
+    private void prepare(long id, Compiled source, LaserProperties properties) {
+        try {
+            source.prepare(properties);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                SpoolJob job = jobs.get(id);
+                if (!closed && job != null && job.getState() == SpoolState.READY) {
+                    try {
+                        setState(job.withFailure("Unable to prepare job: " + e));
+                    } catch (IOException ex) {
+                        failure = ex;
+                    }
+                }
+            }
+            return;
+        }
+        dispatchSoon();
+    }
+
+    /*
+      Prepares a job for a laser on the compile thread, unless that has been done or started already.
+     */
+    private void prepareLater(long id, Compiled source, LaserProperties properties) {
+        if (source.requested.add(JobPreparer.getSettingsKey(properties))) {
+            try {
+                compiler.execute(() -> prepare(id, source, properties));
+            } catch (RejectedExecutionException ignored) {
+                // closed
+            }
+        }
+    }
+
+    // prepares the waiting jobs for a machine that just connected
+    private synchronized void prepareReady(Machine machine) {
+        if (closed) {
+            return;
+        }
+        LaserProperties properties = machine.getLaser().getProperties();
+        for (SpoolJob job : jobs.values()) {
+            if (job.getState() == SpoolState.READY && job.canRunOn(machine.getName())) {
+                prepareLater(job.getId(), compiled.get(job.getId()), properties);
+            }
+        }
+    }
+
+    // runs on the dispatch thread
+    private synchronized void dispatch() {
+        if (closed) {
+            return;
+        }
+        try {
+            for (Machine machine : registry.getMachines()) {
+                if (machine.isConnected() && !machine.isBusy()) {
+                    startNext(machine);
+                }
+            }
+        } catch (IOException e) {
+            // without the journal, a crash could run a job twice
+            failure = e;
+        } catch (RuntimeException e) {
+            // keep the schedule running
+            failure = new IOException("Unable to start jobs: " + e, e);
+        }
+    }
+
+    private void startNext(Machine machine) throws IOException {
+        SpoolJob next;
+        while ((next = pickJob(machine)) != null) {
+            String bounds = checkBounds(compiled.get(next.getId()).base, machine);
+            if (bounds != null) {
+                // only a job for this machine is picked if it does not fit
+                setState(next.withFailure(bounds));
+                continue;
+            }
+
+            SpoolJob job = next.withRunning(machine.getName());
+            setState(job);
+            Compiled source = compiled.get(job.getId());
+            JobStreamer streamer;
+            try {
+                streamer = machine.startJob(source.get(machine.getLaser().getProperties()), source.file);
+            } catch (IllegalStateException e) {
+                // something else started a job on the machine first
+                setState(next);
+                return;
+            }
+            running.put(job.getId(), streamer);
+            streamer.getResult().whenComplete((value, error) -> {
+                try {
+                    dispatcher.execute(() -> onFinished(job.getId(), streamer, error));
+                } catch (RejectedExecutionException ignored) {
+                    // closed
+                }
+            });
+            return;
+        }
+    }
+
+    // highest priority first, then oldest first, of the jobs that are prepared for the machine
+    private SpoolJob pickJob(Machine machine) {
+        LaserProperties properties = machine.getLaser().getProperties();
+        SpoolJob best = null;
+        for (SpoolJob job : jobs.values()) {
+            if (job.getState() != SpoolState.READY || !job.canRunOn(machine.getName())) {
+                continue;
+            }
+            Compiled source = compiled.get(job.getId());
+            // a job for any machine waits for one that it fits on
+            if (job.getTarget() == null && !fitsBed(source.base, properties)) {
+                continue;
+            }
+            // such as when the machine connected while the job was being compiled
+            if (source.get(properties) == null) {
+                prepareLater(job.getId(), source, properties);
+                continue;
+            }
+            if (best == null || job.getPriority() > best.getPriority()) {
+                best = job;
+            }
+        }
+        return best;
+    }
+
+    private synchronized void onFinished(long id, JobStreamer streamer, Throwable error) {
+        if (running.get(id) == streamer) {
+            running.remove(id);
+        }
+        compiled.remove(id);
+        SpoolJob job = jobs.get(id);
+        try {
+            if (!closed && job != null && job.getState() == SpoolState.RUNNING) {
+                if (error == null) {
+                    setState(job.withState(SpoolState.DONE));
+                } else {
+                    if (error instanceof CompletionException && error.getCause() != null) {
+                        error = error.getCause();
+                    }
+                    setState(job.withFailure(error.getMessage() != null ? error.getMessage() : error.toString()));
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        dispatch();
+    }
+
+    // journals a change, then makes it
+    private void setState(SpoolJob job) throws IOException {
+        journal.writeState(job);
+        jobs.put(job.getId(), job);
+        if (job.getState() != SpoolState.READY && job.getState() != SpoolState.RUNNING) {
+            compiled.remove(job.getId());
+        }
+    }
+
+    private SpoolJob getJob(long id) {
+        SpoolJob job = jobs.get(id);
+        if (job == null) {
+            throw new IllegalArgumentException("There is no job " + id + ".");
+        }
+        return job;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Job spooler is closed.");
+        }
+    }
+
+    private static boolean fitsBed(CompiledJob job, LaserProperties properties) {
+        long maxX = properties.getBedWidth() * 1000L;
+        long maxY = properties.getBedHeight() * 1000L;
+        return job.getMinX() >= 0 && job.getMinY() >= 0 && job.getMaxX() <= maxX && job.getMaxY() <= maxY;
+    }
+
+    // null if the job fits on the machine's bed
+    private static String checkBounds(CompiledJob job, Machine machine) {
+        LaserProperties properties = machine.getLaser().getProperties();
+        if (fitsBed(job, properties)) {
+            return null;
+        }
+        return String.format("Job moves outside of the bed of %s: X %d to %d mm, Y %d to %d mm, but the bed is %d x %d mm.",
+                machine.getName(), job.getMinX() / 1000, job.getMaxX() / 1000, job.getMinY() / 1000, job.getMaxY() / 1000,
+                properties.getBedWidth(), properties.getBedHeight());
+    }
+
+    private static final class Compiled {
+        private final GCodeFile file;
+        // as compiled, before it is prepared for a machine
+        private final CompiledJob base;
+        // by JobPreparer.getSettingsKey(), written on the compile thread
+        private final Map<String, CompiledJob> prepared = new ConcurrentHashMap<>();
+        // settings keys that have been prepared, or are waiting to be
+        private final Set<String> requested = ConcurrentHashMap.newKeySet();
+
+        private Compiled(GCodeFile file, CompiledJob base) {
+            this.file = file;
+            this.base = base;
+        }
+
+        // only on the compile thread
+        private void prepare(LaserProperties properties) {
+            String key = JobPreparer.getSettingsKey(properties);
+            requested.add(key);
+            if (!prepared.containsKey(key)) {
+                prepared.put(key, JobPreparer.prepare(base, properties, null));
+            }
+        }
+
+        /*
+          The job as prepared for a laser, or null if it has not been prepared for the laser's properties yet.
+         */
+        private CompiledJob get(LaserProperties properties) {
+            return prepared.get(JobPreparer.getSettingsKey(properties));
+        }
+    }
+}
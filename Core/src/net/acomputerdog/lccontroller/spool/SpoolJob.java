@@ -0,0 +1,110 @@
+package net.acomputerdog.lccontroller.spool;
+
+import java.io.File;
+
+/*
+  A job in a JobSpooler.  Jobs are immutable; the spooler replaces them when they change.
+ */
+public final class SpoolJob {
+    private final long id;
+    private final File file;
+    private final int priority;
+    private final String target;
+    private final long submitTime;
+    private final SpoolState state;
+    private final String machine;
+    private final String message;
+
+    SpoolJob(long id, File file, int priority, String target, long submitTime, SpoolState state, String machine, String message) {
+        this.id = id;
+        this.file = file;
+        this.priority = priority;
+        this.target = target;
+        this.submitTime = submitTime;
+        this.state = state;
+        this.machine = machine;
+        this.message = message;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /*
+      Jobs with a higher priority run first.  Jobs with the same priority run in the order that they were added.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /*
+      Name of the machine that the job must run on, or null if it can run on any.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /*
+      Time that the job was added (ms since the epoch).
+     */
+    public long getSubmitTime() {
+        return submitTime;
+    }
+
+    public SpoolState getState() {
+        return state;
+    }
+
+    /*
+      Name of the machine that the job is running or last ran on, or null if it has not been started.
+     */
+    public String getMachine() {
+        return machine;
+    }
+
+    /*
+      Reason that the job failed, or null.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean canRunOn(String machineName) {
+        return target == null || target.equals(machineName);
+    }
+
+    SpoolJob withPriority(int priority) {
+        return new SpoolJob(id, file, priority, target, submitTime, state, machine, message);
+    }
+
+    SpoolJob withState(SpoolState state) {
+        return new SpoolJob(id, file, priority, target, submitTime, state, machine, null);
+    }
+
+    SpoolJob withRunning(String machine) {
+        return new SpoolJob(id, file, priority, target, submitTime, SpoolState.RUNNING, machine, null);
+    }
+
+    SpoolJob withFailure(String message) {
+        return new SpoolJob(id, file, priority, target, submitTime, SpoolState.FAILED, machine, message);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append('#').append(id).append(' ').append(file).append(" [").append(state).append("] priority ").append(priority);
+        if (target != null) {
+            builder.append(", on ").append(target);
+        } else if (machine != null) {
+            builder.append(", ran on ").append(machine);
+        }
+        if (message != null) {
+            builder.append(": ").append(message);
+        }
+        return builder.toString();
+    }
+}
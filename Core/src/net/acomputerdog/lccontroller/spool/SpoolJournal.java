@@ -0,0 +1,232 @@
+package net.acomputerdog.lccontroller.spool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/*
+  Append-only record of the jobs in a spooler, so that the queue survives a restart.
+
+  The journal is a UTF-8 text file with one record per line and tab separated fields:
+    next <id>                                       first id that has not been used
+    add <id> <submit time> <priority> <target> <path>   target is empty for any machine
+    priority <id> <priority>
+    state <id> <state> [<machine or message>]       machine for RUNNING, message for FAILED
+
+  Every record is forced to the disk before the change it describes is made, so a job that is in the journal as
+  RUNNING may or may not have been started, but a job that was started is always in the journal as RUNNING.
+  A crash can only cut off the last record, which has no line ending and is ignored.  Unknown or damaged records
+  are skipped.
+
+  When the journal is opened it is compacted: finished jobs (other than failed ones) are dropped, and the rest are
+  written to a new file that replaces the old one.
+ */
+public class SpoolJournal implements Closeable {
+    public static final String HEADER = "LCSPOOL\t1";
+
+    private static final String RECORD_NEXT = "next";
+    private static final String RECORD_ADD = "add";
+    private static final String RECORD_PRIORITY = "priority";
+    private static final String RECORD_STATE = "state";
+
+    private final File file;
+    private final FileChannel channel;
+    private long nextId;
+
+    private SpoolJournal(File file, FileChannel channel, long nextId) {
+        this.file = file;
+        this.channel = channel;
+        this.nextId = nextId;
+    }
+
+    /*
+      Reads a journal into jobs (by id), compacts it and opens it for appending.  A missing journal is created.
+
+      Jobs that were running when the journal was last written are marked as failed, because there is no way to
+      tell how much of them was cut.  Jobs that were waiting are put back to QUEUED, to be compiled again.
+     */
+    public static SpoolJournal open(File file, Map<Long, SpoolJob> jobs) throws IOException {
+        long nextId = 1;
+        if (file.isFile()) {
+            nextId = read(file, jobs);
+        }
+
+        jobs.values().removeIf(job -> job.getState() == SpoolState.DONE || job.getState() == SpoolState.CANCELLED);
+        jobs.replaceAll((id, job) -> {
+            if (job.getState() == SpoolState.RUNNING) {
+                return job.withFailure("The controller stopped while the job was running.");
+            } else if (job.getState() == SpoolState.READY) {
+                return job.withState(SpoolState.QUEUED);
+            }
+            return job;
+        });
+
+        // write the compacted journal next to the old one, then swap it in
+        File temp = new File(file.getPath() + ".tmp");
+        StringBuilder out = new StringBuilder();
+        out.append(HEADER).append('\n');
+        appendNext(out, nextId);
+        for (SpoolJob job : jobs.values()) {
+            appendAdd(out, job);
+            if (job.getState() != SpoolState.QUEUED) {
+                appendState(out, job);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(channel, out);
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new SpoolJournal(file, channel, nextId);
+    }
+
+    /*
+      Reserves the id for a new job.  Ids are only recorded with the job, so one that is never added may be reused.
+     */
+    public synchronized long takeId() {
+        return nextId++;
+    }
+
+    public void writeAdd(SpoolJob job) throws IOException {
+        StringBuilder out = new StringBuilder();
+        appendAdd(out, job);
+        append(out);
+    }
+
+    public void writePriority(SpoolJob job) throws IOException {
+        StringBuilder out = new StringBuilder();
+        out.append(RECORD_PRIORITY).append('\t').append(job.getId()).append('\t').append(job.getPriority()).append('\n');
+        append(out);
+    }
+
+    public void writeState(SpoolJob job) throws IOException {
+        StringBuilder out = new StringBuilder();
+        appendState(out, job);
+        append(out);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private synchronized void append(CharSequence records) throws IOException {
+        write(channel, records);
+        channel.force(false);
+    }
+
+    private static void write(FileChannel channel, CharSequence records) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void appendNext(StringBuilder out, long nextId) {
+        out.append(RECORD_NEXT).append('\t').append(nextId).append('\n');
+    }
+
+    private static void appendAdd(StringBuilder out, SpoolJob job) {
+        out.append(RECORD_ADD).append('\t').append(job.getId()).append('\t').append(job.getSubmitTime()).append('\t')
+                .append(job.getPriority()).append('\t').append(job.getTarget() != null ? job.getTarget() : "").append('\t')
+                .append(job.getFile().getPath()).append('\n');
+    }
+
+    private static void appendState(StringBuilder out, SpoolJob job) {
+        out.append(RECORD_STATE).append('\t').append(job.getId()).append('\t').append(job.getState().name());
+        if (job.getState() == SpoolState.RUNNING) {
+            out.append('\t').append(job.getMachine());
+        } else if (job.getState() == SpoolState.FAILED && job.getMessage() != null) {
+            out.append('\t').append(clean(job.getMessage()));
+        }
+        out.append('\n');
+    }
+
+    // messages are free text, so they may not contain the separators
+    private static String clean(String text) {
+        return text.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+    }
+
+    /*
+      Names and paths are written as they are, so they cannot contain separators.
+     */
+    static void checkField(String name, String value) {
+        if (value.indexOf('\t') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException(name + " cannot contain tabs or line breaks: " + value);
+        }
+    }
+
+    // returns the next unused id
+    private static long read(File file, Map<Long, SpoolJob> jobs) throws IOException {
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        long nextId = 1;
+
+        int start = 0;
+        int end;
+        // a last line without a line ending was cut off by a crash
+        while ((end = text.indexOf('\n', start)) >= 0) {
+            String[] fields = text.substring(start, end).split("\t", -1);
+            start = end + 1;
+            try {
+                switch (fields[0]) {
+                    case RECORD_NEXT: {
+                        nextId = Math.max(nextId, Long.parseLong(fields[1]));
+                        break;
+                    }
+                    case RECORD_ADD: {
+                        long id = Long.parseLong(fields[1]);
+                        String target = fields[4].isEmpty() ? null : fields[4];
+                        jobs.put(id, new SpoolJob(id, new File(fields[5]), Integer.parseInt(fields[3]), target,
+                                Long.parseLong(fields[2]), SpoolState.QUEUED, null, null));
+                        nextId = Math.max(nextId, id + 1);
+                        break;
+                    }
+                    case RECORD_PRIORITY: {
+                        SpoolJob job = jobs.get(Long.parseLong(fields[1]));
+                        if (job != null) {
+                            jobs.put(job.getId(), job.withPriority(Integer.parseInt(fields[2])));
+                        }
+                        break;
+                    }
+                    case RECORD_STATE: {
+                        SpoolJob job = jobs.get(Long.parseLong(fields[1]));
+                        if (job != null) {
+                            SpoolState state = SpoolState.valueOf(fields[2]);
+                            String extra = fields.length > 3 ? fields[3] : null;
+                            if (state == SpoolState.RUNNING) {
+                                job = job.withRunning(extra);
+                            } else if (state == SpoolState.FAILED) {
+                                job = job.withFailure(extra);
+                            } else {
+                                job = job.withState(state);
+                            }
+                            jobs.put(job.getId(), job);
+                        }
+                        break;
+                    }
+                    default: {
+                        // header or a record from a newer version
+                        break;
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                // damaged record, skip it
+            }
+        }
+        return nextId;
+    }
+}
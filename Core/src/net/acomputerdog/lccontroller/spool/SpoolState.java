@@ -0,0 +1,16 @@
+package net.acomputerdog.lccontroller.spool;
+
+public enum SpoolState {
+    // waiting to be compiled
+    QUEUED,
+    // compiled and checked, waiting for a machine
+    READY,
+    RUNNING,
+    DONE,
+    FAILED,
+    CANCELLED;
+
+    public boolean isFinished() {
+        return this == DONE || this == FAILED || this == CANCELLED;
+    }
+}
@@ -2,6 +2,10 @@ package net.acomputerdog.lccontroller.util;
 
 import java.util.concurrent.Semaphore;
 
+/*
+  Replaced by Signal, which cannot miss a release that happens just before waiting and only wakes one waiter per release.
+ */
+@Deprecated
 public class LockedNotifier {
     private final Lock lock = new Lock(new Object());
     private final Semaphore notifiedLock = new Semaphore(1);
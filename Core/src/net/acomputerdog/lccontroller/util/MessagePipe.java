@@ -1,59 +1,48 @@
 package net.acomputerdog.lccontroller.util;
 
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.Semaphore;
 
 /*
   Pipes data from ONE thread to ONE other thread
  */
 public class MessagePipe<T> implements Iterable<T> {
-    private final Semaphore lock = new Semaphore(1);
+    public static final int DEFAULT_CAPACITY = 256;
 
-    private Queue<T> messages;
+    private final RingBuffer<T> messages;
 
     public MessagePipe() {
-        messages = new LinkedList<>();
+        this(DEFAULT_CAPACITY);
     }
 
-    public void send(T obj) {
-        lock.acquireUninterruptibly();
-        messages.add(obj);
-        lock.release();
+    public MessagePipe(int capacity) {
+        messages = new RingBuffer<>(capacity, RingBuffer.FullPolicy.DROP);
+    }
+
+    /*
+      Returns false if the pipe is full and the message was dropped.
+     */
+    public boolean send(T obj) {
+        return messages.put(obj);
     }
 
     public boolean hasMessage() {
-        lock.acquireUninterruptibly();
-        try {
-            return !messages.isEmpty();
-        } finally {
-            lock.release();
-        }
+        return !messages.isEmpty();
     }
 
     public T nextMessage() {
-        lock.acquireUninterruptibly();
-        try {
-            // returns null if empty
-            return messages.poll();
-        } finally {
-            lock.release();
-        }
+        // returns null if empty
+        return messages.poll();
+    }
+
+    /*
+      Waits up to timeout ms for a message.  Returns null if none arrived.
+     */
+    public T waitForMessage(long timeout) {
+        return messages.poll(timeout);
     }
 
     @Override
     public Iterator<T> iterator() {
-        return new Iterator<T>() {
-            @Override
-            public boolean hasNext() {
-                return hasMessage();
-            }
-
-            @Override
-            public T next() {
-                return nextMessage();
-            }
-        };
+        return messages.iterator();
     }
 }
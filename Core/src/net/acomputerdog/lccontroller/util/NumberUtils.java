@@ -2,32 +2,124 @@ package net.acomputerdog.lccontroller.util;
 
 import net.acomputerdog.lccontroller.ex.ResponseFormatException;
 
+/*
+  Number parsing for axis locations and status responses.
+
+  The range parsers read straight from a CharSequence without creating any objects, so they can be used on every
+  status line.  Only malformed input allocates, for the exception.
+ */
 public class NumberUtils {
-    public static long parseAxisLoc(String locStr) {
-        try {
-            int decIdx = locStr.indexOf('.');
-
-            if (decIdx >= 0) {
-                long mmS;
-                if (decIdx > 0) {
-                    mmS = Long.parseLong(locStr.substring(0, decIdx));
-                } else {
-                    mmS = 0;
-                }
+    private static final int UM_PER_MM = 1000;
+    // decimal places of a mm value that are µm
+    private static final int DECIMALS = 3;
+    // largest number of mm that still fits in a long once converted to µm
+    private static final long MAX_MM = Long.MAX_VALUE / UM_PER_MM - 1;
+
+    /*
+      Parses a location into µm.  Whole numbers such as "12" are already µm, and numbers with a decimal point such as
+      "-3.5" or ".125" are mm, the same as in gcode.  Digits past the third decimal are rounded.
+     */
+    public static long parseAxisLoc(CharSequence locStr) {
+        return parseAxisLoc(locStr, 0, locStr.length());
+    }
+
+    public static long parseAxisLoc(CharSequence chars, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (chars.charAt(pos) == '-' || chars.charAt(pos) == '+')) {
+            negative = chars.charAt(pos) == '-';
+            pos++;
+        }
+
+        int digits = 0;
+        long whole = 0;
+        for (; pos < end && isDigit(chars.charAt(pos)); pos++, digits++) {
+            int digit = chars.charAt(pos) - '0';
+            if (whole > (Long.MAX_VALUE - digit) / 10) {
+                throw malformed(chars, start, end);
+            }
+            whole = whole * 10 + digit;
+        }
 
-                long umS;
-                if (decIdx < locStr.length() - 1) {
-                    umS = Long.parseLong(locStr.substring(decIdx + 1));
-                } else {
-                    umS = 0;
+        long value = whole;
+        if (pos < end && chars.charAt(pos) == '.') {
+            if (whole > MAX_MM) {
+                throw malformed(chars, start, end);
+            }
+            long um = 0;
+            pos++;
+            int decimals = 0;
+            boolean roundUp = false;
+            for (; pos < end && isDigit(chars.charAt(pos)); pos++, digits++, decimals++) {
+                int digit = chars.charAt(pos) - '0';
+                if (decimals < DECIMALS) {
+                    um = um * 10 + digit;
+                } else if (decimals == DECIMALS) {
+                    // first digit past µm, round half up
+                    roundUp = digit >= 5;
                 }
+            }
+            for (; decimals < DECIMALS; decimals++) {
+                um *= 10;
+            }
+            if (roundUp) {
+                um++;
+            }
+            value = whole * UM_PER_MM + um;
+        }
 
-                return (mmS * 1000L) + umS;
-            } else {
-                return Long.parseLong(locStr);
+        if (pos != end || digits == 0) {
+            throw malformed(chars, start, end);
+        }
+        return negative ? -value : value;
+    }
+
+    /*
+      Parses a whole number, with an optional sign.
+     */
+    public static long parseLong(CharSequence chars, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (chars.charAt(pos) == '-' || chars.charAt(pos) == '+')) {
+            negative = chars.charAt(pos) == '-';
+            pos++;
+        }
+        if (pos == end) {
+            throw malformed(chars, start, end);
+        }
+
+        // accumulate negatively, so that Long.MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for (; pos < end; pos++) {
+            char chr = chars.charAt(pos);
+            if (!isDigit(chr) || value < limit / 10) {
+                throw malformed(chars, start, end);
+            }
+            value *= 10;
+            int digit = chr - '0';
+            if (value < limit + digit) {
+                throw malformed(chars, start, end);
             }
-        } catch (NumberFormatException e) {
-            throw new ResponseFormatException("Malformed number in input: '" + locStr + "'");
+            value -= digit;
         }
+        return negative ? value : -value;
+    }
+
+    /*
+      Formats a location in µm as mm with three decimals, the form read by parseAxisLoc().
+     */
+    public static String formatAxisLoc(long um) {
+        String sign = um < 0 ? "-" : "";
+        long abs = Math.abs(um);
+        return String.format("%s%d.%03d", sign, abs / UM_PER_MM, abs % UM_PER_MM);
+    }
+
+    private static boolean isDigit(int chr) {
+        return chr >= '0' && chr <= '9';
+    }
+
+    private static ResponseFormatException malformed(CharSequence chars, int start, int end) {
+        return new ResponseFormatException("Malformed number in input: '" + chars.subSequence(start, end) + "'");
     }
 }
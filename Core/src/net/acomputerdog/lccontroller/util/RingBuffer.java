@@ -0,0 +1,235 @@
+package net.acomputerdog.lccontroller.util;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+  Bounded queue that passes items from ONE producer thread to ONE consumer thread without locking.
+
+  Only one thread may add items and only one thread may remove them, although they do not have to be the same
+  thread each time as long as they are never used concurrently.  What happens when the buffer is full is set
+  by the FullPolicy.
+ */
+public class RingBuffer<T> implements Iterable<T> {
+    public enum FullPolicy {
+        // wait for the consumer to make room
+        BLOCK,
+        // discard the new item
+        DROP,
+        // throw an IllegalStateException
+        FAIL
+    }
+
+    private final Object[] items;
+    private final int mask;
+    private final FullPolicy fullPolicy;
+
+    // next index to read, only written by consumer
+    private final AtomicLong head = new AtomicLong();
+    // next index to write, only written by producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // last seen values of the other side's index, to avoid reading volatiles when not needed
+    private long producerHeadCache = 0;
+    private long consumerTailCache = 0;
+
+    // threads that are parked waiting for the other side
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    private final AtomicLong droppedItems = new AtomicLong();
+
+    public RingBuffer(int capacity, FullPolicy fullPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1!");
+        }
+        if (fullPolicy == null) {
+            throw new IllegalArgumentException("Full policy cannot be null!");
+        }
+
+        // round up to power of two so that indexes can be masked
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        this.items = new Object[size];
+        this.mask = size - 1;
+        this.fullPolicy = fullPolicy;
+    }
+
+    /*
+      Adds an item, applying the full policy if there is no room.
+      Returns false if the item was dropped, or if the thread was interrupted while blocked.
+     */
+    public boolean put(T item) {
+        if (offer(item)) {
+            return true;
+        }
+
+        switch (fullPolicy) {
+            case BLOCK:
+                while (!offer(item)) {
+                    waitingProducer = Thread.currentThread();
+                    // check again in case the consumer made room before seeing us
+                    if (offer(item)) {
+                        waitingProducer = null;
+                        break;
+                    }
+                    LockSupport.park(this);
+                    waitingProducer = null;
+
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        droppedItems.incrementAndGet();
+                        return false;
+                    }
+                }
+                return true;
+            case FAIL:
+                throw new IllegalStateException("Ring buffer is full!");
+            case DROP:
+            default:
+                droppedItems.incrementAndGet();
+                return false;
+        }
+    }
+
+    /*
+      Adds an item if there is room, without waiting.
+     */
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new IllegalArgumentException("Item cannot be null!");
+        }
+
+        long currTail = tail.get();
+        if (currTail - producerHeadCache >= items.length) {
+            producerHeadCache = head.get();
+            if (currTail - producerHeadCache >= items.length) {
+                return false;
+            }
+        }
+
+        items[(int) (currTail & mask)] = item;
+        tail.set(currTail + 1);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /*
+      Removes the next item, or returns null if empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long currHead = head.get();
+        if (currHead >= consumerTailCache) {
+            consumerTailCache = tail.get();
+            if (currHead >= consumerTailCache) {
+                return null;
+            }
+        }
+
+        int index = (int) (currHead & mask);
+        T item = (T) items[index];
+        items[index] = null;
+        head.set(currHead + 1);
+
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return item;
+    }
+
+    /*
+      Removes the next item, waiting as long as needed.  Returns null only if interrupted.
+     */
+    public T take() {
+        return poll(-1);
+    }
+
+    /*
+      Removes the next item, waiting up to timeout ms (or forever if timeout is negative).
+      Returns null if the timeout expires or the thread is interrupted.
+     */
+    public T poll(long timeout) {
+        T item = poll();
+        if (item != null || timeout == 0) {
+            return item;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((item = poll()) == null) {
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+
+                if (timeout < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            return item;
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int size() {
+        // read head first so that the result is never negative
+        long currHead = head.get();
+        return (int) (tail.get() - currHead);
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public FullPolicy getFullPolicy() {
+        return fullPolicy;
+    }
+
+    /*
+      Number of items that have been discarded because the buffer was full.
+     */
+    public long getDroppedItems() {
+        return droppedItems.get();
+    }
+
+    /*
+      Consuming iterator: each item returned by next() is removed from the buffer.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !isEmpty();
+            }
+
+            @Override
+            public T next() {
+                return poll();
+            }
+        };
+    }
+}
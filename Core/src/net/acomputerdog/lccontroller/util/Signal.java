@@ -0,0 +1,113 @@
+package net.acomputerdog.lccontroller.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/*
+  Counting signal: each release() stores one permit, and each successful waitForNotify() consumes one.
+
+  A release can never be missed, even if it happens before the waiter starts waiting, and each permit wakes
+  exactly one waiting thread.  Waiters spin briefly before parking so that a release that arrives quickly is
+  handed off without a context switch.
+ */
+public class Signal {
+    // number of times to check for a permit before parking.  Spinning only helps if the releasing thread can run at the same time.
+    public static final int DEFAULT_SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 256 : 0;
+
+    private final Sync sync = new Sync();
+    private final int spinTries;
+
+    public Signal() {
+        this(DEFAULT_SPIN_TRIES);
+    }
+
+    public Signal(int spinTries) {
+        this.spinTries = spinTries;
+    }
+
+    public boolean waitForNotify() {
+        return waitForNotify(-1);
+    }
+
+    /*
+      Waits up to timeout ms for a permit, or forever if timeout is not positive.
+      Returns false if the timeout expires or the thread is interrupted.
+     */
+    public boolean waitForNotify(long timeout) {
+        for (int i = 0; i < spinTries; i++) {
+            if (sync.tryAcquireShared(1) >= 0) {
+                return true;
+            }
+        }
+
+        try {
+            if (timeout > 0) {
+                return sync.tryAcquireSharedNanos(1, TimeUnit.MILLISECONDS.toNanos(timeout));
+            } else {
+                sync.acquireSharedInterruptibly(1);
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /*
+      Consumes a permit if one is available, without waiting.
+     */
+    public boolean tryWait() {
+        return sync.tryAcquireShared(1) >= 0;
+    }
+
+    public void release() {
+        sync.releaseShared(1);
+    }
+
+    public int getPermits() {
+        return sync.getPermits();
+    }
+
+    /*
+      Discards all stored permits.
+     */
+    public void drain() {
+        sync.drain();
+    }
+
+    private static final class Sync extends AbstractQueuedSynchronizer {
+        private int getPermits() {
+            return getState();
+        }
+
+        private void drain() {
+            setState(0);
+        }
+
+        @Override
+        protected int tryAcquireShared(int acquires) {
+            while (true) {
+                int available = getState();
+                int remaining = available - acquires;
+                if (remaining < 0 || compareAndSetState(available, remaining)) {
+                    // negative means failed, zero or positive means acquired
+                    return remaining;
+                }
+            }
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int releases) {
+            while (true) {
+                int current = getState();
+                int next = current + releases;
+                if (next < current) {
+                    throw new IllegalStateException("Too many permits!");
+                }
+                if (compareAndSetState(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
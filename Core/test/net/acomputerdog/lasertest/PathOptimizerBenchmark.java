@@ -0,0 +1,109 @@
+package net.acomputerdog.lasertest;
+
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+import net.acomputerdog.lccontroller.gcode.GCodeFile;
+import net.acomputerdog.lccontroller.gcode.JobCompiler;
+import net.acomputerdog.lccontroller.gcode.PathOptimizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/*
+  Measures how long PathOptimizer takes on a job with many contours: a grid of squares in random order, every other
+  one with a hole in it.  Checks that every hole is still cut before the square around it.
+
+  Usage: PathOptimizerBenchmark [contours]
+ */
+public class PathOptimizerBenchmark {
+    private static final int DEFAULT_CONTOURS = 64000;
+    // size of each grid cell, and of the squares and holes in it (µm)
+    private static final int CELL = 2000;
+    private static final int SQUARE = 1500;
+    private static final int HOLE = 500;
+
+    public static void main(String[] args) throws IOException {
+        int contours = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONTOURS;
+
+        File file = File.createTempFile("optimizer", ".gcode");
+        file.deleteOnExit();
+        JobCompiler.getCacheFile(file).deleteOnExit();
+        writeJob(file, contours);
+        CompiledJob job = JobCompiler.compile(GCodeFile.load(file));
+
+        // first run warms up
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            PathOptimizer optimizer = new PathOptimizer(job);
+            CompiledJob optimized = optimizer.optimize();
+            long time = System.nanoTime() - start;
+
+            System.out.printf("%d contours: %.1f ms, travel %.1f mm -> %.1f mm%n", optimizer.getNumContours(), time / 1000000.0,
+                    optimizer.getTravelBefore() / 1000.0, optimizer.getTravelAfter() / 1000.0);
+            check(optimized);
+        }
+    }
+
+    private static void writeJob(File file, int contours) throws IOException {
+        int squares = (contours * 2 + 2) / 3;
+        int columns = (int) Math.ceil(Math.sqrt(squares));
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < squares; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(1));
+
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("M3 S100");
+            int written = 0;
+            for (int i : order) {
+                int x = (i % columns) * CELL;
+                int y = (i / columns) * CELL;
+                square(out, x, y, SQUARE);
+                written++;
+                if (i % 2 == 0 && written < contours) {
+                    int offset = (SQUARE - HOLE) / 2;
+                    square(out, x + offset, y + offset, HOLE);
+                    written++;
+                }
+            }
+            out.println("M5");
+        }
+    }
+
+    private static void square(PrintWriter out, int x, int y, int size) {
+        out.printf("G0 X%d Y%d%n", x, y);
+        out.printf("G1 X%d Y%d%n", x + size, y);
+        out.printf("G1 X%d Y%d%n", x + size, y + size);
+        out.printf("G1 X%d Y%d%n", x, y + size);
+        out.printf("G1 X%d Y%d%n", x, y);
+    }
+
+    /*
+      Holes are the only contours that start away from a cell corner.
+     */
+    private static void check(CompiledJob job) {
+        int maxCell = 0;
+        for (int i = 0; i < job.size(); i++) {
+            maxCell = Math.max(maxCell, Math.max(job.getX(i), job.getY(i)) / CELL + 1);
+        }
+        boolean[] squareCut = new boolean[maxCell * maxCell];
+
+        for (int i = 0; i < job.size(); i++) {
+            if (job.getOpcode(i) == CompiledJob.OP_TRAVEL) {
+                int x = job.getX(i);
+                int y = job.getY(i);
+                int cell = (y / CELL) * maxCell + x / CELL;
+                if (x % CELL == 0 || y % CELL == 0 || x % CELL == SQUARE || y % CELL == SQUARE) {
+                    squareCut[cell] = true;
+                } else if (squareCut[cell]) {
+                    throw new IllegalStateException(String.format("Hole at %d, %d was cut after its square", x, y));
+                }
+            }
+        }
+    }
+}
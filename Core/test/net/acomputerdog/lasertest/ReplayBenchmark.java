@@ -0,0 +1,76 @@
+package net.acomputerdog.lasertest;
+
+import net.acomputerdog.lccontroller.IOConnection;
+import net.acomputerdog.lccontroller.LaserProperties;
+import net.acomputerdog.lccontroller.io.ReplayTransport;
+import net.acomputerdog.lccontroller.io.TrafficCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+  Replays a traffic capture through an IOConnection and compares the time taken with the recording.
+
+  The sent lines of the capture are streamed the same way that scripts are, keeping the firmware's receive buffer
+  full, so changes to the connection or the streaming can be timed against a real session.
+
+  Usage: ReplayBenchmark <capture> [speed] [rx buffer size]
+ */
+public class ReplayBenchmark {
+    private static final long ACK_TIMEOUT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ReplayBenchmark <capture> [speed] [rx buffer size]");
+            return;
+        }
+        TrafficCapture capture = TrafficCapture.load(new File(args[0]));
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        int bufferSize = args.length > 2 ? Integer.parseInt(args[2]) : LaserProperties.DEFAULT_RX_BUFFER_SIZE;
+
+        System.out.printf("Capture: %d lines, %d sent, %.3f s%n", capture.size(), capture.countSent(), capture.getDuration() / 1e9);
+        ReplayTransport transport = new ReplayTransport(capture, speed);
+        IOConnection connection = new IOConnection(transport);
+        try {
+            connection.getMetrics().startJob();
+            long time = stream(connection, capture, bufferSize);
+            connection.getMetrics().endJob();
+            System.out.printf("Replay at %sx: %.3f s (%.3f s scaled to the recorded speed)%n", speed, time / 1e9, time * speed / 1e9);
+            System.out.printf("Sent %d lines, %d differed from the capture%n", transport.getLinesSent(), transport.getMismatchedLines());
+            for (String line : connection.getMetrics().report()) {
+                System.out.println(line);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static long stream(IOConnection connection, TrafficCapture capture, int bufferSize) throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < capture.size(); i++) {
+            if (capture.isSent(i)) {
+                String line = capture.getLine(i);
+                if (bufferSize > 0) {
+                    while (connection.getBytesInFlight() > 0 && connection.getBytesInFlight() + line.length() + 1 > bufferSize) {
+                        Thread.yield();
+                    }
+                    last = connection.sendCommand(line);
+                } else {
+                    last = connection.sendCommand(line);
+                    last.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        if (last != null) {
+            try {
+                last.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                throw new IOException("Last line was not acknowledged", e);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,124 @@
+package net.acomputerdog.lasertest;
+
+import net.acomputerdog.lccontroller.util.Signal;
+
+import java.util.Arrays;
+
+/*
+  Measures wakeup latency of Signal against LockedNotifier.
+
+  Two threads ping-pong through a pair of notifiers, and the round trip time of each exchange is recorded.
+  Waits are bounded, so a lost wakeup shows up as a timeout instead of a hang.
+ */
+// LockedNotifier is used by its full name, because the suppression below does not cover imports
+@SuppressWarnings("deprecation")
+public class SignalBenchmark {
+    private static final int WARMUP_ROUNDS = 20000;
+    private static final int ROUNDS = 100000;
+    private static final long WAIT_TIMEOUT = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("Warming up...");
+        run("Signal", signalNotifier(new Signal()), signalNotifier(new Signal()), WARMUP_ROUNDS);
+        run("Signal (no spin)", signalNotifier(new Signal(0)), signalNotifier(new Signal(0)), WARMUP_ROUNDS);
+        run("LockedNotifier", lockedNotifier(), lockedNotifier(), WARMUP_ROUNDS / 10);
+
+        System.out.println();
+        print(run("Signal", signalNotifier(new Signal()), signalNotifier(new Signal()), ROUNDS));
+        print(run("Signal (no spin)", signalNotifier(new Signal(0)), signalNotifier(new Signal(0)), ROUNDS));
+        print(run("LockedNotifier", lockedNotifier(), lockedNotifier(), ROUNDS / 10));
+    }
+
+    private static Result run(String name, Notifier ping, Notifier pong, int rounds) throws InterruptedException {
+        Result result = new Result(name, rounds);
+
+        Thread echo = new Thread(() -> {
+            for (int i = 0; i < rounds; i++) {
+                // only wait while the other side is still running, otherwise timeouts would cascade
+                while (!ping.await(WAIT_TIMEOUT)) {
+                    result.timeouts++;
+                }
+                pong.signal();
+            }
+        });
+        echo.setDaemon(true);
+        echo.start();
+
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            ping.signal();
+            while (!pong.await(WAIT_TIMEOUT)) {
+                result.timeouts++;
+            }
+            result.latencies[i] = System.nanoTime() - start;
+        }
+
+        echo.join();
+        return result;
+    }
+
+    private static void print(Result result) {
+        long[] sorted = result.latencies.clone();
+        Arrays.sort(sorted);
+
+        System.out.printf("%-18s rounds=%-7d p50=%8.2fus p99=%8.2fus p99.9=%8.2fus max=%9.2fus timeouts=%d%n",
+                result.name,
+                sorted.length,
+                percentile(sorted, 0.50),
+                percentile(sorted, 0.99),
+                percentile(sorted, 0.999),
+                sorted[sorted.length - 1] / 1000d,
+                result.timeouts);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int idx = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+        return sorted[idx] / 1000d;
+    }
+
+    private static Notifier signalNotifier(Signal signal) {
+        return new Notifier() {
+            @Override
+            public void signal() {
+                signal.release();
+            }
+
+            @Override
+            public boolean await(long timeout) {
+                return signal.waitForNotify(timeout);
+            }
+        };
+    }
+
+    private static Notifier lockedNotifier() {
+        net.acomputerdog.lccontroller.util.LockedNotifier notifier = new net.acomputerdog.lccontroller.util.LockedNotifier();
+        return new Notifier() {
+            @Override
+            public void signal() {
+                notifier.release();
+            }
+
+            @Override
+            public boolean await(long timeout) {
+                return notifier.waitForNotify(timeout);
+            }
+        };
+    }
+
+    private interface Notifier {
+        void signal();
+
+        boolean await(long timeout);
+    }
+
+    private static class Result {
+        private final String name;
+        private final long[] latencies;
+        private volatile int timeouts = 0;
+
+        private Result(String name, int rounds) {
+            this.name = name;
+            this.latencies = new long[rounds];
+        }
+    }
+}
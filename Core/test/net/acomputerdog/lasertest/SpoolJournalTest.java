@@ -0,0 +1,76 @@
+package net.acomputerdog.lasertest;
+
+import net.acomputerdog.lccontroller.spool.SpoolJob;
+import net.acomputerdog.lccontroller.spool.SpoolJournal;
+import net.acomputerdog.lccontroller.spool.SpoolState;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+  Checks that a spool journal survives being reopened: a record cut off by a crash is ignored, a running job is
+  failed, a waiting job is queued again, finished jobs are dropped, and the compacted journal reads back the same.
+ */
+public class SpoolJournalTest {
+    private static final String JOURNAL = SpoolJournal.HEADER + "\n" +
+            "next\t5\n" +
+            "add\t1\t100\t0\t\t/jobs/a.gcode\n" +
+            "add\t2\t101\t3\tm1\t/jobs/b.gcode\n" +
+            "state\t2\tRUNNING\tm1\n" +
+            "add\t3\t102\t0\t\t/jobs/c.gcode\n" +
+            "state\t3\tREADY\n" +
+            "add\t4\t103\t0\t\t/jobs/d.gcode\n" +
+            "state\t4\tDONE\n" +
+            "priority\t1\t7\n" +
+            // cut off while writing
+            "state\t1\tRUNN";
+
+    public static void main(String[] args) throws IOException {
+        File file = File.createTempFile("spool", ".journal");
+        file.deleteOnExit();
+        Files.write(file.toPath(), JOURNAL.getBytes(StandardCharsets.UTF_8));
+
+        Map<Long, SpoolJob> jobs = new TreeMap<>();
+        try (SpoolJournal journal = SpoolJournal.open(file, jobs)) {
+            check(journal.takeId() == 5, "next id is kept");
+        }
+        checkJobs(jobs);
+        check(!new File(file.getPath() + ".tmp").exists(), "compacted journal replaced the old one");
+
+        Map<Long, SpoolJob> reopened = new TreeMap<>();
+        try (SpoolJournal journal = SpoolJournal.open(file, reopened)) {
+            check(journal.takeId() == 5, "next id is kept after compacting");
+        }
+        checkJobs(reopened);
+
+        System.out.println("Journal OK.");
+    }
+
+    private static void checkJobs(Map<Long, SpoolJob> jobs) {
+        check(jobs.size() == 3, "finished job is dropped: " + jobs.keySet());
+
+        SpoolJob a = jobs.get(1L);
+        check(a.getState() == SpoolState.QUEUED, "cut off record is ignored: " + a);
+        check(a.getPriority() == 7, "priority is applied: " + a);
+
+        SpoolJob b = jobs.get(2L);
+        check(b.getState() == SpoolState.FAILED, "running job is failed: " + b);
+        check(b.getMessage() != null && !b.getMessage().isEmpty(), "failed job has a message: " + b);
+        check("m1".equals(b.getTarget()) && b.getPriority() == 3 && b.getSubmitTime() == 101, "job fields are kept: " + b);
+        check(new File("/jobs/b.gcode").equals(b.getFile()), "path is kept: " + b);
+
+        SpoolJob c = jobs.get(3L);
+        check(c.getState() == SpoolState.QUEUED, "ready job is queued again: " + c);
+        check(c.getTarget() == null, "empty target is any machine: " + c);
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.acomputerdog.lasertest;
+
+import net.acomputerdog.lccontroller.StatusParser;
+import net.acomputerdog.lccontroller.util.NumberUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+  Measures the time and heap allocation of parsing status responses with StatusParser, against the split and
+  substring parsing that LaserCutter used before.
+
+  Allocation is read from the JVM's per thread allocation counter, so the steady state of StatusParser should show
+  0 bytes per line.  The result of every parse is folded into a checksum, so the JIT cannot drop the work.
+ */
+public class StatusParserBenchmark {
+    private static final int WARMUP_ROUNDS = 2000000;
+    private static final int ROUNDS = 10000000;
+
+    private static final String[] LINES = {
+            "M114 X:123.456 Y:78.9",
+            "I1 X123456 Y78900 F60 P1 S255 T0",
+            "M105 128",
+            "M114 X:-0.5 Y:1000",
+            "I1 X0 Y0 F3000 P0 S0 T1",
+            "OK"
+    };
+
+    public static void main(String[] args) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("This JVM does not count allocated bytes.");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+
+        check();
+
+        System.out.println("Warming up...");
+        runParser(WARMUP_ROUNDS);
+        runLegacy(WARMUP_ROUNDS);
+
+        System.out.println();
+        long threadId = Thread.currentThread().getId();
+
+        long bytes = allocation.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long checksum = runParser(ROUNDS);
+        long time = System.nanoTime() - start;
+        bytes = allocation.getThreadAllocatedBytes(threadId) - bytes;
+        print("StatusParser", time, bytes, checksum);
+
+        bytes = allocation.getThreadAllocatedBytes(threadId);
+        start = System.nanoTime();
+        checksum = runLegacy(ROUNDS);
+        time = System.nanoTime() - start;
+        bytes = allocation.getThreadAllocatedBytes(threadId) - bytes;
+        print("split/substring", time, bytes, checksum);
+    }
+
+    // both parsers must read the same values, or the comparison means nothing
+    private static void check() {
+        for (String line : LINES) {
+            long parsed = parse(new StatusParser(), line);
+            long legacy = parseLegacy(line);
+            if (parsed != legacy) {
+                throw new IllegalStateException("Parsers disagree on '" + line + "': " + parsed + " != " + legacy);
+            }
+        }
+    }
+
+    private static long runParser(int rounds) {
+        StatusParser parser = new StatusParser();
+        long checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            checksum += parse(parser, LINES[i % LINES.length]);
+        }
+        return checksum;
+    }
+
+    private static long runLegacy(int rounds) {
+        long checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            checksum += parseLegacy(LINES[i % LINES.length]);
+        }
+        return checksum;
+    }
+
+    private static long parse(StatusParser parser, String line) {
+        if (!parser.parse(line)) {
+            return 0;
+        }
+        long sum = 0;
+        if (parser.has(StatusParser.FIELD_X)) {
+            sum += parser.getXUM();
+        }
+        if (parser.has(StatusParser.FIELD_Y)) {
+            sum += parser.getYUM() * 3;
+        }
+        if (parser.has(StatusParser.FIELD_SPEED)) {
+            sum += parser.getSpeed() * 5;
+        }
+        if (parser.has(StatusParser.FIELD_LASER_POWER)) {
+            sum += parser.getLaserPower() * 7;
+        }
+        return sum;
+    }
+
+    // the parsing that LaserCutter did before StatusParser, with the scaling of fractional mm fixed
+    private static long parseLegacy(String line) {
+        long sum = 0;
+        if (line.startsWith("M114")) {
+            for (String part : line.split(" ")) {
+                if (part.length() > 2 && part.indexOf(':') == 1) {
+                    long num = NumberUtils.parseAxisLoc(part.substring(2));
+                    if (part.charAt(0) == 'X') {
+                        sum += num;
+                    } else if (part.charAt(0) == 'Y') {
+                        sum += num * 3;
+                    }
+                }
+            }
+        } else if (line.startsWith("M105")) {
+            int space = line.indexOf(' ');
+            sum += Integer.parseInt(line.substring(space + 1)) * 7;
+        } else if (line.startsWith("I1")) {
+            int spaceIdx = line.indexOf(' ');
+            while (spaceIdx > -1 && line.length() - spaceIdx >= 3) {
+                int nextIdx = line.indexOf(' ', spaceIdx + 1);
+                char ch = line.charAt(spaceIdx + 1);
+                long num = Long.parseLong(nextIdx > -1 ? line.substring(spaceIdx + 2, nextIdx) : line.substring(spaceIdx + 2));
+                if (ch == 'X') {
+                    sum += num;
+                } else if (ch == 'Y') {
+                    sum += num * 3;
+                } else if (ch == 'F') {
+                    sum += num * 5;
+                } else if (ch == 'S') {
+                    sum += num * 7;
+                }
+                spaceIdx = nextIdx;
+            }
+        }
+        return sum;
+    }
+
+    private static void print(String name, long time, long bytes, long checksum) {
+        System.out.printf("%-16s lines=%-9d %6.1f ns/line %8.2f bytes/line (checksum %d)%n",
+                name, ROUNDS, (double) time / ROUNDS, (double) bytes / ROUNDS, checksum);
+    }
+}
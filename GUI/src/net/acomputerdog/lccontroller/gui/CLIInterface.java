@@ -3,18 +3,15 @@ package net.acomputerdog.lccontroller.gui;
 import net.acomputerdog.lccontroller.IOConnection;
 import net.acomputerdog.lccontroller.LaserCutter;
 import net.acomputerdog.lccontroller.cli.CLIMain;
-import net.acomputerdog.lccontroller.util.LockedNotifier;
-
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.Semaphore;
+import net.acomputerdog.lccontroller.util.RingBuffer;
 
 public class CLIInterface extends CLIMain implements Runnable {
+    // commands waiting for the CLI thread
+    private static final int LINE_QUEUE_SIZE = 64;
+
     private final GUIMain guiMain;
 
-    private final LockedNotifier lineNotifier = new LockedNotifier();
-    private final Semaphore lineLock = new Semaphore(1);
-    private Queue<String> lines = new LinkedList<>();
+    private final RingBuffer<String> lines = new RingBuffer<>(LINE_QUEUE_SIZE, RingBuffer.FullPolicy.DROP);
 
     private final Thread cliThread;
 
@@ -50,13 +47,9 @@ public class CLIInterface extends CLIMain implements Runnable {
 
     @Override
     public String getLine() {
-        lineNotifier.waitForNotify();
-        lineLock.acquireUninterruptibly();
-        try {
-            return lines.poll();
-        } finally {
-            lineLock.release();
-        }
+        String line = lines.take();
+        // only null if interrupted
+        return line != null ? line : "";
     }
 
     public void stop() {
@@ -68,10 +61,9 @@ public class CLIInterface extends CLIMain implements Runnable {
 
     public void sendLineToCLI(String line) {
         if (lineAllowed(line)) {
-            lineLock.acquireUninterruptibly();
-            lines.add(line);
-            lineLock.release();
-            lineNotifier.release();
+            if (!lines.put(line)) {
+                guiMain.receiveCLIMessage("The CLI is busy, please wait for the current command to finish.\n");
+            }
         } else {
             guiMain.receiveCLIMessage("That command is disabled, please use the equivalent feature in the GUI interface.");
         }
@@ -1,14 +1,52 @@
 package net.acomputerdog.lccontroller.gui;
 
 import net.acomputerdog.lccontroller.LaserProperties;
+import net.acomputerdog.lccontroller.Location;
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+import net.acomputerdog.lccontroller.gui.preview.PreviewRasterizer;
+import net.acomputerdog.lccontroller.gui.preview.SegmentIndex;
 import net.acomputerdog.lccontroller.gui.script.ScriptRunner;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+/*
+  Preview of the path of a script.
+
+  The whole bed is drawn once into an image, which is shown when the preview is not zoomed.  Once zoomed or panned
+  the view is drawn from a SegmentIndex instead, which only visits the visible segments and draws small areas at a
+  lower level of detail.  Clicking the preview logs the line of the script under the cursor.
+
+  While a script runs, the commands that are done and the position of the head are drawn over the path.  Only the
+  area around the new commands and the head is repainted, and no more than OVERLAY_FPS times per second.
+ */
 public class ComponentScriptPath extends JPanel {
-    public static final int LINES_PER_TICK = 100;
+    // width of the path (pixels)
+    public static final int LINE_WIDTH = 3;
+    // bed size (mm) to use before the laser is connected
+    private static final int DEFAULT_BED_WIDTH = 915;
+    private static final int DEFAULT_BED_HEIGHT = 610;
+    // zoom per wheel click, and most zoom
+    private static final double ZOOM_STEP = 1.25;
+    private static final double MAX_ZOOM = 1000;
+    // areas smaller than this are drawn from the level of detail (pixels)
+    private static final int LOD_SIZE = 64;
+    // how close a click must be to a path (pixels)
+    private static final int CLICK_DISTANCE = 6;
+    // how far the mouse can move before a click becomes a drag (pixels)
+    private static final int DRAG_THRESHOLD = 3;
+    // most repaints per second for the progress overlay
+    private static final int OVERLAY_FPS = 30;
+    // radius of the head marker (pixels)
+    private static final int HEAD_SIZE = 6;
 
     // cant put in constructor because IntelliJ builder runs before window constructor
     private GUIMain main;
@@ -16,18 +54,80 @@ public class ComponentScriptPath extends JPanel {
     private final Color BG_COLOR = new Color(222, 238, 239);
     private final Color GRAPH_COLOR = new Color(204, 206, 206);
     private final Color PATH_COLOR = Color.RED;
+    private final Color SELECTED_COLOR = Color.BLUE;
+    private final Color DONE_COLOR = new Color(0, 160, 0);
+    private final Color HEAD_COLOR = Color.BLACK;
 
-    private BufferedImage image;
+    private volatile BufferedImage image;
     private ScriptRunner script;
-    private boolean isDrawing = false;
-    private int nextLine = 0;
-    private long lastGX, lastGY;
-    private int lastIX, lastIY;
+    private volatile boolean isDrawing = false;
+    private CompletableFuture<BufferedImage> pendingImage;
+    private volatile long drawTime;
+    private volatile SegmentIndex index;
+    private CompletableFuture<SegmentIndex> pendingIndex;
+    private volatile long indexTime;
 
     // scaling stuff
     //private int imageStartX, imageStartY, imageWidth, imageHeight;
     private double scaleLevel = 0.001d;
 
+    // bed size (mm), zoom over the size that fits the component, and top left of the view (µm)
+    private int bedWidth = DEFAULT_BED_WIDTH;
+    private int bedHeight = DEFAULT_BED_HEIGHT;
+    private double zoom = 1;
+    private double viewX = 0, viewY = 0;
+    // command picked by the last click, or -1
+    private int selected = -1;
+
+    // commands that are drawn as done, and the last known head position (or null)
+    private volatile int commandsDone = 0;
+    private volatile Location head;
+    private long lastOverlayTime;
+
+    public ComponentScriptPath() {
+        MouseAdapter mouse = new MouseAdapter() {
+            private int pressX, pressY, lastX, lastY;
+            private boolean dragging;
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                pressX = lastX = e.getX();
+                pressY = lastY = e.getY();
+                dragging = false;
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (Math.abs(e.getX() - pressX) > DRAG_THRESHOLD || Math.abs(e.getY() - pressY) > DRAG_THRESHOLD) {
+                    dragging = true;
+                }
+                if (dragging && index != null) {
+                    double pixelsPerUm = getPixelsPerUm();
+                    viewX -= (e.getX() - lastX) / pixelsPerUm;
+                    viewY -= (e.getY() - lastY) / pixelsPerUm;
+                    repaint();
+                }
+                lastX = e.getX();
+                lastY = e.getY();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (!dragging) {
+                    selectAt(e.getX(), e.getY());
+                }
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoomAt(e.getX(), e.getY(), Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()));
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+    }
+
     public GUIMain getMain() {
         return main;
     }
@@ -44,81 +144,205 @@ public class ComponentScriptPath extends JPanel {
         this.script = script;
 
         LaserProperties prop = main.getLaserProperties();
-        this.image = new BufferedImage(prop.getBedWidth(), prop.getBedHeight(), BufferedImage.TYPE_4BYTE_ABGR);
-        drawGrid(image.getGraphics(), image.getWidth(), image.getHeight());
+        int width = prop != null ? prop.getBedWidth() : DEFAULT_BED_WIDTH;
+        int height = prop != null ? prop.getBedHeight() : DEFAULT_BED_HEIGHT;
+        BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        drawGrid(newImage.getGraphics(), newImage.getWidth(), newImage.getHeight());
 
-        //updateScale(image.getWidth(), image.getHeight(), getWidth(), getHeight());
-        //drawScript(image.getGraphics(), image.getWidth(), image.getHeight());
-        nextLine = 0;
         scaleLevel = 0.001d;
+        bedWidth = width;
+        bedHeight = height;
+        resetView();
+        selected = -1;
+        commandsDone = 0;
+        index = null;
         isDrawing = true;
         main.addLogLine("Starting script draw.");
 
-        //super.repaint();
+        // draw in the background, updateDraw() picks up the result
+        CompiledJob job = script.getJob();
+        double scale = scaleLevel;
+        long start = System.currentTimeMillis();
+        pendingImage = CompletableFuture.supplyAsync(() -> {
+            new PreviewRasterizer(job, scale, LINE_WIDTH, PATH_COLOR).render(newImage);
+            drawTime = System.currentTimeMillis() - start;
+            return newImage;
+        });
+        pendingIndex = CompletableFuture.supplyAsync(() -> {
+            long indexStart = System.currentTimeMillis();
+            SegmentIndex newIndex = new SegmentIndex(job);
+            indexTime = System.currentTimeMillis() - indexStart;
+            return newIndex;
+        });
     }
 
     public void updateDraw() {
-        if (isDrawing) {
-            String[] lines = script.getLines();
-            Graphics g = image.getGraphics();
-            g.setColor(PATH_COLOR);
-            for (int i = 0; i < LINES_PER_TICK; i++) {
-                if (nextLine >= lines.length) {
-                    // we are finished, so we need to redraw
-                    isDrawing = false;
-                    repaint();
-                    main.addLogLine("Script draw complete.");
-                    break;
-                } else {
-                    long lX = lastGX;
-                    long lY = lastGY;
-                    String line = lines[nextLine];
-                    try {
-                        if (line.startsWith("G0") || line.startsWith("G1")) {
-                            int xIdx = line.indexOf('X');
-                            if (xIdx > -1 && line.length() - xIdx > 2) {
-                                int spaceIdx = line.indexOf(' ', xIdx);
-                                if (spaceIdx > -1) {
-                                    lX = Long.parseLong(line.substring(xIdx + 1, spaceIdx));
-                                } else {
-                                    lX = Long.parseLong(line.substring(xIdx + 1));
-                                }
-                            }
-
-                            int yIdx = line.indexOf('Y');
-                            if (yIdx > -1 && line.length() - yIdx > 2) {
-                                int spaceIdx = line.indexOf(' ', yIdx);
-                                if (spaceIdx > -1) {
-                                    lY = Long.parseLong(line.substring(yIdx + 1, spaceIdx));
-                                } else {
-                                    lY = Long.parseLong(line.substring(yIdx + 1));
-                                }
-                            }
-
-                            int iX = (int) Math.round(((double) lX * scaleLevel));
-                            int iY = (int) Math.round(((double) lX * scaleLevel));
-
-                            // draw line from lastIX, lastIY -> iX, iY
-                            drawThickLine(g, lastIX, lastIY, iX, iY, 3);
-
-                            //System.out.printf("Drawing from (%d, %d) to (%d, %d)\n", lastIX, lastIY, iX, iY);
-
-                            lastIX = iX;
-                            lastIY = iY;
-                            lastGX = lX;
-                            lastGY = lY;
-                        }
-                    } catch (NumberFormatException e) {
-                        main.addLogLine(String.format("Preview failed: malformed gcode on line %d: %s", nextLine, line));
-                        isDrawing = false;
-                        break;
-                    }
-                    nextLine++;
-                }
+        if (isDrawing && pendingImage.isDone()) {
+            try {
+                image = pendingImage.join();
+                main.addLogLine(String.format("Script draw complete (%d ms).", drawTime));
+            } catch (CompletionException e) {
+                main.logException("Exception drawing script.", e);
+            }
+            pendingImage = null;
+            // we are finished, so we need to redraw
+            isDrawing = false;
+            repaint();
+        }
+        if (pendingIndex != null && pendingIndex.isDone()) {
+            try {
+                index = pendingIndex.join();
+                main.addLogLine(String.format("Script index built (%d segments, %d ms).", index.getSegmentCount(), indexTime));
+                // the overlay needs the index
+                repaint();
+            } catch (CompletionException e) {
+                main.logException("Exception indexing script.", e);
             }
+            pendingIndex = null;
         }
     }
 
+    /*
+      Updates the progress overlay.  done is the number of commands that have run, and head is where the machine is,
+      or null if not known.  Can be called as often as needed, updates are held back to the overlay frame rate.
+     */
+    public void updateOverlay(int done, Location head) {
+        long time = System.currentTimeMillis();
+        if (time - lastOverlayTime < 1000 / OVERLAY_FPS) {
+            return;
+        }
+        ScriptRunner currentScript = script;
+        CompiledJob job = currentScript != null ? currentScript.getJob() : null;
+        int lastDone = commandsDone;
+        Location lastHead = this.head;
+        if (job == null || (done == lastDone && Objects.equals(head, lastHead))) {
+            return;
+        }
+        lastOverlayTime = time;
+        done = Math.min(done, job.size());
+
+        commandsDone = done;
+        this.head = head;
+        if (done < lastDone) {
+            // went backwards, so start over
+            repaint();
+            return;
+        }
+
+        // area covered by the new commands, and the old and new head marker
+        double pixelsPerUm = getPixelsPerUm();
+        Rectangle dirty = null;
+        for (int i = lastDone; i < done; i++) {
+            dirty = union(dirty, getCommandBounds(job, i, pixelsPerUm));
+        }
+        if (lastHead != null) {
+            dirty = union(dirty, getHeadBounds(lastHead, pixelsPerUm));
+        }
+        if (head != null) {
+            dirty = union(dirty, getHeadBounds(head, pixelsPerUm));
+        }
+        if (dirty != null) {
+            repaint(dirty);
+        }
+    }
+
+    // screen area of a command, including the width of the line
+    private Rectangle getCommandBounds(CompiledJob job, int cmd, double pixelsPerUm) {
+        int fromX = cmd > 0 ? job.getX(cmd - 1) : 0;
+        int fromY = cmd > 0 ? job.getY(cmd - 1) : 0;
+        double minX = Math.min(fromX, job.getX(cmd));
+        double minY = Math.min(fromY, job.getY(cmd));
+        double maxX = Math.max(fromX, job.getX(cmd));
+        double maxY = Math.max(fromY, job.getY(cmd));
+        byte opcode = job.getOpcode(cmd);
+        if (opcode == CompiledJob.OP_ARC_CW || opcode == CompiledJob.OP_ARC_CCW) {
+            // the whole circle, which always contains the arc
+            double radius = Math.hypot(job.getArcI(cmd), job.getArcJ(cmd));
+            double centerX = fromX + job.getArcI(cmd);
+            double centerY = fromY + job.getArcJ(cmd);
+            minX = centerX - radius;
+            minY = centerY - radius;
+            maxX = centerX + radius;
+            maxY = centerY + radius;
+        }
+        int x = toScreen(minX, viewX, pixelsPerUm) - LINE_WIDTH;
+        int y = toScreen(minY, viewY, pixelsPerUm) - LINE_WIDTH;
+        return new Rectangle(x, y, toScreen(maxX, viewX, pixelsPerUm) + LINE_WIDTH - x + 1, toScreen(maxY, viewY, pixelsPerUm) + LINE_WIDTH - y + 1);
+    }
+
+    private Rectangle getHeadBounds(Location location, double pixelsPerUm) {
+        int x = toScreen(location.getXUM(), viewX, pixelsPerUm);
+        int y = toScreen(location.getYUM(), viewY, pixelsPerUm);
+        return new Rectangle(x - HEAD_SIZE - 2, y - HEAD_SIZE - 2, HEAD_SIZE * 2 + 5, HEAD_SIZE * 2 + 5);
+    }
+
+    private static Rectangle union(Rectangle a, Rectangle b) {
+        return a == null ? b : a.union(b);
+    }
+
+    public void resetView() {
+        zoom = 1;
+        viewX = 0;
+        viewY = 0;
+        repaint();
+    }
+
+    /*
+      Zooms by a factor, keeping the point under the cursor in place.
+     */
+    private void zoomAt(int x, int y, double factor) {
+        if (index == null) {
+            return;
+        }
+        double oldScale = getPixelsPerUm();
+        double pointX = viewX + x / oldScale;
+        double pointY = viewY + y / oldScale;
+
+        zoom = Math.max(1, Math.min(MAX_ZOOM, zoom * factor));
+        if (zoom == 1) {
+            resetView();
+            return;
+        }
+        double newScale = getPixelsPerUm();
+        viewX = pointX - x / newScale;
+        viewY = pointY - y / newScale;
+        repaint();
+    }
+
+    /*
+      Logs and highlights the line of the script closest to a point on the component.
+     */
+    private void selectAt(int x, int y) {
+        SegmentIndex currentIndex = index;
+        ScriptRunner currentScript = script;
+        if (currentIndex == null || currentScript == null) {
+            return;
+        }
+        double pixelsPerUm = getPixelsPerUm();
+        int cmd = currentIndex.findNearest(viewX + x / pixelsPerUm, viewY + y / pixelsPerUm, CLICK_DISTANCE / pixelsPerUm);
+        selected = cmd;
+        if (cmd >= 0) {
+            int line = currentScript.getJob().getSourceLine(cmd);
+            List<String> lines = currentScript.getLines();
+            String text = line < lines.size() ? lines.get(line) : "";
+            main.addLogLine(String.format("Line %d: %s", line + 1, text));
+        }
+        repaint();
+    }
+
+    // pixels per micrometer with the whole bed fit to the component
+    private double getFitScale() {
+        return Math.min((double) getWidth() / bedWidth, (double) getHeight() / bedHeight) * scaleLevel;
+    }
+
+    private double getPixelsPerUm() {
+        return getFitScale() * zoom;
+    }
+
+    private boolean isZoomed() {
+        return zoom != 1 || viewX != 0 || viewY != 0;
+    }
+
     void drawThickLine(Graphics g, int x1, int y1, int x2, int y2, int width) {
         if (width > 0) {
             g.drawLine(x1, y1, x2, y2);
@@ -169,47 +393,113 @@ public class ComponentScriptPath extends JPanel {
 
         drawBackground(g, getWidth(), getHeight());
 
-        if (image != null && !isDrawing) {
-            int widthDiff = getWidth() - image.getWidth();
-            int heightDiff = getHeight() - image.getHeight();
-            int widthMag = Math.abs(widthDiff);
-            int heightMag = Math.abs(heightDiff);
-
-            //System.out.printf("Component (%d, %d) - image (%d, %d) = diff (%d, %d)\n", getWidth(), getHeight(), image.getWidth(), image.getHeight(), widthDiff, heightDiff);
-
-            float rat;
-            if (widthMag > heightMag) {
-
-                rat = (float) getWidth() / (float) image.getWidth();
-            } else {
-                rat = (float) getHeight() / (float) image.getHeight();
+        Graphics2D g2 = (Graphics2D) g;
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        int done = commandsDone;
+        if (isZoomed() && index != null) {
+            drawZoomed(g2, clip, done);
+        } else if (image != null && !isDrawing) {
+            // uniform scale, so that the bed is not stretched
+            double fit = getFitScale() / scaleLevel;
+            int outWidth = (int) Math.round(image.getWidth() * fit);
+            int outHeight = (int) Math.round(image.getHeight() * fit);
+            g.drawImage(image, 0, 0, outWidth, outHeight, BG_COLOR, null);
+            if (index != null) {
+                drawPath(g2, clip, DONE_COLOR, 0, done);
             }
+        }
+        drawSelected(g2);
+        drawHead(g2);
+    }
 
-            float outWidthF = rat * (float) image.getWidth();
-            float outHeightF = rat * (float) image.getHeight();
-
-            // check for overflow
-            if (outWidthF > getWidth()) {
-                float downscale = getWidth() / outWidthF;
-                outWidthF = outWidthF * downscale;
-                outHeightF = outHeightF * downscale;
-            } else if (outHeightF > getHeight()) {
-                float downscale = getHeight() / outHeightF;
-                outWidthF = outWidthF * downscale;
-                outHeightF = outHeightF * downscale;
-            }
+    /*
+      Draws the grid and the visible part of the path from the index.
+     */
+    private void drawZoomed(Graphics2D g, Rectangle clip, int done) {
+        double pixelsPerUm = getPixelsPerUm();
 
-            int outWidth = Math.round(outWidthF);
-            int outHeight = Math.round(outHeightF);
+        // grid, spaced like the one in the image
+        g.setColor(GRAPH_COLOR);
+        g.setStroke(new BasicStroke(2));
+        double bedWidthUm = bedWidth / scaleLevel;
+        double bedHeightUm = bedHeight / scaleLevel;
+        for (int i = 0; i <= 10; i++) {
+            int x = toScreen(bedWidthUm * i / 10, viewX, pixelsPerUm);
+            int y = toScreen(bedHeightUm * i / 10, viewY, pixelsPerUm);
+            g.drawLine(x, toScreen(0, viewY, pixelsPerUm), x, toScreen(bedHeightUm, viewY, pixelsPerUm));
+            g.drawLine(toScreen(0, viewX, pixelsPerUm), y, toScreen(bedWidthUm, viewX, pixelsPerUm), y);
+        }
 
-            // TODO center
+        drawPath(g, clip, PATH_COLOR, done, Integer.MAX_VALUE);
+        drawPath(g, clip, DONE_COLOR, 0, done);
+    }
 
-            //System.out.printf("image (%d, %d) * rat (%f) = size (%d, %d)\n", image.getWidth(), image.getHeight(), rat, outWidth, outHeight);
+    /*
+      Draws the segments of commands fromCommand to toCommand that are inside of the clip area.
+     */
+    private void drawPath(Graphics2D g, Rectangle clip, Color color, int fromCommand, int toCommand) {
+        double pixelsPerUm = getPixelsPerUm();
+        g.setColor(color);
+        g.setStroke(new BasicStroke(LINE_WIDTH - 1, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        double minX = viewX + (clip.x - LINE_WIDTH) / pixelsPerUm;
+        double minY = viewY + (clip.y - LINE_WIDTH) / pixelsPerUm;
+        double maxX = viewX + (clip.x + clip.width + LINE_WIDTH) / pixelsPerUm;
+        double maxY = viewY + (clip.y + clip.height + LINE_WIDTH) / pixelsPerUm;
+        // skip segments that land on the same pixels as the last one
+        int[] last = new int[4];
+        index.draw((x0, y0, x1, y1) -> {
+            int ax = toScreen(x0, viewX, pixelsPerUm);
+            int ay = toScreen(y0, viewY, pixelsPerUm);
+            int bx = toScreen(x1, viewX, pixelsPerUm);
+            int by = toScreen(y1, viewY, pixelsPerUm);
+            if (ax != last[0] || ay != last[1] || bx != last[2] || by != last[3]) {
+                g.drawLine(ax, ay, bx, by);
+                last[0] = ax;
+                last[1] = ay;
+                last[2] = bx;
+                last[3] = by;
+            }
+        }, minX, minY, maxX, maxY, pixelsPerUm, LOD_SIZE, fromCommand, toCommand);
+    }
 
-            //System.out.printf("Drawing image from (%d, %d) to (%d, %d)\n", 0, 0, outWidth, outHeight);
+    private void drawHead(Graphics2D g) {
+        Location location = head;
+        if (location == null) {
+            return;
+        }
+        double pixelsPerUm = getPixelsPerUm();
+        int x = toScreen(location.getXUM(), viewX, pixelsPerUm);
+        int y = toScreen(location.getYUM(), viewY, pixelsPerUm);
+        g.setColor(HEAD_COLOR);
+        g.setStroke(new BasicStroke(2));
+        g.drawOval(x - HEAD_SIZE, y - HEAD_SIZE, HEAD_SIZE * 2, HEAD_SIZE * 2);
+        g.drawLine(x - HEAD_SIZE, y, x + HEAD_SIZE, y);
+        g.drawLine(x, y - HEAD_SIZE, x, y + HEAD_SIZE);
+    }
 
-            g.drawImage(image, 0, 0, outWidth, outHeight, BG_COLOR, null);
+    private void drawSelected(Graphics2D g) {
+        ScriptRunner currentScript = script;
+        if (selected < 0 || currentScript == null) {
+            return;
+        }
+        CompiledJob job = currentScript.getJob();
+        if (selected >= job.size()) {
+            return;
         }
+        double pixelsPerUm = getPixelsPerUm();
+        int fromX = selected > 0 ? job.getX(selected - 1) : 0;
+        int fromY = selected > 0 ? job.getY(selected - 1) : 0;
+        g.setColor(SELECTED_COLOR);
+        g.setStroke(new BasicStroke(LINE_WIDTH + 1, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.drawLine(toScreen(fromX, viewX, pixelsPerUm), toScreen(fromY, viewY, pixelsPerUm),
+                toScreen(job.getX(selected), viewX, pixelsPerUm), toScreen(job.getY(selected), viewY, pixelsPerUm));
+    }
+
+    private static int toScreen(double um, double view, double pixelsPerUm) {
+        return (int) Math.round((um - view) * pixelsPerUm);
     }
 
     private void drawBackground(Graphics g, int width, int height) {
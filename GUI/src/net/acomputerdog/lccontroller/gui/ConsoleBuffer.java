@@ -0,0 +1,134 @@
+package net.acomputerdog.lccontroller.gui;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+
+/*
+  Shows the newest lines written to a console, for consoles that are written to very often.
+
+  Lines can be added from any thread.  They wait in a bounded buffer until a Swing timer adds them to the text area,
+  one batch per frame, so writers never touch Swing or wait for it.  If more lines arrive in one frame than the
+  console can show, only the newest are kept.  The text area is trimmed to the newest maxLines lines.
+ */
+public class ConsoleBuffer {
+    public static final int DEFAULT_FPS = 30;
+
+    private final JTextArea textArea;
+    private final int maxLines;
+    private final Timer timer;
+
+    // lines that are waiting to be shown, oldest at pendingStart
+    private final String[] pending;
+    private int pendingStart = 0;
+    private int pendingCount = 0;
+    private boolean clearPending = false;
+    private long droppedLines = 0;
+
+    public ConsoleBuffer(JTextArea textArea, int maxLines) {
+        this(textArea, maxLines, DEFAULT_FPS);
+    }
+
+    public ConsoleBuffer(JTextArea textArea, int maxLines, int fps) {
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("Console must show at least one line: " + maxLines);
+        }
+        if (fps < 1) {
+            throw new IllegalArgumentException("Frame rate must be positive: " + fps);
+        }
+        this.textArea = textArea;
+        this.maxLines = maxLines;
+        this.pending = new String[maxLines];
+        this.timer = new Timer(1000 / fps, e -> flush());
+        timer.start();
+    }
+
+    /*
+      Adds a line, without the line ending.  Never blocks on the UI.
+     */
+    public synchronized void addLine(String line) {
+        if (pendingCount == pending.length) {
+            // replace the oldest line, which would be trimmed anyway
+            pending[pendingStart] = line;
+            pendingStart = (pendingStart + 1) % pending.length;
+            droppedLines++;
+        } else {
+            pending[(pendingStart + pendingCount) % pending.length] = line;
+            pendingCount++;
+        }
+    }
+
+    /*
+      Removes all lines, including any that have not been shown yet.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < pendingCount; i++) {
+            pending[(pendingStart + i) % pending.length] = null;
+        }
+        pendingStart = 0;
+        pendingCount = 0;
+        clearPending = true;
+    }
+
+    /*
+      Number of lines that were replaced by newer lines before they could be shown.
+     */
+    public synchronized long getDroppedLines() {
+        return droppedLines;
+    }
+
+    public int getMaxLines() {
+        return maxLines;
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    /*
+      Adds the waiting lines to the text area.  Runs on the EDT.
+     */
+    private void flush() {
+        String[] lines;
+        boolean clear;
+        synchronized (this) {
+            if (pendingCount == 0 && !clearPending) {
+                return;
+            }
+            lines = new String[pendingCount];
+            for (int i = 0; i < pendingCount; i++) {
+                int index = (pendingStart + i) % pending.length;
+                lines[i] = pending[index];
+                pending[index] = null;
+            }
+            pendingStart = 0;
+            pendingCount = 0;
+            clear = clearPending;
+            clearPending = false;
+        }
+
+        StringBuilder batch = new StringBuilder(lines.length * 32);
+        for (String line : lines) {
+            batch.append(line);
+            batch.append('\n');
+        }
+        if (clear) {
+            textArea.setText(batch.toString());
+        } else {
+            textArea.append(batch.toString());
+        }
+        trim();
+    }
+
+    private void trim() {
+        // the last line is the empty one after the final line ending
+        int excess = textArea.getLineCount() - 1 - maxLines;
+        if (excess > 0) {
+            try {
+                textArea.replaceRange(null, 0, textArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                // cannot happen, the line count was just checked
+                throw new IllegalStateException("Console lines changed while trimming", e);
+            }
+        }
+    }
+}
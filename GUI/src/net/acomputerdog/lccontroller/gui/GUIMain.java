@@ -5,50 +5,80 @@ import net.acomputerdog.lccontroller.IOConnection;
 import net.acomputerdog.lccontroller.LaserCutter;
 import net.acomputerdog.lccontroller.LaserProperties;
 import net.acomputerdog.lccontroller.Location;
+import net.acomputerdog.lccontroller.MachineState;
+import net.acomputerdog.lccontroller.StatusPoller;
+import net.acomputerdog.lccontroller.ex.GCodeFormatException;
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+import net.acomputerdog.lccontroller.io.ReplayTransport;
+import net.acomputerdog.lccontroller.io.TrafficCapture;
+import net.acomputerdog.lccontroller.io.TrafficRecorder;
 import net.acomputerdog.lccontroller.gui.message.*;
 import net.acomputerdog.lccontroller.gui.script.GCodeRunner;
 import net.acomputerdog.lccontroller.gui.script.ScriptRunner;
 import net.acomputerdog.lccontroller.gui.script.ScriptState;
 import net.acomputerdog.lccontroller.gui.window.MainWindow;
 import net.acomputerdog.lccontroller.gui.window.PopupMessage;
+import net.acomputerdog.lccontroller.metrics.LatencyHistogram;
+import net.acomputerdog.lccontroller.metrics.Metrics;
 import net.acomputerdog.lccontroller.util.MessagePipe;
+import net.acomputerdog.lccontroller.util.NumberUtils;
+import net.acomputerdog.lccontroller.util.Signal;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+  Runs the GUI.  All state is owned by the executor thread, which sleeps until something wakes it: a message from the
+  window, a line from the laser, or the refresh timer.  Each time it wakes it handles all waiting messages and then
+  runs every task once.  Periodic work that does not touch that state, like polling the laser, runs on the scheduler.
+ */
 public class GUIMain {
+    // how often the executor wakes to refresh the window when nothing else wakes it (ms)
+    private static final long REFRESH_INTERVAL = 1000 / 30;
 
     private final MainWindow mainWindow;
 
     private LaserProperties properties;
-    private LaserCutter laser;
+    private volatile LaserCutter laser;
     private CLIInterface cliInterface;
 
     private MessagePipe<Message> messagePipe = new MessagePipe<>();
+    private final Map<Class<? extends Message>, Consumer<Message>> messageHandlers = new HashMap<>();
     private List<Runnable> threadTasks = new LinkedList<>();
     private List<Runnable> addTasks = new LinkedList<>();
     private List<Runnable> removeTasks = new LinkedList<>();
     private Thread executorThread;
-    private boolean isRunning = true;
-
-    private ScriptRunner currentScript;
+    private final ScheduledExecutorService scheduler;
+    // released whenever the executor has something to do
+    private final Signal wakeup = new Signal();
+    private volatile boolean isRunning = true;
+
+    private volatile ScriptRunner currentScript;
+    // records serial traffic while not null
+    private TrafficRecorder recorder;
+    private StatusPoller statusPoller;
     private String scriptStatus = null;
 
     private final PrintWriter logWriter;
 
     // last state values to avoid refreshing UI unnecessarily.
-    private boolean lastLaserState = false;
-    private int lastLaserPower = -1;
-    private Location lastLaserLocation = new Location(0, 0);
+    private MachineState lastMachineState = null;
+    // position of lastMachineState, kept so that the preview does not need a new Location every frame
+    private Location lastLaserLocation = null;
     private String lastStatus = null;
-    private boolean lastMotorState = false;
-
-    // duration between I1 update commands (ms)
-    private long laserUpdateInterval = 1000;
 
     public GUIMain() {
         mainWindow = new MainWindow(this);
@@ -70,6 +100,78 @@ public class GUIMain {
 
         this.executorThread = new Thread(this::runLoop);
         this.executorThread.setName("Executor_Thread");
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Scheduler_Thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        addHandler(ConnectMessage.class, m -> {
+            disconnect();
+            connect(m.port, m.baud, m.dataBits, m.stopBits, m.parity, m.flowMode);
+        });
+        addHandler(DisconnectMessage.class, m -> disconnect());
+        addHandler(OpenGCodeMessage.class, this::openGCode);
+        addHandler(OpenCMDMessage.class, m -> {
+            //TODO implement
+            new PopupMessage(mainWindow, "Not Implemented", "Sorry, that feature is not yet implemented.");
+        });
+        addHandler(StartScriptMessage.class, m -> startScript());
+        addHandler(StopScriptMessage.class, m -> {
+            if (currentScript != null && currentScript.getState() != ScriptState.FINISHED) {
+                currentScript.stop();
+            }
+        });
+        addHandler(MotorStateMessage.class, m -> {
+            if (isConnected()) {
+                if (m.state) {
+                    watchCommand(laser.enableMotorsAsync(true), "enable motors");
+                    mainWindow.laserPowerField.setText("on");
+                } else {
+                    watchCommand(laser.enableMotorsAsync(false), "disable motors");
+                    mainWindow.laserPowerField.setText("off");
+                }
+            }
+        });
+        addHandler(CLIMessage.class, m -> {
+            if (isConnected()) {
+                cliInterface.sendLineToCLI(m.command);
+            }
+        });
+        addHandler(SerialAsyncMessage.class, m -> {
+            if (isConnected()) {
+                laser.getConnection().sendAsync(m.command);
+            }
+        });
+        addHandler(MotorMoveMessage.class, m -> {
+            if (isConnected()) {
+                watchCommand(laser.moveAsync(m.loc), "move");
+            }
+        });
+        addHandler(MotorMoveByMessage.class, m -> {
+            if (isConnected()) {
+                watchCommand(laser.moveByAsync(m.xUm, m.yUm), "move");
+            }
+        });
+        addHandler(SetLaserPowerMessage.class, m -> {
+            if (isConnected()) {
+                watchCommand(laser.setLaserPowerAsync(m.power), "set laser power");
+            }
+        });
+        addHandler(RecordTrafficMessage.class, m -> setRecording(m.record));
+        addHandler(ReplayTrafficMessage.class, m -> {
+            disconnect();
+            replay(m.file);
+        });
+        addHandler(SetLaserStateMessage.class, m -> {
+            if (isConnected()) {
+                watchCommand(laser.setLaserStateAsync(m.state), "set laser state");
+            }
+        });
+    }
+
+    private <T extends Message> void addHandler(Class<T> type, Consumer<T> handler) {
+        messageHandlers.put(type, m -> handler.accept(type.cast(m)));
     }
 
     private void runLoop() {
@@ -86,29 +188,53 @@ public class GUIMain {
                         scriptStatus = "Script finished.";
                     }
                     addLogLine("Script finished.");
+                    if (isConnected()) {
+                        // measured by the script's streamer
+                        Metrics metrics = laser.getConnection().getMetrics();
+                        LatencyHistogram.Snapshot latency = metrics.getJobLatency();
+                        if (latency != null) {
+                            addLogLine(String.format("Job ran at %.1f lines/s, ack latency: %s.", metrics.getJobLinesPerSecond(), Metrics.formatLatency(latency)));
+                        }
+                    }
+                    mainWindow.scriptProgress.setString(null);
                     currentScript = null;
                     // load script
                 } else if (currentScript.getState() == ScriptState.NOT_STARTED) {
+                    // preparing a large job takes a while, so it is not done here
+                    scriptStatus = "Script loading...";
+                    currentScript.load();
+                } else if (currentScript.getState() == ScriptState.LOADING) {
                     try {
-                        scriptStatus = "Script loading...";
-                        currentScript.load();
-                        mainWindow.scriptPreview.setScript(currentScript);
-                        scriptStatus = "Script ready.";
-                        addLogLine(String.format("Loaded script with %d lines.", currentScript.getLines().length));
-                    } catch (IOException e) {
+                        if (currentScript.finishLoading()) {
+                            mainWindow.scriptPreview.setScript(currentScript);
+                            scriptStatus = "Script ready.";
+                            addLogLine(String.format("Loaded script with %d lines (%d commands).", currentScript.getLines().size(), currentScript.getJob().size()));
+                            checkBounds(currentScript.getJob());
+                            addLogLine("Estimated run time: " + formatDuration(currentScript.getEstimatedTimeRemaining()) + ".");
+                        }
+                    } catch (IOException | GCodeFormatException e) {
                         logException("Exception loading script.", e);
+                        scriptStatus = "Script failed to load.";
+                        currentScript = null;
                     }
                     // tick script
                 } else if (currentScript.getState() == ScriptState.RUNNING) {
                     scriptStatus = "Script running.";
                     currentScript.tick();
                     mainWindow.scriptLastInstruction.setText(currentScript.getLastLine());
-                    mainWindow.scriptProgress.setValue((int) (currentScript.getEstimatedProgress() * 100.0f));
+                    int percent = (int) (currentScript.getEstimatedProgress() * 100.0f);
+                    mainWindow.scriptProgress.setValue(percent);
+                    mainWindow.scriptProgress.setString(String.format("%d%% (%.1f lines/s, %s left)", percent, currentScript.getLinesPerSecond(), formatDuration(currentScript.getEstimatedTimeRemaining())));
                 } else {
                     // script has not started
                     scriptStatus = "Script ready.";
                 }
             }
+
+            // a running script reports the position from acknowledged moves, so the laser is polled less
+            if (statusPoller != null) {
+                statusPoller.setStreaming(currentScript != null && currentScript.getState() == ScriptState.RUNNING);
+            }
         });
 
         // add a task to set status bar message
@@ -137,53 +263,49 @@ public class GUIMain {
         // add a task to refresh laser status
         threadTasks.add(() -> {
             if (isConnected()) {
-                if (lastLaserState != laser.isLaserOn() || lastLaserPower != laser.getLaserPower()) {
-                    lastLaserState = laser.isLaserOn();
-                    lastLaserPower = laser.getLaserPower();
-                    if (laser.isLaserOn()) {
-                        mainWindow.laserPowerField.setText(String.format("%.2f%%", (((float) laser.getLaserPower()) / 255f) * 100f));
+                // a new state is only published when something changed
+                MachineState state = laser.getState();
+                MachineState last = lastMachineState;
+                if (state == last) {
+                    return;
+                }
+                lastMachineState = state;
+
+                if (last == null || last.isLaserOn() != state.isLaserOn() || last.getLaserPower() != state.getLaserPower()) {
+                    if (state.isLaserOn()) {
+                        mainWindow.laserPowerField.setText(String.format("%.2f%%", (((float) state.getLaserPower()) / 255f) * 100f));
                     } else {
                         mainWindow.laserPowerField.setText("off");
                     }
                 }
 
-                Location loc = laser.getLocation();
-                if (!loc.equals(lastLaserLocation)) {
-                    lastLaserLocation = loc;
-                    mainWindow.xLocField.setText(String.format("%d.%d", loc.getXMM(), loc.getXUM() % 1000));
-                    mainWindow.yLocField.setText(String.format("%d.%d", loc.getYMM(), loc.getYUM() % 1000));
-                }
-
-                boolean motorState = laser.getMotorState();
-                if (motorState != lastMotorState) {
-                    lastMotorState = motorState;
-                    mainWindow.motorStateField.setText(motorState ? "on" : "off");
+                if (last == null || last.getXUM() != state.getXUM() || last.getYUM() != state.getYUM()) {
+                    lastLaserLocation = state.getLocation();
+                    mainWindow.xLocField.setText(NumberUtils.formatAxisLoc(state.getXUM()));
+                    mainWindow.yLocField.setText(NumberUtils.formatAxisLoc(state.getYUM()));
                 }
-            }
-        });
 
-        // add a task to poll machine for status
-        threadTasks.add(new Runnable() {
-            private long lastRunTime;
-
-            @Override
-            public void run() {
-                if (isConnected() && System.currentTimeMillis() - lastRunTime > laserUpdateInterval) {
-                    lastRunTime = System.currentTimeMillis();
-                    laser.requestImmediateUpdate();
+                if (last == null || last.isMotorsOn() != state.isMotorsOn()) {
+                    mainWindow.motorStateField.setText(state.isMotorsOn() ? "on" : "off");
                 }
             }
         });
 
         // add a task to draw script preview
         threadTasks.add(() -> {
-            if (mainWindow.scriptPreview.isDrawing()) {
-                mainWindow.scriptPreview.updateDraw();
+            mainWindow.scriptPreview.updateDraw();
+            // the preview keeps its script after it finishes, so that the end of the job is shown
+            ScriptRunner previewScript = mainWindow.scriptPreview.getScript();
+            if (previewScript != null) {
+                mainWindow.scriptPreview.updateOverlay(previewScript.getCommandsDone(), isConnected() ? lastLaserLocation : null);
             }
         });
 
         while (isRunning) {
             try {
+                // sleep until there is something to do.  Everything waiting is handled below, so extra wakeups can be dropped.
+                wakeup.waitForNotify();
+                wakeup.drain();
 
                 // read messages
                 readMessages();
@@ -200,12 +322,6 @@ public class GUIMain {
                 while (!removeTasks.isEmpty()) {
                     threadTasks.remove(removeTasks.remove(0));
                 }
-
-                // sleep to rest CPU
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException ignored) {
-                }
             } catch (Exception e) {
                 logException("Exception in main loop", e);
             }
@@ -213,86 +329,101 @@ public class GUIMain {
     }
 
     private void readMessages() {
-        for (Message m : messagePipe) {
-            if (m instanceof ConnectMessage) {
-                disconnect();
-                ConnectMessage cm = (ConnectMessage) m;
-                connect(cm.port, cm.baud, cm.dataBits, cm.stopBits, cm.parity, cm.flowMode);
-            } else if (m instanceof DisconnectMessage) {
-                disconnect();
-            } else if (m instanceof OpenGCodeMessage) {
-                if (currentScript != null) {
-                    currentScript.stop();
-                }
-                try {
-                    currentScript = new GCodeRunner(this, ((OpenGCodeMessage) m).file);
-                } catch (FileNotFoundException e) {
-                    addLogLine("Unable to open file: '" + ((OpenGCodeMessage) m).file + "'");
-                    new PopupMessage(mainWindow, "File not found", String.format("The file %s could not be found.", ((OpenGCodeMessage) m).file));
-                }
-            } else if (m instanceof OpenCMDMessage) {
-                //TODO implement
-                new PopupMessage(mainWindow, "Not Implemented", "Sorry, that feature is not yet implemented.");
-            } else if (m instanceof StartScriptMessage) {
-                if (currentScript != null) {
-                    if (currentScript.getState() == ScriptState.LOADED) {
-                        currentScript.start();
-                    } else if (currentScript.getState() == ScriptState.RUNNING) {
-                        new PopupMessage(mainWindow, "Script already running", "The script is already running.");
-                    } else if (currentScript.getState() == ScriptState.FINISHED) {
-                        new PopupMessage(mainWindow, "Script already finished", "The script has already finished.  Please reload it to run it again.");
-                    } else if (currentScript.getState() == ScriptState.NOT_STARTED) {
-                        new PopupMessage(mainWindow, "Script not loaded", "Please wait for the script to finish loading.");
-                    }
-                } else {
-                    new PopupMessage(mainWindow, "Script not selected", "Please load a script from the \"printer\" menu.");
-                }
-            } else if (m instanceof StopScriptMessage) {
-                if (currentScript != null && currentScript.getState() != ScriptState.FINISHED) {
-                    currentScript.stop();
-                }
-            } else if (m instanceof MotorStateMessage) {
-                if (isConnected()) {
-                    if (((MotorStateMessage) m).state) {
-                        laser.enableMotors(true);
-                        mainWindow.laserPowerField.setText("on");
-                    } else {
-                        laser.enableMotors(false);
-                        mainWindow.laserPowerField.setText("off");
-                    }
-                }
-            } else if (m instanceof CLIMessage) {
-                if (isConnected()) {
-                    cliInterface.sendLineToCLI(((CLIMessage) m).command);
-                }
-            } else if (m instanceof SerialAsyncMessage) {
-                if (isConnected()) {
-                    laser.getConnection().sendAsync(((SerialAsyncMessage) m).command);
-                }
-            } else if (m instanceof MotorMoveMessage) {
-                if (isConnected()) {
-                    laser.move(((MotorMoveMessage) m).loc);
-                }
-            } else if (m instanceof MotorMoveByMessage) {
-                if (isConnected()) {
-                    moveBy(((MotorMoveByMessage) m).xUm, ((MotorMoveByMessage) m).yUm);
-                }
-            } else if (m instanceof SetLaserPowerMessage) {
-                if (isConnected()) {
-                    laser.setLaserPower(((SetLaserPowerMessage) m).power);
-                }
-            } else if (m instanceof SetLaserStateMessage) {
-                if (isConnected()) {
-                    laser.setLaserState(((SetLaserStateMessage) m).state);
-                }
+        Message m;
+        while ((m = messagePipe.nextMessage()) != null) {
+            Consumer<Message> handler = messageHandlers.get(m.getClass());
+            if (handler != null) {
+                handler.accept(m);
             } else {
-                addLogLine("Error: Unknown message type: " + (m == null ? "null" : m.getClass().getName()));
+                addLogLine("Error: Unknown message type: " + m.getClass().getName());
+            }
+        }
+    }
+
+    private void openGCode(OpenGCodeMessage m) {
+        if (currentScript != null && currentScript.getState() == ScriptState.RUNNING) {
+            addLogLine("Not opening '" + m.file + "', a script is running.");
+            new PopupMessage(mainWindow, "Script already running", "Stop the running script before opening another.");
+            return;
+        }
+        if (currentScript != null) {
+            currentScript.stop();
+        }
+        try {
+            currentScript = new GCodeRunner(this, m.file);
+        } catch (FileNotFoundException e) {
+            addLogLine("Unable to open file: '" + m.file + "'");
+            new PopupMessage(mainWindow, "File not found", String.format("The file %s could not be found.", m.file));
+        }
+    }
+
+    private void startScript() {
+        if (currentScript != null) {
+            if (currentScript.getState() == ScriptState.LOADED) {
+                currentScript.start();
+            } else if (currentScript.getState() == ScriptState.RUNNING) {
+                new PopupMessage(mainWindow, "Script already running", "The script is already running.");
+            } else if (currentScript.getState() == ScriptState.FINISHED) {
+                new PopupMessage(mainWindow, "Script already finished", "The script has already finished.  Please reload it to run it again.");
+            } else if (currentScript.getState() == ScriptState.NOT_STARTED || currentScript.getState() == ScriptState.LOADING) {
+                new PopupMessage(mainWindow, "Script not loaded", "Please wait for the script to finish loading.");
+            }
+        } else {
+            new PopupMessage(mainWindow, "Script not selected", "Please load a script from the \"printer\" menu.");
+        }
+    }
+
+    /*
+      Formats a time in milliseconds as h:mm:ss.
+     */
+    private static String formatDuration(long millis) {
+        if (millis < 0) {
+            return "?";
+        }
+        long seconds = (millis + 500) / 1000;
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    /*
+      Warns if a job moves outside of the bed.
+     */
+    private void checkBounds(CompiledJob job) {
+        LaserProperties prop = getLaserProperties();
+        if (prop != null) {
+            long maxX = prop.getBedWidth() * 1000L;
+            long maxY = prop.getBedHeight() * 1000L;
+            if (job.getMinX() < 0 || job.getMinY() < 0 || job.getMaxX() > maxX || job.getMaxY() > maxY) {
+                String message = String.format("Script moves outside of the bed: X %d to %d mm, Y %d to %d mm, but the bed is %d x %d mm.",
+                        job.getMinX() / 1000, job.getMaxX() / 1000, job.getMinY() / 1000, job.getMaxY() / 1000, prop.getBedWidth(), prop.getBedHeight());
+                addLogLine("Warning: " + message);
+                new PopupMessage(mainWindow, "Script out of bounds", message);
             }
         }
     }
 
+    /*
+      Logs a command if it fails, so that the executor does not have to wait for it.
+     */
+    private void watchCommand(CompletableFuture<?> command, String description) {
+        command.whenComplete((result, ex) -> {
+            if (ex != null) {
+                addLogLine(String.format("Laser command failed (%s): %s", description, ex.toString()));
+            }
+        });
+    }
+
     public void shutdown() {
         isRunning = false;
+        // captures can be read without this, but would keep the unused end of the file
+        TrafficRecorder currentRecorder = recorder;
+        if (currentRecorder != null) {
+            try {
+                currentRecorder.close();
+            } catch (IOException ignored) {
+            }
+        }
+        wakeup.release();
+        scheduler.shutdownNow();
         if (executorThread.isAlive()) {
             executorThread.interrupt();
         }
@@ -302,6 +433,7 @@ public class GUIMain {
     public void start() {
         mainWindow.setVisible(true);
         executorThread.start();
+        scheduler.scheduleAtFixedRate(wakeup::release, REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
         addLogLine("Main thread started.");
     }
 
@@ -318,35 +450,8 @@ public class GUIMain {
                     port.setComPortParameters(baud, dataBits, stopBits, parity);
                     port.setFlowControl(flowMode);
                     if (port.openPort()) {
-                        // set up properties
-                        if (properties == null) {
-                            addLogLine("Setting default properties.");
-                            this.properties = new LaserProperties(915, 610);
-                        }
-
                         // connect to serial
-                        IOConnection connection = new IOConnection(port);
-                        connection.addLineReceivedMonitor(line -> {
-                            mainWindow.serialTextArea.append("<--");
-                            mainWindow.serialTextArea.append(line.replace('\n', '□'));
-                            mainWindow.serialTextArea.append("\n");
-
-                            // record ACKs for script
-                            if (currentScript != null && line.equals("OK")) {
-                                currentScript.onAck();
-                            }
-                        });
-                        connection.addLineSentMonitor(line -> {
-                            mainWindow.serialTextArea.append("-->");
-                            mainWindow.serialTextArea.append(line);
-                            mainWindow.serialTextArea.append("\n");
-                        });
-
-                        // connect to printer
-                        laser = new LaserCutter(connection, properties);
-
-                        // set up CLI
-                        cliInterface = new CLIInterface(connection, laser, this);
+                        setUpConnection(new IOConnection(port));
 
                         addLogLine("Connected to laser cutter.");
                         setStatus("Connected.");
@@ -372,6 +477,86 @@ public class GUIMain {
         }
     }
 
+    /*
+      Connects to a laser that plays back a traffic capture, at the speed it was recorded.
+     */
+    private void replay(File file) {
+        try {
+            setStatus("Loading traffic capture...");
+            TrafficCapture capture = TrafficCapture.load(file);
+            setUpConnection(new IOConnection(new ReplayTransport(capture, 1)));
+            addLogLine(String.format("Replaying %d lines (%d sent) from %s.", capture.size(), capture.countSent(), file));
+            setStatus("Connected to replay.");
+        } catch (IOException e) {
+            logException("Exception loading traffic capture.", e);
+            setStatus("Replay failed: " + e.toString());
+        }
+    }
+
+    private void setUpConnection(IOConnection connection) {
+        // set up properties
+        if (properties == null) {
+            addLogLine("Setting default properties.");
+            this.properties = new LaserProperties(915, 610);
+        }
+        // refresh every field from the new laser
+        lastMachineState = null;
+
+        connection.addLineReceivedMonitor(line -> {
+            mainWindow.serialConsole.addLine("<--" + line.replace('\n', '□'));
+
+            // acks let the script send more, and other lines may change the laser status
+            wakeup.release();
+        });
+        connection.addLineSentMonitor(line -> {
+            mainWindow.serialConsole.addLine("-->" + line);
+        });
+        if (recorder != null) {
+            recorder.attach(connection);
+        }
+
+        // connect to printer
+        laser = new LaserCutter(connection, properties);
+        stopPolling();
+        statusPoller = new StatusPoller(laser, scheduler);
+        statusPoller.start();
+
+        // set up CLI
+        cliInterface = new CLIInterface(connection, laser, this);
+    }
+
+    /*
+      Starts or stops recording serial traffic to a new capture file in the working directory.
+     */
+    private void setRecording(boolean record) {
+        if (record && recorder == null) {
+            File file = new File(String.format("traffic-%tY%<tm%<td-%<tH%<tM%<tS.lctrace", new Date()));
+            try {
+                recorder = new TrafficRecorder(file);
+                if (laser != null) {
+                    recorder.attach(laser.getConnection());
+                }
+                addLogLine("Recording serial traffic to " + file.getAbsolutePath() + ".");
+            } catch (IOException e) {
+                logException("Exception creating traffic capture.", e);
+            }
+        } else if (!record && recorder != null) {
+            if (laser != null) {
+                recorder.detach(laser.getConnection());
+            }
+            try {
+                recorder.close();
+                addLogLine(String.format("Recorded %d lines to %s.", recorder.getRecords(), recorder.getFile().getAbsolutePath()));
+            } catch (IOException e) {
+                logException("Exception closing traffic capture.", e);
+            }
+            if (recorder.getFailure() != null) {
+                logException("Traffic recording failed.", recorder.getFailure());
+            }
+            recorder = null;
+        }
+    }
+
     private void disconnect() {
         setStatus("Disconnecting...");
         if (currentScript != null) {
@@ -382,15 +567,23 @@ public class GUIMain {
         if (cliInterface != null) {
             cliInterface = null;
         }
+        stopPolling();
         if (laser != null) {
             laser.disconnect();
         }
         mainWindow.cliTextArea.setText("");
-        mainWindow.serialTextArea.setText("");
+        mainWindow.serialConsole.clear();
         addLogLine("Disconnected.");
         setStatus("Disconnected.");
     }
 
+    private void stopPolling() {
+        if (statusPoller != null) {
+            statusPoller.stop();
+            statusPoller = null;
+        }
+    }
+
     public void addLogString(String message) {
         if (mainWindow != null) {
             mainWindow.logTextArea.append(message);
@@ -412,7 +605,11 @@ public class GUIMain {
 
     public void sendMessage(Message m) {
         if (m != null) {
-            messagePipe.send(m);
+            if (messagePipe.send(m)) {
+                wakeup.release();
+            } else {
+                addLogLine("Message queue is full, dropped " + m.getClass().getSimpleName());
+            }
         }
     }
 
@@ -0,0 +1,9 @@
+package net.acomputerdog.lccontroller.gui.message;
+
+public class RecordTrafficMessage implements Message {
+    public final boolean record;
+
+    public RecordTrafficMessage(boolean record) {
+        this.record = record;
+    }
+}
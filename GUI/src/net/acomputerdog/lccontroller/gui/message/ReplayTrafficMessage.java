@@ -0,0 +1,11 @@
+package net.acomputerdog.lccontroller.gui.message;
+
+import java.io.File;
+
+public class ReplayTrafficMessage implements Message {
+    public final File file;
+
+    public ReplayTrafficMessage(File file) {
+        this.file = file;
+    }
+}
@@ -0,0 +1,299 @@
+package net.acomputerdog.lccontroller.gui.preview;
+
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+  Draws the path of a job into an image, in parallel.
+
+  The job is split into chunks of commands, and each chunk turns its moves into line segments (arcs become short
+  chords) and sorts them into the square tiles of the image that they cross.  Then each tile draws the segments
+  that cross it.  Tiles do not overlap, so they can write straight into the image without locking.  Both steps run
+  on the common fork/join pool.
+ */
+public class PreviewRasterizer {
+    // size of a tile (pixels)
+    private static final int TILE_SIZE = 128;
+    // commands per chunk
+    private static final int CHUNK_SIZE = 32768;
+    // length of one chord of an arc (pixels)
+    private static final double ARC_STEP = 4;
+    private static final int MAX_ARC_STEPS = 256;
+
+    private final CompiledJob job;
+    // pixels per micrometer
+    private final double scale;
+    private final int lineWidth;
+    private final int color;
+
+    public PreviewRasterizer(CompiledJob job, double scale, int lineWidth, Color color) {
+        this.job = job;
+        this.scale = scale;
+        this.lineWidth = lineWidth;
+        this.color = color.getRGB();
+    }
+
+    /*
+      Draws the job over the contents of an image.  The image must be TYPE_INT_ARGB.
+     */
+    public void render(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("Image must be TYPE_INT_ARGB");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                // split into segments
+                List<ChunkTask> chunkTasks = new ArrayList<>();
+                for (int from = 0; from < job.size(); from += CHUNK_SIZE) {
+                    chunkTasks.add(new ChunkTask(from, Math.min(job.size(), from + CHUNK_SIZE), tilesX, tilesY));
+                }
+                invokeAll(chunkTasks);
+                List<Chunk> chunks = new ArrayList<>(chunkTasks.size());
+                for (ChunkTask task : chunkTasks) {
+                    chunks.add(task.join());
+                }
+
+                // draw tiles
+                List<TileTask> tileTasks = new ArrayList<>(tilesX * tilesY);
+                for (int ty = 0; ty < tilesY; ty++) {
+                    for (int tx = 0; tx < tilesX; tx++) {
+                        tileTasks.add(new TileTask(chunks, pixels, width, height, tx, ty, tilesX));
+                    }
+                }
+                invokeAll(tileTasks);
+            }
+        });
+    }
+
+    /*
+      Line segments from part of the job, sorted into tiles.
+     */
+    private static final class Chunk {
+        // x0, y0, x1, y1 of each segment, in pixels
+        final IntList coords = new IntList(64);
+        // index of each segment that crosses a tile
+        final IntList[] tiles;
+
+        Chunk(int numTiles) {
+            tiles = new IntList[numTiles];
+        }
+    }
+
+    private final class ChunkTask extends RecursiveTask<Chunk> {
+        private final int from;
+        private final int to;
+        private final int tilesX;
+        private final int tilesY;
+
+        ChunkTask(int from, int to, int tilesX, int tilesY) {
+            this.from = from;
+            this.to = to;
+            this.tilesX = tilesX;
+            this.tilesY = tilesY;
+        }
+
+        @Override
+        protected Chunk compute() {
+            Chunk chunk = new Chunk(tilesX * tilesY);
+            // positions are absolute, so each chunk can start on its own
+            int lastX = from > 0 ? job.getX(from - 1) : 0;
+            int lastY = from > 0 ? job.getY(from - 1) : 0;
+
+            for (int i = from; i < to; i++) {
+                byte opcode = job.getOpcode(i);
+                int x = job.getX(i);
+                int y = job.getY(i);
+                if (opcode == CompiledJob.OP_ARC_CW || opcode == CompiledJob.OP_ARC_CCW) {
+                    addArc(chunk, lastX, lastY, x, y, job.getArcI(i), job.getArcJ(i), opcode == CompiledJob.OP_ARC_CW);
+                } else if (CompiledJob.isMotion(opcode)) {
+                    addSegment(chunk, toPixel(lastX), toPixel(lastY), toPixel(x), toPixel(y));
+                }
+                lastX = x;
+                lastY = y;
+            }
+            return chunk;
+        }
+
+        private void addArc(Chunk chunk, int startX, int startY, int endX, int endY, int arcI, int arcJ, boolean clockwise) {
+            double centerX = startX + arcI;
+            double centerY = startY + arcJ;
+            double radius = Math.hypot(arcI, arcJ);
+            double startAngle = Math.atan2(startY - centerY, startX - centerX);
+            double endAngle = Math.atan2(endY - centerY, endX - centerX);
+            double sweep = clockwise ? startAngle - endAngle : endAngle - startAngle;
+            if (sweep <= 0) {
+                sweep += 2 * Math.PI;
+            }
+
+            int steps = (int) Math.max(1, Math.min(MAX_ARC_STEPS, Math.ceil(sweep * radius * scale / ARC_STEP)));
+            double step = (clockwise ? -sweep : sweep) / steps;
+            int lastPX = toPixel(startX);
+            int lastPY = toPixel(startY);
+            for (int s = 1; s <= steps; s++) {
+                int px, py;
+                if (s == steps) {
+                    px = toPixel(endX);
+                    py = toPixel(endY);
+                } else {
+                    double angle = startAngle + step * s;
+                    px = (int) Math.round((centerX + radius * Math.cos(angle)) * scale);
+                    py = (int) Math.round((centerY + radius * Math.sin(angle)) * scale);
+                }
+                addSegment(chunk, lastPX, lastPY, px, py);
+                lastPX = px;
+                lastPY = py;
+            }
+        }
+
+        private void addSegment(Chunk chunk, int x0, int y0, int x1, int y1) {
+            int index = chunk.coords.size() / 4;
+            chunk.coords.add(x0);
+            chunk.coords.add(y0);
+            chunk.coords.add(x1);
+            chunk.coords.add(y1);
+
+            // every tile in the bounding box, including the width of the line
+            int pad = lineWidth / 2;
+            if (Math.max(x0, x1) + pad < 0 || Math.max(y0, y1) + pad < 0) {
+                return;
+            }
+            int minTX = clamp((Math.min(x0, x1) - pad) / TILE_SIZE, tilesX);
+            int maxTX = clamp((Math.max(x0, x1) + pad) / TILE_SIZE, tilesX);
+            int minTY = clamp((Math.min(y0, y1) - pad) / TILE_SIZE, tilesY);
+            int maxTY = clamp((Math.max(y0, y1) + pad) / TILE_SIZE, tilesY);
+            for (int ty = minTY; ty <= maxTY; ty++) {
+                for (int tx = minTX; tx <= maxTX; tx++) {
+                    int tile = ty * tilesX + tx;
+                    if (chunk.tiles[tile] == null) {
+                        chunk.tiles[tile] = new IntList(64);
+                    }
+                    chunk.tiles[tile].add(index);
+                }
+            }
+        }
+
+        private int clamp(int tile, int tiles) {
+            return Math.max(0, Math.min(tiles - 1, tile));
+        }
+    }
+
+    private int toPixel(int micrometers) {
+        return (int) Math.round(micrometers * scale);
+    }
+
+    private final class TileTask extends RecursiveAction {
+        private final List<Chunk> chunks;
+        private final int[] pixels;
+        private final int stride;
+        private final int minX, minY, maxX, maxY;
+        private final int tile;
+
+        TileTask(List<Chunk> chunks, int[] pixels, int width, int height, int tx, int ty, int tilesX) {
+            this.chunks = chunks;
+            this.pixels = pixels;
+            this.stride = width;
+            this.minX = tx * TILE_SIZE;
+            this.minY = ty * TILE_SIZE;
+            this.maxX = Math.min(width, minX + TILE_SIZE) - 1;
+            this.maxY = Math.min(height, minY + TILE_SIZE) - 1;
+            this.tile = ty * tilesX + tx;
+        }
+
+        @Override
+        protected void compute() {
+            for (Chunk chunk : chunks) {
+                IntList segments = chunk.tiles[tile];
+                if (segments != null) {
+                    int[] coords = chunk.coords.data;
+                    for (int s = 0; s < segments.size(); s++) {
+                        int base = segments.get(s) * 4;
+                        drawLine(coords[base], coords[base + 1], coords[base + 2], coords[base + 3]);
+                    }
+                }
+            }
+        }
+
+        /*
+          Bresenham's line, with a square brush, only drawing inside of this tile.
+         */
+        private void drawLine(int x0, int y0, int x1, int y1) {
+            int dx = Math.abs(x1 - x0);
+            int dy = -Math.abs(y1 - y0);
+            int stepX = x0 < x1 ? 1 : -1;
+            int stepY = y0 < y1 ? 1 : -1;
+            int error = dx + dy;
+            while (true) {
+                plot(x0, y0);
+                if (x0 == x1 && y0 == y1) {
+                    break;
+                }
+                int error2 = 2 * error;
+                if (error2 >= dy) {
+                    error += dy;
+                    x0 += stepX;
+                }
+                if (error2 <= dx) {
+                    error += dx;
+                    y0 += stepY;
+                }
+            }
+        }
+
+        private void plot(int x, int y) {
+            int low = -(lineWidth - 1) / 2;
+            int fromX = Math.max(minX, x + low);
+            int toX = Math.min(maxX, x + low + lineWidth - 1);
+            int fromY = Math.max(minY, y + low);
+            int toY = Math.min(maxY, y + low + lineWidth - 1);
+            for (int py = fromY; py <= toY; py++) {
+                int row = py * stride;
+                for (int px = fromX; px <= toX; px++) {
+                    pixels[row + px] = color;
+                }
+            }
+        }
+    }
+
+    /*
+      Growable list of ints, without boxing.
+     */
+    private static final class IntList {
+        int[] data;
+        int size = 0;
+
+        IntList(int capacity) {
+            data = new int[capacity];
+        }
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size + (size >> 1) + 1);
+            }
+            data[size++] = value;
+        }
+
+        int get(int index) {
+            return data[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package net.acomputerdog.lccontroller.gui.preview;
+
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+  Quadtree over the segments of a job, for drawing only what is visible and finding the command under a point.
+
+  Each segment is stored in the smallest node whose box contains all of it.  Every node also has a level of detail:
+  the segments of its whole subtree snapped to a LOD_GRID x LOD_GRID grid over the node, with duplicates removed.
+  When a node is small on screen its level of detail is drawn instead of its subtree, so the amount drawn depends
+  on the size of the view and not on the size of the job.
+
+  Nodes also know the range of commands in their subtree, so that part of a job (such as the commands that have
+  already run) can be drawn without visiting the rest.
+
+  Coordinates are in micrometers.  The tree is built once per job, in parallel, and not modified afterwards.
+ */
+public class SegmentIndex {
+    // most segments in a leaf
+    private static final int LEAF_SIZE = 64;
+    private static final int MAX_DEPTH = 16;
+    // subtrees with more segments than this are built in parallel
+    private static final int PARALLEL_SIZE = 8192;
+    // cells per side of the level of detail grid, must fit in LOD_BITS
+    private static final int LOD_GRID = 32;
+    private static final int LOD_BITS = 5;
+    // length of one chord of an arc (µm)
+    private static final double ARC_STEP = 500;
+    private static final int MAX_ARC_STEPS = 256;
+
+    // segments, and the command that each came from
+    private int count = 0;
+    private int[] x0, y0, x1, y1;
+    private int[] command;
+
+    private final Node root;
+
+    public SegmentIndex(CompiledJob job) {
+        int capacity = Math.max(16, job.size());
+        x0 = new int[capacity];
+        y0 = new int[capacity];
+        x1 = new int[capacity];
+        y1 = new int[capacity];
+        command = new int[capacity];
+
+        int lastX = 0, lastY = 0;
+        for (int i = 0; i < job.size(); i++) {
+            byte opcode = job.getOpcode(i);
+            int x = job.getX(i);
+            int y = job.getY(i);
+            if (opcode == CompiledJob.OP_ARC_CW || opcode == CompiledJob.OP_ARC_CCW) {
+                addArc(i, lastX, lastY, x, y, job.getArcI(i), job.getArcJ(i), opcode == CompiledJob.OP_ARC_CW);
+            } else if (CompiledJob.isMotion(opcode)) {
+                addSegment(i, lastX, lastY, x, y);
+            }
+            lastX = x;
+            lastY = y;
+        }
+
+        // square root with a power of two size, so that every level splits evenly
+        int minX = 0, minY = 0, maxX = 1, maxY = 1;
+        for (int s = 0; s < count; s++) {
+            minX = Math.min(minX, Math.min(x0[s], x1[s]));
+            minY = Math.min(minY, Math.min(y0[s], y1[s]));
+            maxX = Math.max(maxX, Math.max(x0[s], x1[s]));
+            maxY = Math.max(maxY, Math.max(y0[s], y1[s]));
+        }
+        long extent = Math.max((long) maxX - minX, (long) maxY - minY) + 1;
+        long size = LOD_GRID;
+        while (size < extent) {
+            size <<= 1;
+        }
+
+        int[] all = new int[count];
+        for (int s = 0; s < count; s++) {
+            all[s] = s;
+        }
+        root = ForkJoinPool.commonPool().invoke(new BuildTask(all, minX, minY, size, 0));
+    }
+
+    public int getSegmentCount() {
+        return count;
+    }
+
+    /*
+      Finds the command with the segment closest to a point.  Returns -1 if nothing is within maxDistance.
+     */
+    public int findNearest(double x, double y, double maxDistance) {
+        int best = -1;
+        double bestDistance = maxDistance;
+
+        // closest nodes first, stopping once no node can be closer than the best segment
+        PriorityQueue<NodeDistance> queue = new PriorityQueue<>();
+        queue.add(new NodeDistance(root, root.distanceTo(x, y)));
+        while (!queue.isEmpty()) {
+            NodeDistance next = queue.poll();
+            if (next.distance > bestDistance) {
+                break;
+            }
+            Node node = next.node;
+            for (int s : node.segments) {
+                double distance = distanceToSegment(s, x, y);
+                if (distance <= bestDistance) {
+                    best = command[s];
+                    bestDistance = distance;
+                }
+            }
+            if (node.children != null) {
+                for (Node child : node.children) {
+                    if (child != null) {
+                        double distance = child.distanceTo(x, y);
+                        if (distance <= bestDistance) {
+                            queue.add(new NodeDistance(child, distance));
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /*
+      Visits every segment that may be visible in a view, using the level of detail for nodes that are smaller than
+      lodSize on screen.  scale is pixels per micrometer.
+     */
+    public void draw(SegmentVisitor visitor, double minX, double minY, double maxX, double maxY, double scale, int lodSize) {
+        draw(visitor, minX, minY, maxX, maxY, scale, lodSize, 0, Integer.MAX_VALUE);
+    }
+
+    /*
+      Like draw(), but only visits segments from commands fromCommand (inclusive) to toCommand (exclusive).  Nodes
+      that only partly overlap the range are split further than usual, down to a single level of detail cell.  Nodes
+      smaller than that are drawn as a dot if their first command is in the range, so splitting a job into ranges
+      draws every small area exactly once.
+     */
+    public void draw(SegmentVisitor visitor, double minX, double minY, double maxX, double maxY, double scale, int lodSize, int fromCommand, int toCommand) {
+        if (fromCommand < toCommand) {
+            draw(root, visitor, minX, minY, maxX, maxY, lodSize / scale, fromCommand, toCommand);
+        }
+    }
+
+    private void draw(Node node, SegmentVisitor visitor, double minX, double minY, double maxX, double maxY, double lodSize, int fromCommand, int toCommand) {
+        if (node.minX > maxX || node.minY > maxY || node.minX + node.size < minX || node.minY + node.size < minY) {
+            return;
+        }
+        if (node.maxCommand < fromCommand || node.minCommand >= toCommand) {
+            return;
+        }
+        boolean whole = node.minCommand >= fromCommand && node.maxCommand < toCommand;
+        if (!whole && node.size <= lodSize / LOD_GRID) {
+            if (node.minCommand >= fromCommand) {
+                double center = node.size / 2.0;
+                visitor.visit(node.minX + center, node.minY + center, node.minX + center, node.minY + center);
+            }
+            return;
+        }
+
+        if (whole && node.size <= lodSize) {
+            double cell = (double) node.size / LOD_GRID;
+            int mask = LOD_GRID - 1;
+            for (int key : node.lod) {
+                double ax = node.minX + ((key >>> (3 * LOD_BITS)) & mask) * cell + cell / 2;
+                double ay = node.minY + ((key >>> (2 * LOD_BITS)) & mask) * cell + cell / 2;
+                double bx = node.minX + ((key >>> LOD_BITS) & mask) * cell + cell / 2;
+                double by = node.minY + (key & mask) * cell + cell / 2;
+                visitor.visit(ax, ay, bx, by);
+            }
+        } else {
+            for (int s : node.segments) {
+                if (whole || (command[s] >= fromCommand && command[s] < toCommand)) {
+                    visitor.visit(x0[s], y0[s], x1[s], y1[s]);
+                }
+            }
+            if (node.children != null) {
+                for (Node child : node.children) {
+                    if (child != null) {
+                        draw(child, visitor, minX, minY, maxX, maxY, lodSize, fromCommand, toCommand);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addArc(int cmd, int startX, int startY, int endX, int endY, int arcI, int arcJ, boolean clockwise) {
+        double centerX = startX + arcI;
+        double centerY = startY + arcJ;
+        double radius = Math.hypot(arcI, arcJ);
+        double startAngle = Math.atan2(startY - centerY, startX - centerX);
+        double endAngle = Math.atan2(endY - centerY, endX - centerX);
+        double sweep = clockwise ? startAngle - endAngle : endAngle - startAngle;
+        if (sweep <= 0) {
+            sweep += 2 * Math.PI;
+        }
+
+        int steps = (int) Math.max(1, Math.min(MAX_ARC_STEPS, Math.ceil(sweep * radius / ARC_STEP)));
+        double step = (clockwise ? -sweep : sweep) / steps;
+        int lastX = startX, lastY = startY;
+        for (int s = 1; s <= steps; s++) {
+            int x = s == steps ? endX : (int) Math.round(centerX + radius * Math.cos(startAngle + step * s));
+            int y = s == steps ? endY : (int) Math.round(centerY + radius * Math.sin(startAngle + step * s));
+            addSegment(cmd, lastX, lastY, x, y);
+            lastX = x;
+            lastY = y;
+        }
+    }
+
+    private void addSegment(int cmd, int ax, int ay, int bx, int by) {
+        if (count == x0.length) {
+            int capacity = count + (count >> 1) + 1;
+            x0 = Arrays.copyOf(x0, capacity);
+            y0 = Arrays.copyOf(y0, capacity);
+            x1 = Arrays.copyOf(x1, capacity);
+            y1 = Arrays.copyOf(y1, capacity);
+            command = Arrays.copyOf(command, capacity);
+        }
+        x0[count] = ax;
+        y0[count] = ay;
+        x1[count] = bx;
+        y1[count] = by;
+        command[count] = cmd;
+        count++;
+    }
+
+    private double distanceToSegment(int s, double px, double py) {
+        double ax = x0[s], ay = y0[s];
+        double dx = x1[s] - ax, dy = y1[s] - ay;
+        double lengthSq = dx * dx + dy * dy;
+        double t = lengthSq == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(ax + t * dx - px, ay + t * dy - py);
+    }
+
+    /*
+      Receives segments to draw, in micrometers.
+     */
+    public interface SegmentVisitor {
+        void visit(double x0, double y0, double x1, double y1);
+    }
+
+    private static final class Node {
+        final long minX, minY, size;
+        // segments that do not fit in any child
+        int[] segments;
+        // null for leaves, otherwise NW, NE, SW, SE with null for empty quadrants
+        Node[] children;
+        // level of detail segments, packed as four LOD_BITS cell coordinates
+        int[] lod;
+        // lowest and highest command in the subtree
+        int minCommand = Integer.MAX_VALUE;
+        int maxCommand = -1;
+
+        Node(long minX, long minY, long size) {
+            this.minX = minX;
+            this.minY = minY;
+            this.size = size;
+        }
+
+        double distanceTo(double x, double y) {
+            double dx = Math.max(0, Math.max(minX - x, x - (minX + size)));
+            double dy = Math.max(0, Math.max(minY - y, y - (minY + size)));
+            return Math.hypot(dx, dy);
+        }
+    }
+
+    private static final class NodeDistance implements Comparable<NodeDistance> {
+        final Node node;
+        final double distance;
+
+        NodeDistance(Node node, double distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(NodeDistance other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    private final class BuildTask extends RecursiveTask<Node> {
+        private final int[] segments;
+        private final long minX, minY, size;
+        private final int depth;
+
+        BuildTask(int[] segments, long minX, long minY, long size, int depth) {
+            this.segments = segments;
+            this.minX = minX;
+            this.minY = minY;
+            this.size = size;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Node compute() {
+            Node node = new Node(minX, minY, size);
+            if (segments.length <= LEAF_SIZE || depth == MAX_DEPTH || size <= LOD_GRID) {
+                node.segments = segments;
+                node.lod = makeLod(node, null);
+                setCommandRange(node);
+                return node;
+            }
+
+            // sort into the quadrant that contains each segment, or keep here if it crosses the middle
+            long half = size / 2;
+            long midX = minX + half, midY = minY + half;
+            int[] quadrant = new int[segments.length];
+            int[] counts = new int[5];
+            for (int i = 0; i < segments.length; i++) {
+                int s = segments[i];
+                int q;
+                boolean west = Math.max(x0[s], x1[s]) < midX;
+                boolean east = Math.min(x0[s], x1[s]) >= midX;
+                boolean north = Math.max(y0[s], y1[s]) < midY;
+                boolean south = Math.min(y0[s], y1[s]) >= midY;
+                if ((west || east) && (north || south)) {
+                    q = (south ? 2 : 0) + (east ? 1 : 0);
+                } else {
+                    q = 4;
+                }
+                quadrant[i] = q;
+                counts[q]++;
+            }
+            int[][] split = new int[5][];
+            for (int q = 0; q < 5; q++) {
+                split[q] = new int[counts[q]];
+                counts[q] = 0;
+            }
+            for (int i = 0; i < segments.length; i++) {
+                split[quadrant[i]][counts[quadrant[i]]++] = segments[i];
+            }
+
+            node.segments = split[4];
+            node.children = new Node[4];
+            BuildTask[] tasks = new BuildTask[4];
+            for (int q = 0; q < 4; q++) {
+                if (split[q].length > 0) {
+                    tasks[q] = new BuildTask(split[q], (q & 1) != 0 ? midX : minX, (q & 2) != 0 ? midY : minY, half, depth + 1);
+                }
+            }
+            if (segments.length > PARALLEL_SIZE) {
+                for (BuildTask task : tasks) {
+                    if (task != null) {
+                        task.fork();
+                    }
+                }
+                for (int q = 0; q < 4; q++) {
+                    if (tasks[q] != null) {
+                        node.children[q] = tasks[q].join();
+                    }
+                }
+            } else {
+                for (int q = 0; q < 4; q++) {
+                    if (tasks[q] != null) {
+                        node.children[q] = tasks[q].compute();
+                    }
+                }
+            }
+
+            node.lod = makeLod(node, node.children);
+            setCommandRange(node);
+            return node;
+        }
+
+        private void setCommandRange(Node node) {
+            for (int s : node.segments) {
+                node.minCommand = Math.min(node.minCommand, command[s]);
+                node.maxCommand = Math.max(node.maxCommand, command[s]);
+            }
+            if (node.children != null) {
+                for (Node child : node.children) {
+                    if (child != null) {
+                        node.minCommand = Math.min(node.minCommand, child.minCommand);
+                        node.maxCommand = Math.max(node.maxCommand, child.maxCommand);
+                    }
+                }
+            }
+        }
+
+        /*
+          Snaps the node's own segments and its children's levels of detail to the node's grid.
+         */
+        private int[] makeLod(Node node, Node[] children) {
+            int total = node.segments.length;
+            if (children != null) {
+                for (Node child : children) {
+                    if (child != null) {
+                        total += child.lod.length;
+                    }
+                }
+            }
+
+            int[] keys = new int[total];
+            int n = 0;
+            double cell = (double) node.size / LOD_GRID;
+            for (int s : node.segments) {
+                keys[n++] = lodKey(toCell(x0[s], node.minX, cell), toCell(y0[s], node.minY, cell), toCell(x1[s], node.minX, cell), toCell(y1[s], node.minY, cell));
+            }
+            if (children != null) {
+                int mask = LOD_GRID - 1;
+                for (Node child : children) {
+                    if (child != null) {
+                        // child cells are half the size, and the child is offset by half the grid
+                        int offsetX = (int) ((child.minX - node.minX) / cell);
+                        int offsetY = (int) ((child.minY - node.minY) / cell);
+                        for (int key : child.lod) {
+                            keys[n++] = lodKey(offsetX + ((key >>> (3 * LOD_BITS)) & mask) / 2,
+                                    offsetY + ((key >>> (2 * LOD_BITS)) & mask) / 2,
+                                    offsetX + ((key >>> LOD_BITS) & mask) / 2,
+                                    offsetY + (key & mask) / 2);
+                        }
+                    }
+                }
+            }
+
+            // remove duplicates
+            Arrays.sort(keys, 0, n);
+            int unique = 0;
+            for (int i = 0; i < n; i++) {
+                if (unique == 0 || keys[i] != keys[unique - 1]) {
+                    keys[unique++] = keys[i];
+                }
+            }
+            return Arrays.copyOf(keys, unique);
+        }
+
+        private int toCell(int value, long min, double cell) {
+            return (int) Math.max(0, Math.min(LOD_GRID - 1, (value - min) / cell));
+        }
+
+        // packs a segment between two cells, with the lower end first so that both directions match
+        private int lodKey(int ax, int ay, int bx, int by) {
+            int a = (ax << LOD_BITS) | ay;
+            int b = (bx << LOD_BITS) | by;
+            return a <= b ? (a << (2 * LOD_BITS)) | b : (b << (2 * LOD_BITS)) | a;
+        }
+    }
+}
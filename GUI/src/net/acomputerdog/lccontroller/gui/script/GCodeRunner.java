@@ -1,27 +1,61 @@
 package net.acomputerdog.lccontroller.gui.script;
 
+import net.acomputerdog.lccontroller.JobStreamer;
+import net.acomputerdog.lccontroller.LaserProperties;
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+import net.acomputerdog.lccontroller.gcode.GCodeFile;
+import net.acomputerdog.lccontroller.gcode.JobCompiler;
+import net.acomputerdog.lccontroller.gcode.JobPreparer;
+import net.acomputerdog.lccontroller.gcode.TimeEstimate;
+import net.acomputerdog.lccontroller.gcode.TimeEstimator;
 import net.acomputerdog.lccontroller.gui.GUIMain;
 
-import java.io.*;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class GCodeRunner implements ScriptRunner {
+    // how often the throughput is recalculated (ms)
+    private static final long THROUGHPUT_INTERVAL = 1000;
+    // estimated machine time (s) to run before the ETA is corrected by the real speed
+    private static final double ETA_CALIBRATION_TIME = 10;
+
     private final GUIMain main;
-    private final BufferedReader gcodeReader;
+    private final File file;
 
-    private String[] lines;
+    private GCodeFile lines;
+    private CompiledJob job;
+    private TimeEstimate estimate;
 
     ScriptState state = ScriptState.NOT_STARTED;
 
+    // completes when the loading thread is done
+    private CompletableFuture<Void> loading;
+
+    // sends the job once it is started
+    private JobStreamer streamer;
+
     String error = null;
     float progress = 0f;
-    boolean ack = true; //true so first command can be sent
-    String lastLine;
-    int nextLine = 0;
+    volatile int commandsDone = 0;
+
+    // throughput tracking
+    int throughputStartLines = 0;
+    long throughputStartTime = 0;
+    float linesPerSecond = 0f;
+
+    // time tracking
+    long startTime = 0;
+    long timeRemaining = -1;
 
     public GCodeRunner(GUIMain main, File file) throws FileNotFoundException {
-        gcodeReader = new BufferedReader(new FileReader(file));
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        this.file = file;
         this.main = main;
     }
 
@@ -31,57 +65,96 @@ public class GCodeRunner implements ScriptRunner {
     }
 
     @Override
-    public void load() throws IOException {
-        try {
-            if (state == ScriptState.NOT_STARTED) {
-                List<String> lineList = new ArrayList<>();
-                while (gcodeReader.ready()) {
-                    lineList.add(gcodeReader.readLine());
+    public void load() {
+        if (state == ScriptState.NOT_STARTED) {
+            // read here, because the properties belong to the executor thread
+            LaserProperties properties = main.getLaserProperties();
+
+            state = ScriptState.LOADING;
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            loading = future;
+            Thread thread = new Thread(() -> {
+                try {
+                    loadJob(properties);
+                    future.complete(null);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
                 }
-                this.lines = lineList.toArray(new String[lineList.size()]);
+            }, "Script_Load_Thread");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
 
-                state = ScriptState.LOADED;
-            }
-        } catch (Exception e) {
-            state = ScriptState.FINISHED;
-            throw e;
-        } finally {
+    @Override
+    public boolean finishLoading() throws IOException {
+        if (state == ScriptState.LOADING && loading.isDone()) {
             try {
-                gcodeReader.close();
-            } catch (IOException ignored) {
+                loading.join();
+                state = ScriptState.LOADED;
+                return true;
+            } catch (CompletionException e) {
+                state = ScriptState.FINISHED;
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw e;
             }
         }
+        return false;
+    }
+
+    // runs on the loading thread
+    private void loadJob(LaserProperties properties) throws IOException {
+        this.lines = GCodeFile.load(file);
+        CompiledJob compiled = JobCompiler.compileCached(lines);
+
+        this.job = JobPreparer.prepare(compiled, properties, main::addLogLine);
+
+        int acceleration = properties != null ? properties.getAcceleration() : LaserProperties.DEFAULT_ACCELERATION;
+        int maxFeed = properties != null ? properties.getMaxFeed() : LaserProperties.DEFAULT_MAX_FEED;
+        this.estimate = new TimeEstimator(acceleration, maxFeed).estimate(job);
+        this.timeRemaining = (long) (estimate.getTotalTime() * 1000);
     }
 
     @Override
     public void stop() {
         if (state == ScriptState.RUNNING) {
+            streamer.stop();
             stopWithError("Stopped early by command.");
         }
     }
 
     @Override
     public void start() {
+        if (!main.isConnected()) {
+            stopWithError("Not connected to a laser.");
+            return;
+        }
+        // the same properties that the job was compiled with, which can be edited after connecting
+        LaserProperties properties = main.getLaserProperties();
+        int bufferSize = properties != null ? properties.getRxBufferSize() : LaserProperties.DEFAULT_RX_BUFFER_SIZE;
+
+        throughputStartTime = System.currentTimeMillis();
+        startTime = throughputStartTime;
         state = ScriptState.RUNNING;
+        streamer = new JobStreamer(main.getLaser(), job, lines, bufferSize);
+        streamer.start();
     }
 
     @Override
     public void tick() {
         try {
             if (state == ScriptState.RUNNING) {
-                if (nextLine > lines.length) {
-                    state = ScriptState.FINISHED;
-                    progress = 1f;
-                } else if (ack) {
-                    String line = lines[nextLine];
-                    nextLine++;
-
-                    if (!line.isEmpty()) {
-                        ack = false;
-                        main.getLaser().getConnection().sendAsync(line);
-                        lastLine = line;
-                    }
+                if (streamer.isFinished()) {
+                    finish();
                 }
+
+                updateThroughput();
+                updateProgress();
             }
         } catch (Exception e) {
             stopWithError("Internal exception: " + e.toString());
@@ -89,9 +162,48 @@ public class GCodeRunner implements ScriptRunner {
         }
     }
 
-    @Override
-    public void onAck() {
-        ack = true;
+    private void finish() {
+        try {
+            streamer.getResult().join();
+            state = ScriptState.FINISHED;
+            commandsDone = job.size();
+            progress = 1f;
+            timeRemaining = 0;
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            stopWithError(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+        }
+    }
+
+    /*
+      Progress is measured by estimated machine time of the commands that have been acknowledged.
+     */
+    private void updateProgress() {
+        if (state == ScriptState.RUNNING) {
+            int done = streamer.getCommandsDone();
+            commandsDone = done;
+            progress = estimate.getProgress(done);
+
+            double estimatedElapsed = estimate.getTimeAfter(done);
+            double remaining = estimate.getTotalTime() - estimatedElapsed;
+            if (estimatedElapsed >= ETA_CALIBRATION_TIME) {
+                // scale by how fast the machine is really going
+                double actualElapsed = (System.currentTimeMillis() - startTime) / 1000.0;
+                remaining *= actualElapsed / estimatedElapsed;
+            }
+            timeRemaining = (long) (remaining * 1000);
+        }
+    }
+
+    private void updateThroughput() {
+        long time = System.currentTimeMillis();
+        long elapsed = time - throughputStartTime;
+        if (elapsed >= THROUGHPUT_INTERVAL) {
+            int linesSent = streamer.getCommandsSent();
+            linesPerSecond = (linesSent - throughputStartLines) * 1000f / elapsed;
+            throughputStartLines = linesSent;
+            throughputStartTime = time;
+        }
     }
 
     @Override
@@ -99,19 +211,39 @@ public class GCodeRunner implements ScriptRunner {
         return progress;
     }
 
+    @Override
+    public long getEstimatedTimeRemaining() {
+        return timeRemaining;
+    }
+
+    @Override
+    public int getCommandsDone() {
+        return commandsDone;
+    }
+
     @Override
     public String getErrors() {
         return error;
     }
 
     @Override
-    public String[] getLines() {
+    public float getLinesPerSecond() {
+        return linesPerSecond;
+    }
+
+    @Override
+    public List<String> getLines() {
         return lines;
     }
 
+    @Override
+    public CompiledJob getJob() {
+        return job;
+    }
+
     @Override
     public String getLastLine() {
-        return lastLine;
+        return streamer != null ? streamer.getLastLine() : null;
     }
 
     private void stopWithError(String error) {
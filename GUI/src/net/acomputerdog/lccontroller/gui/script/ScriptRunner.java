@@ -1,21 +1,49 @@
 package net.acomputerdog.lccontroller.gui.script;
 
+import net.acomputerdog.lccontroller.gcode.CompiledJob;
+
 import java.io.IOException;
+import java.util.List;
 
 public interface ScriptRunner {
     ScriptState getState();
 
-    void load() throws IOException;
+    /*
+      Starts loading the script in the background.  The state is LOADING until finishLoading() sees that it is done.
+     */
+    void load();
+
+    /*
+      Returns true once, when the script has finished loading.  Throws if it failed to load.
+     */
+    boolean finishLoading() throws IOException;
     void start();
 
     void stop();
 
     void tick();
-    void onAck();
 
+    /*
+      Fraction of the estimated machine time that has been completed, between 0 and 1.
+     */
     float getEstimatedProgress();
+
+    /*
+      Estimated time left (ms), or -1 if it is not known yet.
+     */
+    long getEstimatedTimeRemaining();
+
+    /*
+      Number of commands of the job that the machine has acknowledged.
+     */
+    int getCommandsDone();
+    float getLinesPerSecond();
     String getErrors();
 
-    String[] getLines();
+    /*
+      Lines of the script.  Lines may be loaded on demand, so the list should not be copied.
+     */
+    List<String> getLines();
+    CompiledJob getJob();
     String getLastLine();
 }
@@ -14,6 +14,11 @@ public class LaserPropWindow extends JDialog {
     private JButton buttonCancel;
     private JTextField heightField;
     private JTextField widthField;
+    private JTextField rxBufferField;
+    private JTextField toleranceField;
+    private JCheckBox arcsCheckBox;
+    private JTextField accelerationField;
+    private JTextField maxFeedField;
 
     private final GUIMain main;
     private final JFrame owner;
@@ -50,8 +55,25 @@ public class LaserPropWindow extends JDialog {
         try {
             int width = Integer.parseInt(widthField.getText());
             int height = Integer.parseInt(heightField.getText());
+            int rxBuffer = Integer.parseInt(rxBufferField.getText());
+            int tolerance = Integer.parseInt(toleranceField.getText());
+            int acceleration = Integer.parseInt(accelerationField.getText());
+            int maxFeed = Integer.parseInt(maxFeedField.getText());
 
-            main.setLaserProperties(new LaserProperties(width, height));
+            if (rxBuffer < 0) {
+                new PopupMessage(owner, "Invalid input", "Receive buffer size cannot be negative.");
+                return;
+            }
+            if (tolerance < 0) {
+                new PopupMessage(owner, "Invalid input", "Path tolerance cannot be negative.");
+                return;
+            }
+            if (acceleration <= 0 || maxFeed <= 0) {
+                new PopupMessage(owner, "Invalid input", "Acceleration and max feed must be positive.");
+                return;
+            }
+
+            main.setLaserProperties(new LaserProperties(width, height, rxBuffer, tolerance, arcsCheckBox.isSelected(), acceleration, maxFeed));
             dispose();
         } catch (NumberFormatException e) {
             new PopupMessage(owner, "Invalid input", "Please enter only integers.");
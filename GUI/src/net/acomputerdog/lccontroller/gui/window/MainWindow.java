@@ -3,6 +3,7 @@ package net.acomputerdog.lccontroller.gui.window;
 import net.acomputerdog.lccontroller.Location;
 import net.acomputerdog.lccontroller.ex.ResponseFormatException;
 import net.acomputerdog.lccontroller.gui.ComponentScriptPath;
+import net.acomputerdog.lccontroller.gui.ConsoleBuffer;
 import net.acomputerdog.lccontroller.gui.GUIMain;
 import net.acomputerdog.lccontroller.gui.message.*;
 import net.acomputerdog.lccontroller.util.NumberUtils;
@@ -16,13 +17,17 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 
 public class MainWindow extends JFrame {
+    // most lines kept in the serial console
+    private static final int SERIAL_CONSOLE_LINES = 2000;
+
     private JPanel mainPanel;
     private JSplitPane vertSplit;
     private JSplitPane horizSplit;
     private JTabbedPane consoleTabs;
     private JPanel cliTab;
     private JPanel gcodeTab;
-    public JTextArea serialTextArea;
+    private JTextArea serialTextArea;
+    public ConsoleBuffer serialConsole;
     private JTextField serialSendField;
     private JButton serialSendButton;
     public JTextArea cliTextArea;
@@ -76,9 +81,13 @@ public class MainWindow extends JFrame {
     private JMenuItem propertiesItem;
     private JMenu debugMenu;
     private JMenuItem debugLaserItem;
+    private JMenuItem metricsItem;
+    private JCheckBoxMenuItem recordTrafficItem;
+    private JMenuItem replayTrafficItem;
 
     private JFileChooser gcodeChooser;
     private JFileChooser cmdChooser;
+    private JFileChooser trafficChooser;
 
     private final GUIMain main;
 
@@ -99,6 +108,7 @@ public class MainWindow extends JFrame {
         scriptPreview.setMain(main);
 
         logTextArea.setText("Window created.\n");
+        serialConsole = new ConsoleBuffer(serialTextArea, SERIAL_CONSOLE_LINES);
 
         // add listeners
         exitMenuItem.addActionListener(e -> main.shutdown());
@@ -132,7 +142,7 @@ public class MainWindow extends JFrame {
                 }
             }
         });
-        serialClearButton.addActionListener(e -> serialTextArea.setText(""));
+        serialClearButton.addActionListener(e -> serialConsole.clear());
         serialSendButton.addActionListener(e -> main.sendMessage(new SerialAsyncMessage(serialSendField.getText())));
         startScriptButton.addActionListener(e -> main.sendMessage(new StartScriptMessage()));
         stopScriptButton.addActionListener(e -> main.sendMessage(new StopScriptMessage()));
@@ -158,6 +168,18 @@ public class MainWindow extends JFrame {
         motorOnButton.addActionListener(e -> main.sendMessage(new MotorStateMessage(true)));
         motorOffButton.addActionListener(e -> main.sendMessage(new MotorStateMessage(false)));
         debugLaserItem.addActionListener(e -> new DebugLaserWindow(this));
+        metricsItem.addActionListener(e -> new MetricsWindow(this));
+        recordTrafficItem.addActionListener(e -> main.sendMessage(new RecordTrafficMessage(recordTrafficItem.isSelected())));
+        replayTrafficItem.addActionListener(e -> {
+            if (trafficChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                File capture = trafficChooser.getSelectedFile();
+                if (capture.isFile()) {
+                    main.sendMessage(new ReplayTrafficMessage(capture));
+                } else {
+                    new PopupMessage(this, "Invalid input", "Traffic capture must be a file.");
+                }
+            }
+        });
     }
 
     private void moveAxis(boolean axis, boolean direction) {
@@ -187,8 +209,8 @@ public class MainWindow extends JFrame {
 
         if (main.isConnected()) {
             Location loc = main.getLaser().getLocation();
-            xLocField.setText(String.format("%d.%d", loc.getXMM(), (loc.getXUM() % 1000)));
-            yLocField.setText(String.format("%d.%d", loc.getYMM(), (loc.getYUM() % 1000)));
+            xLocField.setText(NumberUtils.formatAxisLoc(loc.getXUM()));
+            yLocField.setText(NumberUtils.formatAxisLoc(loc.getYUM()));
 
             main.sendMessage(new MotorMoveByMessage(xStep, yStep));
             //main.moveBy(xStep, yStep);
@@ -225,6 +247,13 @@ public class MainWindow extends JFrame {
         debugMenu.setMnemonic(KeyEvent.VK_D);
         debugLaserItem = new JMenuItem("Laser");
         debugMenu.add(debugLaserItem);
+        metricsItem = new JMenuItem("Connection metrics");
+        debugMenu.add(metricsItem);
+        debugMenu.addSeparator();
+        recordTrafficItem = new JCheckBoxMenuItem("Record serial traffic");
+        debugMenu.add(recordTrafficItem);
+        replayTrafficItem = new JMenuItem("Replay serial traffic");
+        debugMenu.add(replayTrafficItem);
         menuBar.add(debugMenu);
 
         // create choosers
@@ -238,6 +267,11 @@ public class MainWindow extends JFrame {
         cmdChooser.setMultiSelectionEnabled(false);
         cmdChooser.addChoosableFileFilter(new FileNameExtensionFilter("CMD scripts", "lcmd"));
 
+        trafficChooser = new JFileChooser();
+        trafficChooser.setDialogTitle("Open a traffic capture");
+        trafficChooser.setMultiSelectionEnabled(false);
+        trafficChooser.addChoosableFileFilter(new FileNameExtensionFilter("Traffic captures", "lctrace"));
+
         // create preview
         scriptPreview = new ComponentScriptPath();
     }
@@ -0,0 +1,65 @@
+package net.acomputerdog.lccontroller.gui.window;
+
+import net.acomputerdog.lccontroller.LaserCutter;
+
+import javax.swing.*;
+import java.awt.*;
+
+/*
+  Shows the connection metrics of the current laser, refreshed a few times a second.
+ */
+public class MetricsWindow extends JFrame {
+    private static final int REFRESH_INTERVAL = 500;
+
+    private final MainWindow main;
+    private final JTextArea metricsArea;
+    private final Timer refreshTimer;
+
+    public MetricsWindow(MainWindow main) {
+        super();
+        super.setTitle("Connection Metrics");
+
+        this.main = main;
+
+        metricsArea = new JTextArea(20, 80);
+        metricsArea.setEditable(false);
+        metricsArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(e -> this.dispose());
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(closeButton);
+
+        JPanel mainPanel = new JPanel(new BorderLayout());
+        mainPanel.add(new JScrollPane(metricsArea), BorderLayout.CENTER);
+        mainPanel.add(buttonPanel, BorderLayout.SOUTH);
+
+        refreshTimer = new Timer(REFRESH_INTERVAL, e -> refresh());
+        refresh();
+        refreshTimer.start();
+
+        super.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        super.setContentPane(mainPanel);
+        super.pack();
+        super.setVisible(true);
+    }
+
+    private void refresh() {
+        LaserCutter laser = main.getMain().getLaser();
+        String text;
+        if (laser != null && laser.isConnected()) {
+            text = String.join("\n", laser.getConnection().getMetrics().report());
+        } else {
+            text = "Not connected.";
+        }
+        if (!text.equals(metricsArea.getText())) {
+            metricsArea.setText(text);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        refreshTimer.stop();
+        super.dispose();
+    }
+}